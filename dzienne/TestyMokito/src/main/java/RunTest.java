@@ -1,6 +1,7 @@
 import db.dao.DAO;
 import db.dao.impl.SQLiteDB;
 import model.Account;
+import model.Money;
 import model.User;
 
 import java.sql.SQLException;
@@ -16,8 +17,8 @@ public class RunTest {
         Account acc = dao.findAccountById(2);
         user = acc.getOwner();
         System.out.println(user.getId()+ " "+user.getName()+ " "+user.getRole().getName());
-        System.out.println(acc.getAmmount());
-        acc.setAmmount(11433.85);
+        System.out.println(Money.format(acc.getAmmount()));
+        acc.setAmmount(Money.parse("11433.85"));
         dao.updateAccountState(acc);
 
         /*String s = AuthenticationManager.hashPassword("Adam");
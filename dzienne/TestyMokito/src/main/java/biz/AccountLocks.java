@@ -0,0 +1,128 @@
+package biz;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed table of locks shared by accounts, an account always uses the lock at
+ * its id modulo the table size. Operations on accounts with different locks
+ * do not wait for each other. Two accounts are locked in the order of their
+ * lock index, so transfers in opposite directions cannot deadlock.
+ */
+public class AccountLocks {
+    public static final int DEFAULT_STRIPES = 256;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private final ReentrantLock[] stripes;
+    private final long timeoutMillis;
+
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong contended = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    public AccountLocks() {
+        this(DEFAULT_STRIPES, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param stripes number of locks, rounded up to a power of two
+     */
+    public AccountLocks(int stripes, long timeoutMillis) {
+        if (stripes < 1 || timeoutMillis < 0) throw new IllegalArgumentException("Bad stripe count or timeout");
+        int size = Integer.highestOneBit(stripes);
+        if (size < stripes) size <<= 1;
+        this.stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) this.stripes[i] = new ReentrantLock();
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    private int index(int accountId) {
+        return accountId & (stripes.length - 1);
+    }
+
+    /**
+     * Locks the account for the current thread, has to be matched by {@link #unlock(int)}.
+     */
+    public void lock(int accountId) throws SQLException {
+        acquire(stripes[index(accountId)]);
+    }
+
+    public void unlock(int accountId) {
+        stripes[index(accountId)].unlock();
+    }
+
+    /**
+     * Locks both accounts, lower lock index first. Accounts sharing a lock take it once.
+     * Has to be matched by {@link #unlock(int, int)}.
+     */
+    public void lock(int firstAccountId, int secondAccountId) throws SQLException {
+        int first = index(firstAccountId);
+        int second = index(secondAccountId);
+        if (first == second) {
+            acquire(stripes[first]);
+            return;
+        }
+        acquire(stripes[Math.min(first, second)]);
+        try {
+            acquire(stripes[Math.max(first, second)]);
+        }
+        catch (SQLException e) {
+            stripes[Math.min(first, second)].unlock();
+            throw e;
+        }
+    }
+
+    public void unlock(int firstAccountId, int secondAccountId) {
+        int first = index(firstAccountId);
+        int second = index(secondAccountId);
+        stripes[Math.max(first, second)].unlock();
+        if (first != second) stripes[Math.min(first, second)].unlock();
+    }
+
+    private void acquire(ReentrantLock lock) throws SQLException {
+        acquisitions.incrementAndGet();
+        if (lock.tryLock()) return;
+        contended.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            if (!lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLTimeoutException("Timeout waiting for account lock");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for account lock", e);
+        }
+        finally {
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    /**
+     * Acquisitions that found the lock held by another thread.
+     */
+    public long getContended() {
+        return contended.get();
+    }
+
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+}
@@ -3,7 +3,10 @@ package biz;
 import db.dao.DAO;
 import db.dao.impl.DAOImpl;
 import db.dao.impl.SQLiteDB;
+import db.dao.impl.UserDirectory;
 import model.Account;
+import model.HistoryEntry;
+import model.Money;
 import model.Operation;
 import model.User;
 import model.exceptions.OperationIsNotAllowedException;
@@ -12,72 +15,399 @@ import model.operations.PaymentIn;
 import model.operations.Withdraw;
 
 import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongUnaryOperator;
 
 /**
  * Created by Krzysztof Podlaski on 04.03.2018.
  */
 public class AccountManager {
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_BACKOFF_MILLIS = 2;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 100;
+
     DAO dao;
     BankHistory history;
     AuthenticationManager auth;
     InterestOperator interestOperator;
     User loggedUser=null;
+    SessionRegistry sessions;
+    private volatile int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private volatile long backoffMillis = DEFAULT_BACKOFF_MILLIS;
+    private volatile long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private final AtomicLong updateAttempts = new AtomicLong();
+    private final AtomicLong updateConflicts = new AtomicLong();
+    private final AtomicLong failedUpdates = new AtomicLong();
+    // null when operations on the same account are not serialized
+    private volatile AccountLocks accountLocks;
+    private volatile int batchChunkSize = DAO.DEFAULT_CHUNK_SIZE;
+    private final AtomicLong failedBatchChunks = new AtomicLong();
+    private final AtomicLong failedBatchOrders = new AtomicLong();
+    private volatile Consumer<Exception> batchErrorListener;
+    // null when every internal payment is a separate transfer
+    private volatile TransferNetting transferNetting;
 
+    /**
+     * Ammount is given in units and rounded once to minor units, balances are changed exactly.
+     */
     public boolean paymentIn(User user, double ammount, String description, int accountId) throws SQLException {
-        Account account = dao.findAccountById(accountId);
-        Operation operation = new PaymentIn(user, ammount,description, account);
-        boolean success = account.income(ammount);
-        success = dao.updateAccountState(account);
-        history.logOperation(operation, success);
-        return success;
+        return paymentInMinor(user, Money.fromDouble(ammount), description, accountId);
     }
 
     public boolean paymentOut(User user, double ammount, String description, int accountId) throws OperationIsNotAllowedException, SQLException {
-        Account account = dao.findAccountById(accountId);
-        Operation operation = new Withdraw(user, ammount,description, account);
+        return paymentOutMinor(user, Money.fromDouble(ammount), description, accountId);
+    }
+
+    private boolean paymentInMinor(User user, long minor, String description, int accountId) throws SQLException {
+        Account account = accountWithId(accountId);
+        Operation operation = new PaymentIn(user, minor,description, account);
+        return applyAndLog(operation, accountId, minor, DAO.NO_MIN_BALANCE);
+    }
+
+    private boolean paymentOutMinor(User user, long minor, String description, int accountId) throws OperationIsNotAllowedException, SQLException {
+        Account account = accountWithId(accountId);
+        Operation operation = new Withdraw(user, minor,description, account);
         boolean success = auth.canInvokeOperation(operation,user );
         if (!success){
             history.logUnauthorizedOperation(operation, success);
             throw new OperationIsNotAllowedException("Unauthorized operation");
         }
-        success = account.outcome(ammount);
-        success = dao.updateAccountState(account);
-        history.logOperation(operation, success);
-        return success;
+        return applyAndLog(operation, accountId, Money.negate(minor), 0);
+    }
+
+    /**
+     * Changes the balance and logs the operation. An event sourced DAO counts the balance from
+     * the log, there both are one transaction, so a failed log does not leave the change behind.
+     */
+    private boolean applyAndLog(Operation operation, int accountId, long delta, long minBalance) throws SQLException {
+        AccountLocks locks = accountLocks;
+        if (locks != null) locks.lock(accountId);
+        try {
+            boolean transaction = dao.isEventSourced();
+            if (transaction) dao.beginTransaction();
+            boolean committed = !transaction;
+            try {
+                boolean success = dao.applyDelta(accountId, delta, minBalance);
+                history.logOperation(operation, success);
+                if (transaction) {
+                    dao.commitTransaction();
+                    committed = true;
+                }
+                return success;
+            }
+            finally {
+                if (!committed) dao.rollbackTransaction();
+            }
+        }
+        finally {
+            if (locks != null) locks.unlock(accountId);
+        }
     }
 
     public boolean internalPayment(User user, double ammount, String description, int sourceAccountId, int destAccountId) throws OperationIsNotAllowedException, SQLException {
-        Account sourceAccount = dao.findAccountById(sourceAccountId);
-        Account destAccount = dao.findAccountById(destAccountId);
-        Operation withdraw = new Withdraw(user, ammount,description, sourceAccount);
-        Operation payment = new PaymentIn(user, ammount,description, destAccount);
+        long minor = Money.fromDouble(ammount);
+        Operation withdraw = new Withdraw(user, minor,description, accountWithId(sourceAccountId));
         boolean success = auth.canInvokeOperation(withdraw,user );
         if (!success){
             history.logUnauthorizedOperation(withdraw, success);
             throw new OperationIsNotAllowedException("Unauthorized operation");
         }
-        success = sourceAccount.outcome(ammount);
-        success = success && destAccount.income(ammount);
-        if (success) {
-            success = dao.updateAccountState(sourceAccount);
-            if (success) dao.updateAccountState(destAccount);
+        TransferNetting netting = transferNetting;
+        if (netting != null) return netting.transfer(user, minor, description, sourceAccountId, destAccountId);
+        return transferMinor(user, minor, description, sourceAccountId, destAccountId);
+    }
+
+    /**
+     * Transfer of an authorized user, both accounts and both history entries are stored in one commit.
+     */
+    boolean transferMinor(User user, long minor, String description, int sourceAccountId, int destAccountId) throws SQLException {
+        Operation withdraw = new Withdraw(user, minor,description, accountWithId(sourceAccountId));
+        Operation payment = new PaymentIn(user, minor,description, accountWithId(destAccountId));
+        boolean success;
+        AccountLocks locks = accountLocks;
+        if (locks != null) locks.lock(sourceAccountId, destAccountId);
+        try {
+            boolean committed = false;
+            dao.beginTransaction();
+            try {
+                success = dao.applyDelta(sourceAccountId, Money.negate(minor), 0)
+                        && dao.applyDelta(destAccountId, minor, DAO.NO_MIN_BALANCE);
+                if (success) {
+                    history.logOperation(withdraw, true);
+                    history.logOperation(payment, true);
+                    dao.commitTransaction();
+                    committed = true;
+                }
+            }
+            finally {
+                if (!committed) dao.rollbackTransaction();
+            }
+            if (!success) {
+                history.logOperation(withdraw, false);
+                history.logOperation(payment, false);
+            }
+            return success;
+        }
+        finally {
+            if (locks != null) locks.unlock(sourceAccountId, destAccountId);
+        }
+    }
+
+    /**
+     * Pays in all orders, batchChunkSize orders per transaction. Orders of the same account
+     * in a chunk change its balance once and all operations are logged with one insert.
+     * A chunk that fails as a whole is repeated order by order, so one bad order does not
+     * fail the others. Its error and errors of the repeated orders go to the batch error listener.
+     * @return for every order, in list order, whether it succeeded
+     */
+    public boolean[] paymentInBatch(User user, List<PaymentOrder> orders) throws SQLException {
+        return applyBatch(user, orders, false);
+    }
+
+    /**
+     * Withdraws all orders like {@link #paymentInBatch}, the user is authorized once for the whole batch.
+     * When the account cannot cover all its orders of a chunk together they are withdrawn one by one,
+     * in list order, as long as the balance allows.
+     */
+    public boolean[] paymentOutBatch(User user, List<PaymentOrder> orders) throws OperationIsNotAllowedException, SQLException {
+        if (orders.isEmpty()) return new boolean[0];
+        Operation operation = batchOperation(user, orders.get(0), true);
+        if (!auth.canInvokeOperation(operation, user)) {
+            history.logUnauthorizedOperation(operation, false);
+            throw new OperationIsNotAllowedException("Unauthorized operation");
+        }
+        return applyBatch(user, orders, true);
+    }
+
+    private boolean[] applyBatch(User user, List<PaymentOrder> orders, boolean withdraw) throws SQLException {
+        boolean[] results = new boolean[orders.size()];
+        int chunkSize = batchChunkSize;
+        for (int from = 0; from < orders.size(); from += chunkSize) {
+            int to = Math.min(orders.size(), from + chunkSize);
+            try {
+                applyChunk(user, orders, from, to, withdraw, results);
+            }
+            catch (SQLException e) {
+                failedBatchChunks.incrementAndGet();
+                batchError(e);
+                for (int i = from; i < to; i++) results[i] = applySingle(user, orders.get(i), withdraw);
+            }
+        }
+        return results;
+    }
+
+    private void applyChunk(User user, List<PaymentOrder> orders, int from, int to, boolean withdraw, boolean[] results) throws SQLException {
+        Map<Integer, List<Integer>> byAccount = new LinkedHashMap<>();
+        for (int i = from; i < to; i++) {
+            byAccount.computeIfAbsent(orders.get(i).getAccountId(), id -> new ArrayList<>()).add(i);
+        }
+        boolean committed = false;
+        dao.beginTransaction();
+        try {
+            for (Map.Entry<Integer, List<Integer>> group : byAccount.entrySet()) {
+                int accountId = group.getKey();
+                List<Integer> items = group.getValue();
+                long total = 0;
+                for (int i : items) total = Money.add(total, orders.get(i).getAmmount());
+                boolean success = withdraw
+                        ? dao.applyDelta(accountId, Money.negate(total), 0)
+                        : dao.applyDelta(accountId, total, DAO.NO_MIN_BALANCE);
+                for (int i : items) results[i] = success;
+                if (!success && withdraw && items.size() > 1) {
+                    for (int i : items) results[i] = dao.applyDelta(accountId, Money.negate(orders.get(i).getAmmount()), 0);
+                }
+            }
+            List<HistoryEntry> entries = new ArrayList<>(to - from);
+            for (int i = from; i < to; i++) {
+                entries.add(new HistoryEntry(batchOperation(user, orders.get(i), withdraw), results[i]));
+            }
+            history.logOperations(entries);
+            dao.commitTransaction();
+            committed = true;
+        }
+        finally {
+            if (!committed) dao.rollbackTransaction();
+        }
+    }
+
+    private boolean applySingle(User user, PaymentOrder order, boolean withdraw) {
+        try {
+            return withdraw
+                    ? paymentOutMinor(user, order.getAmmount(), order.getDescription(), order.getAccountId())
+                    : paymentInMinor(user, order.getAmmount(), order.getDescription(), order.getAccountId());
+        }
+        catch (SQLException | OperationIsNotAllowedException e) {
+            failedBatchOrders.incrementAndGet();
+            batchError(e);
+            return false;
+        }
+    }
+
+    private void batchError(Exception e) {
+        Consumer<Exception> listener = batchErrorListener;
+        if (listener != null) listener.accept(e);
+    }
+
+    private static Operation batchOperation(User user, PaymentOrder order, boolean withdraw) {
+        Account account = accountWithId(order.getAccountId());
+        return withdraw
+                ? new Withdraw(user, order.getAmmount(), order.getDescription(), account)
+                : new PaymentIn(user, order.getAmmount(), order.getDescription(), account);
+    }
+
+    public void setBatchChunkSize(int batchChunkSize) {
+        if (batchChunkSize < 1) throw new IllegalArgumentException("Bad chunk size");
+        this.batchChunkSize = batchChunkSize;
+    }
+
+    /**
+     * Receives errors the batch calls handle themselves, first of a chunk that is then repeated
+     * order by order, then of every repeated order that failed. Called from the thread of the
+     * batch call. Null turns it off.
+     */
+    public void setBatchErrorListener(Consumer<Exception> batchErrorListener) {
+        this.batchErrorListener = batchErrorListener;
+    }
+
+    /**
+     * Chunks rolled back and repeated order by order.
+     */
+    public long getFailedBatchChunks() {
+        return failedBatchChunks.get();
+    }
+
+    /**
+     * Orders of repeated chunks that failed with an error, not the ones refused for lack of funds.
+     */
+    public long getFailedBatchOrders() {
+        return failedBatchOrders.get();
+    }
+
+    /**
+     * Changes the balance, in minor units, with a function of its current value using {@link DAO#compareAndSetAccountState}.
+     * When another writer changed the account in the meantime it is read again and the function repeated.
+     * @return account after the change or null when it does not exist
+     * @throws SQLTransientException when the account was changed by others in all attempts
+     */
+    public Account updateBalance(int accountId, LongUnaryOperator change) throws SQLException {
+        AccountLocks locks = accountLocks;
+        for (int attempt = 1; ; attempt++) {
+            if (locks != null) locks.lock(accountId);
+            try {
+                Account account = dao.findAccountById(accountId);
+                if (account == null) return null;
+                account.setAmmount(change.applyAsLong(account.getAmmount()));
+                updateAttempts.incrementAndGet();
+                if (dao.compareAndSetAccountState(account)) return account;
+            }
+            finally {
+                if (locks != null) locks.unlock(accountId);
+            }
+            updateConflicts.incrementAndGet();
+            if (attempt >= maxAttempts) {
+                failedUpdates.incrementAndGet();
+                throw new SQLTransientException("Account " + accountId + " changed by other writers in " + attempt + " attempts");
+            }
+            backoff(attempt);
+        }
+    }
+
+    /**
+     * Waits a random time up to backoffMillis doubled for every earlier retry, so writers
+     * that collided do not collide again at once.
+     */
+    private void backoff(int attempt) throws SQLException {
+        long limit = Math.min(maxBackoffMillis, backoffMillis << Math.min(attempt - 1, 20));
+        if (limit <= 0) return;
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(limit + 1));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting to retry account update", e);
+        }
+    }
+
+    public void setRetryPolicy(int maxAttempts, long backoffMillis, long maxBackoffMillis) {
+        if (maxAttempts < 1 || backoffMillis < 0 || maxBackoffMillis < backoffMillis) {
+            throw new IllegalArgumentException("Bad retry policy");
         }
-        history.logOperation(withdraw, success);
-        history.logOperation(payment, success);
-        return success;
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public long getUpdateAttempts() {
+        return updateAttempts.get();
+    }
+
+    public long getUpdateConflicts() {
+        return updateConflicts.get();
+    }
+
+    public long getFailedUpdates() {
+        return failedUpdates.get();
+    }
+
+    /**
+     * Part of compare and set attempts that found the account changed by another writer.
+     */
+    public double getConflictRate() {
+        long attempts = updateAttempts.get();
+        return attempts == 0 ? 0 : (double) updateConflicts.get() / attempts;
+    }
+
+    /**
+     * Turns on the concurrent mode: payments on the same account run one at a time,
+     * payments on other accounts run in parallel. Null turns it off.
+     */
+    public void setAccountLocks(AccountLocks accountLocks) {
+        this.accountLocks = accountLocks;
+    }
+
+    public AccountLocks getAccountLocks() {
+        return accountLocks;
+    }
+
+    /**
+     * Turns on netting of internal payments, see {@link TransferNetting}. Null turns it off.
+     */
+    public void setTransferNetting(TransferNetting transferNetting) {
+        this.transferNetting = transferNetting;
+    }
+
+    public TransferNetting getTransferNetting() {
+        return transferNetting;
+    }
+
+    /**
+     * Balances are changed with {@link DAO#applyDelta}, operations only need the account id.
+     */
+    private static Account accountWithId(int accountId) {
+        Account account = new Account();
+        account.setId(accountId);
+        return account;
     }
 
     public static AccountManager buildBank() {
         try {
-            DAO dao = SQLiteDB.createDAO();
-            BankHistory history = new BankHistory(dao);
+            DAO dao = new UserDirectory(SQLiteDB.createDAO());
+            BankHistory history = new BankHistory(dao, new AuditWriter(dao));
             AuthenticationManager am = new AuthenticationManager(dao, history);
             AccountManager aManager = new AccountManager();
-            InterestOperator io = new InterestOperator(dao, aManager);
+            InterestOperator io = new InterestOperator(dao, aManager, history);
             aManager.dao = dao;
             aManager.auth = am;
             aManager.history = history;
             aManager.interestOperator = io;
+            aManager.sessions = new SessionRegistry(aManager::expired);
             return aManager;
         } catch (SQLException e) {
             e.printStackTrace();
@@ -103,4 +433,42 @@ public class AccountManager {
     public User getLoggedUser() {
         return loggedUser;
     }
+
+    /**
+     * Logs the user in without changing {@link #getLoggedUser()}, so one manager
+     * can serve many users at once.
+     * @return token of the new session
+     */
+    public String openSession(String userName, char[] password) throws UserUnnkownOrBadPasswordException, SQLException {
+        User user = auth.logIn(userName, password);
+        return sessions.open(user);
+    }
+
+    /**
+     * @return user of the session or null when the token is unknown or the session expired
+     */
+    public User getSessionUser(String token) {
+        return sessions.get(token);
+    }
+
+    public boolean closeSession(String token) throws SQLException {
+        User user = sessions.remove(token);
+        return user != null && auth.logOut(user);
+    }
+
+    public SessionRegistry getSessions() {
+        return sessions;
+    }
+
+    /**
+     * A failed logout goes to the error listener of the session registry.
+     */
+    private void expired(User user) {
+        try {
+            auth.logOut(user);
+        }
+        catch (SQLException e) {
+            throw new IllegalStateException("Logging out user of expired session failed", e);
+        }
+    }
 }
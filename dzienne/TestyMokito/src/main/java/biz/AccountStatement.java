@@ -0,0 +1,92 @@
+package biz;
+
+import db.dao.DAO;
+import model.Operation;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Pages of operations of one account, newest first. Pages continue from the (date, id)
+ * of the last returned operation, so reading a deep page costs the same as the first one
+ * and operations logged in the meantime do not shift the following pages.
+ */
+public class AccountStatement {
+    public static final int MAX_PAGE_SIZE = 500;
+
+    private final DAO dao;
+
+    public AccountStatement(DAO dao) {
+        this.dao = dao;
+    }
+
+    /**
+     * @param continuationToken null for the first page, otherwise token from the previous page
+     */
+    public StatementPage getPage(int accountId, String continuationToken, int pageSize) throws SQLException {
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE_SIZE);
+        Date beforeDate = null;
+        int beforeId = 0;
+        if (continuationToken != null) {
+            String[] key = decode(continuationToken, accountId);
+            beforeDate = new Date(Long.parseLong(key[1]));
+            beforeId = Integer.parseInt(key[2]);
+        }
+        // one more row tells whether there is a next page
+        List<Operation> operations = dao.findOperationsPage(accountId, beforeDate, beforeId, pageSize + 1);
+        String nextToken = null;
+        if (operations.size() > pageSize) {
+            operations = operations.subList(0, pageSize);
+            Operation last = operations.get(pageSize - 1);
+            nextToken = encode(accountId, last.getDate(), last.getId());
+        }
+        return new StatementPage(operations, nextToken);
+    }
+
+    private static String encode(int accountId, Date date, int operationId) {
+        String key = accountId + ":" + date.getTime() + ":" + operationId;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(key.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String[] decode(String token, int accountId) {
+        String[] key;
+        try {
+            key = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.US_ASCII).split(":");
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Bad continuation token", e);
+        }
+        if (key.length != 3 || !key[0].equals(String.valueOf(accountId))) {
+            throw new IllegalArgumentException("Continuation token does not belong to account " + accountId);
+        }
+        return key;
+    }
+
+    public static class StatementPage {
+        private final List<Operation> operations;
+        private final String nextToken;
+
+        StatementPage(List<Operation> operations, String nextToken) {
+            this.operations = operations;
+            this.nextToken = nextToken;
+        }
+
+        public List<Operation> getOperations() {
+            return operations;
+        }
+
+        /**
+         * @return token for the next page or null when this is the last one
+         */
+        public String getNextToken() {
+            return nextToken;
+        }
+
+        public boolean hasNext() {
+            return nextToken != null;
+        }
+    }
+}
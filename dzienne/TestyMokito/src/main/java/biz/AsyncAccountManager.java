@@ -0,0 +1,194 @@
+package biz;
+
+import model.User;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link AccountManager} operations on an executor, by default one virtual thread per call,
+ * so callers can compose them without blocking. A future cancelled or timed out before the
+ * operation started skips it, a running operation is interrupted, which stops its waits
+ * for connections and locks.
+ */
+public class AsyncAccountManager implements AutoCloseable {
+    public static final long NO_TIMEOUT = 0;
+
+    private final AccountManager accountManager;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private volatile long timeoutMillis = NO_TIMEOUT;
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+
+    public AsyncAccountManager(AccountManager accountManager) {
+        this(accountManager, Executors.newVirtualThreadPerTaskExecutor(), true);
+    }
+
+    /**
+     * The executor is not shut down by {@link #close()}.
+     */
+    public AsyncAccountManager(AccountManager accountManager, ExecutorService executor) {
+        this(accountManager, executor, false);
+    }
+
+    private AsyncAccountManager(AccountManager accountManager, ExecutorService executor, boolean ownsExecutor) {
+        this.accountManager = accountManager;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    public CompletableFuture<Boolean> paymentIn(User user, double ammount, String description, int accountId) {
+        return submit(() -> accountManager.paymentIn(user, ammount, description, accountId));
+    }
+
+    public CompletableFuture<Boolean> paymentOut(User user, double ammount, String description, int accountId) {
+        return submit(() -> accountManager.paymentOut(user, ammount, description, accountId));
+    }
+
+    public CompletableFuture<Boolean> internalPayment(User user, double ammount, String description, int sourceAccountId, int destAccountId) {
+        return submit(() -> accountManager.internalPayment(user, ammount, description, sourceAccountId, destAccountId));
+    }
+
+    /**
+     * Checks the password without changing {@link AccountManager#getLoggedUser()}, which is one for
+     * the whole manager, so concurrent logins of different users do not overwrite each other.
+     * The returned user is given to the other operations, a bad name or password fails the future
+     * with {@link model.exceptions.UserUnnkownOrBadPasswordException}.
+     */
+    public CompletableFuture<User> logIn(String userName, char[] password) {
+        return submit(() -> accountManager.auth.logIn(userName, password));
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> operation) {
+        Task<T> task = new Task<>();
+        queued.incrementAndGet();
+        try {
+            executor.execute(() -> task.run(operation));
+        }
+        catch (RuntimeException e) {
+            queued.decrementAndGet();
+            failed.incrementAndGet();
+            task.completeExceptionally(e);
+            return task;
+        }
+        long timeout = timeoutMillis;
+        if (timeout > 0) task.orTimeout(timeout, TimeUnit.MILLISECONDS);
+        return task;
+    }
+
+    /**
+     * Time after which every future returned from now on fails with TimeoutException,
+     * {@link #NO_TIMEOUT} waits forever. Callers can set a shorter one on a single future with orTimeout.
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        if (timeoutMillis < 0) throw new IllegalArgumentException("Bad timeout");
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Stops accepting operations, an executor created here is shut down after the running ones end.
+     */
+    public void close() {
+        if (ownsExecutor) executor.shutdown();
+    }
+
+    /**
+     * Operations submitted but not started yet.
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    public long getTimedOut() {
+        return timedOut.get();
+    }
+
+    /**
+     * Future that interrupts the thread running its operation when completed from outside.
+     */
+    private class Task<T> extends CompletableFuture<T> {
+        private Thread runner;
+
+        void run(Callable<T> operation) {
+            queued.decrementAndGet();
+            synchronized (this) {
+                if (isDone()) return;
+                runner = Thread.currentThread();
+            }
+            inFlight.incrementAndGet();
+            T result = null;
+            Exception failure = null;
+            try {
+                result = operation.call();
+            }
+            catch (Exception e) {
+                failure = e;
+            }
+            finally {
+                inFlight.decrementAndGet();
+                synchronized (this) {
+                    runner = null;
+                    // an interrupt meant for this operation must not hit the next task of a pooled thread
+                    Thread.interrupted();
+                }
+            }
+            // counted before the future completes, so a caller woken by it sees the counters up to date,
+            // taken back when a timeout or cancel completed the future first
+            AtomicLong outcome = failure == null ? completed : failed;
+            outcome.incrementAndGet();
+            boolean done = failure == null ? complete(result) : super.completeExceptionally(failure);
+            if (!done) outcome.decrementAndGet();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            cancelled.incrementAndGet();
+            boolean done = super.cancel(mayInterruptIfRunning);
+            if (done) interruptRunner();
+            else cancelled.decrementAndGet();
+            return done;
+        }
+
+        @Override
+        public boolean completeExceptionally(Throwable ex) {
+            boolean timeout = ex instanceof TimeoutException;
+            if (timeout) timedOut.incrementAndGet();
+            boolean done = super.completeExceptionally(ex);
+            if (done) interruptRunner();
+            else if (timeout) timedOut.decrementAndGet();
+            return done;
+        }
+
+        private synchronized void interruptRunner() {
+            if (runner != null && runner != Thread.currentThread()) runner.interrupt();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package biz;
+
+import db.dao.DAO;
+import model.HistoryEntry;
+import model.Operation;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes logged operations in the background, many operations per transaction.
+ * A batch is written when it reaches batchSize entries or when flushInterval passes
+ * from its first entry. When the queue is full callers wait for free space.
+ * Writers not closed by the application are closed when the JVM exits.
+ */
+public class AuditWriter implements AutoCloseable {
+    public static final int DEFAULT_CAPACITY = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 5;
+
+    // one shutdown hook for all writers, a closed writer is removed
+    private static final Set<AuditWriter> OPEN = ConcurrentHashMap.newKeySet();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (AuditWriter writer : OPEN) writer.close();
+        }, "audit-writer-shutdown"));
+    }
+
+    private final DAO dao;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final BlockingQueue<Pending> queue;
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    // sequence numbers are given before an entry is queued, so flush also waits for entries still being put
+    private final AtomicLong submitted = new AtomicLong();
+    // every sequence up to this one is written or failed; guarded by this
+    private long processed;
+    // sequences above processed that are already done, threads may queue out of sequence order; guarded by this
+    private final TreeSet<Long> processedAhead = new TreeSet<>();
+    // failed sequences not yet reported by a flush covering them, with their cause; guarded by this
+    private final TreeMap<Long, Throwable> failures = new TreeMap<>();
+    // highest target of a finished flush and flushes still waiting; guarded by this
+    private long acknowledged;
+    private int flushing;
+
+    private final AtomicLong writtenEntries = new AtomicLong();
+    private final AtomicLong writtenBatches = new AtomicLong();
+    private final AtomicLong failedEntries = new AtomicLong();
+    private final AtomicLong blockedSubmits = new AtomicLong();
+
+    public AuditWriter(DAO dao) {
+        this(dao, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public AuditWriter(DAO dao, int capacity, int batchSize, long flushIntervalMillis) {
+        if (batchSize < 1 || capacity < batchSize) throw new IllegalArgumentException("Bad queue capacity or batch size");
+        this.dao = dao;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.worker = new Thread(this::run, "audit-writer");
+        worker.setDaemon(true);
+        worker.start();
+        OPEN.add(this);
+    }
+
+    /**
+     * Puts the operation into the queue, the returned future completes when it is committed.
+     */
+    public CompletableFuture<Void> submit(Operation operation, boolean success) throws SQLException {
+        if (!running) throw new SQLException("Audit writer is closed");
+        Pending pending = new Pending(submitted.incrementAndGet(), new HistoryEntry(operation, success));
+        try {
+            if (!queue.offer(pending)) {
+                blockedSubmits.incrementAndGet();
+                queue.put(pending);
+            }
+        }
+        catch (InterruptedException e) {
+            // the sequence is taken, flush must not wait for it
+            processed(List.of(pending), null);
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for audit queue", e);
+        }
+        return pending.done;
+    }
+
+    /**
+     * Waits until everything submitted so far, by any thread, is written.
+     * Throws when an entry submitted before the call and after the last finished flush failed,
+     * so a failed entry is reported at least by every flush running when its failure is known.
+     */
+    public void flush() throws SQLException {
+        long target = submitted.get();
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(flushIntervalNanos) + 1;
+        synchronized (this) {
+            long from = acknowledged;
+            boolean waited = false;
+            flushing++;
+            try {
+                while (processed < target) {
+                    // entries queued after close, nobody else will write them
+                    if (!worker.isAlive()) writeRest();
+                    if (processed >= target) break;
+                    try {
+                        wait(waitMillis);
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for audit flush", e);
+                    }
+                }
+                waited = true;
+                Long failed = failures.higherKey(from);
+                if (failed != null && failed <= target) throw new SQLException("Audit flush failed", failures.get(failed));
+            }
+            finally {
+                if (waited) acknowledged = Math.max(acknowledged, target);
+                // failures are kept while a flush that started before them may still report them
+                if (--flushing == 0) failures.headMap(acknowledged, true).clear();
+            }
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(flushIntervalNanos, TimeUnit.NANOSECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || remaining <= 0) break;
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            }
+            catch (InterruptedException e) {
+                queue.drainTo(batch);
+            }
+            if (!batch.isEmpty()) write(batch);
+            batch.clear();
+        }
+    }
+
+    private void write(List<Pending> batch) {
+        List<HistoryEntry> entries = new ArrayList<>(batch.size());
+        for (Pending p : batch) entries.add(p.entry);
+        try {
+            dao.logOperations(entries);
+            writtenEntries.addAndGet(entries.size());
+            writtenBatches.incrementAndGet();
+            for (Pending p : batch) p.done.complete(null);
+            processed(batch, null);
+        }
+        catch (SQLException | RuntimeException e) {
+            e.printStackTrace();
+            failedEntries.addAndGet(entries.size());
+            for (Pending p : batch) p.done.completeExceptionally(e);
+            processed(batch, e);
+        }
+    }
+
+    private synchronized void processed(List<Pending> batch, Throwable failure) {
+        for (Pending p : batch) {
+            if (failure != null) failures.put(p.sequence, failure);
+            processedAhead.add(p.sequence);
+        }
+        while (processedAhead.remove(processed + 1)) processed++;
+        notifyAll();
+    }
+
+    private void writeRest() {
+        List<Pending> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) write(rest);
+    }
+
+    /**
+     * Stops accepting operations and writes everything that is already queued.
+     */
+    public void close() {
+        running = false;
+        OPEN.remove(this);
+        if (Thread.currentThread() == worker) return;
+        try {
+            worker.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        writeRest();
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getWrittenEntries() {
+        return writtenEntries.get();
+    }
+
+    public long getWrittenBatches() {
+        return writtenBatches.get();
+    }
+
+    public long getFailedEntries() {
+        return failedEntries.get();
+    }
+
+    public long getBlockedSubmits() {
+        return blockedSubmits.get();
+    }
+
+    private static class Pending {
+        final long sequence;
+        final HistoryEntry entry;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(long sequence, HistoryEntry entry) {
+            this.sequence = sequence;
+            this.entry = entry;
+        }
+    }
+}
@@ -2,23 +2,35 @@ package biz;
 
 import db.dao.DAO;
 import model.Account;
+import model.HistoryEntry;
 import model.Operation;
 import model.User;
 import model.operations.LogIn;
 import model.operations.LogOut;
 
 import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Created by Krzysztof Podlaski on 04.03.2018.
  */
 public class BankHistory {
     DAO dao;
+    AuditWriter auditWriter;
 
     public BankHistory(DAO dao) {
         this.dao = dao;
     }
 
+    /**
+     * Operations are queued in auditWriter and stored in batches instead of one by one.
+     */
+    public BankHistory(DAO dao, AuditWriter auditWriter) {
+        this.dao = dao;
+        this.auditWriter = auditWriter;
+    }
+
     public void logLoginSuccess(User user) throws SQLException {
         Operation o = new LogIn(user,"Logowanie ");
         logOperation(o,true);
@@ -34,19 +46,50 @@ public class BankHistory {
         logOperation(o,true);
     }
 
-    public void logPaymentIn(Account account, double ammount, boolean success) {
+    public void logPaymentIn(Account account, long ammount, boolean success) {
         throw new RuntimeException("Not implemented");
     }
 
-    public void logPaymentOut(Account account, double ammount, boolean success) {
+    public void logPaymentOut(Account account, long ammount, boolean success) {
         throw new RuntimeException("Not implemented");
     }
 
     public void logOperation(Operation operation, boolean success) throws SQLException {
-
+        // inside a transaction the entry has to be committed together with it
+        if (auditWriter != null && !dao.isInTransaction()) {
+            auditWriter.submit(operation, success);
+            return;
+        }
         dao.logOperation(operation,success);
     }
 
+    /**
+     * Logs many operations at once, inside a transaction they are stored with a single batch insert.
+     */
+    public void logOperations(List<HistoryEntry> entries) throws SQLException {
+        if (auditWriter != null && !dao.isInTransaction()) {
+            for (HistoryEntry entry : entries) auditWriter.submit(entry.getOperation(), entry.isSuccess());
+            return;
+        }
+        dao.logOperations(entries);
+    }
+
+    /**
+     * Logs operation, returned future completes when it is stored in database.
+     */
+    public CompletableFuture<Void> logOperationAsync(Operation operation, boolean success) throws SQLException {
+        if (auditWriter != null && !dao.isInTransaction()) return auditWriter.submit(operation, success);
+        dao.logOperation(operation, success);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Waits until all logged operations are stored in database.
+     */
+    public void flush() throws SQLException {
+        if (auditWriter != null) auditWriter.flush();
+    }
+
     public void logUnauthorizedOperation(Operation operation, boolean success) {
 
         throw new RuntimeException("Not implemented");
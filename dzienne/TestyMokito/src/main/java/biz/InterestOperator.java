@@ -2,35 +2,358 @@ package biz;
 
 import db.dao.DAO;
 import model.Account;
+import model.HistoryEntry;
+import model.Money;
 import model.Operation;
 import model.User;
 import model.operations.Interest;
 
+import java.math.RoundingMode;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 /**
  * Created by Krzysztof Podlaski on 07.03.2018.
  */
 public class InterestOperator {
+    public static final int DEFAULT_PAGE_SIZE = DAO.DEFAULT_CHUNK_SIZE;
+    public static final int DEFAULT_PAGES_IN_FLIGHT = 4;
+    public static final long DEFAULT_REPORT_INTERVAL_MILLIS = 5000;
+    // accounts counted by one fork/join task without splitting further
+    private static final int SPLIT_THRESHOLD = 64;
+    private static final String DESCRIPTION = "Interest ...";
+
     protected DAO dao;
     protected AccountManager accountManager;
     protected BankHistory bankHistory;
-    private double interestFactor =.2;
+    // millionths of the balance, see Money.RATE_SCALE
+    private volatile long interestRate = Money.rateOf(.2);
+    private volatile RoundingMode interestRounding = RoundingMode.HALF_EVEN;
+    private volatile User operatorUser;
+    private volatile int pageSize = DEFAULT_PAGE_SIZE;
+    private volatile int parallelism = Runtime.getRuntime().availableProcessors();
+    private volatile long reportIntervalMillis = DEFAULT_REPORT_INTERVAL_MILLIS;
+    private volatile Consumer<String> progressListener;
+    private volatile Consumer<Exception> errorListener;
+
+    private final AtomicLong processedAccounts = new AtomicLong();
+    private final AtomicLong creditedAccounts = new AtomicLong();
+    private final AtomicLong failedAccounts = new AtomicLong();
+    private final AtomicLong failedPages = new AtomicLong();
+    private volatile long totalAccounts;
+    private volatile long startNanos;
 
+    /**
+     * History is taken from the account manager, which has to have it set already.
+     */
     public InterestOperator (DAO dao, AccountManager am){
+        this(dao, am, am == null ? null : am.history);
+    }
+
+    public InterestOperator(DAO dao, AccountManager am, BankHistory bankHistory) {
         this.dao=dao;
         accountManager = am;
+        this.bankHistory = bankHistory;
+    }
+
+    /**
+     * @return true when the interest was credited, false when the account does not exist
+     */
+    public boolean countInterestForAccount(Account account) throws SQLException {
+        User user = getInterestOperatorUser();
+        String desc = DESCRIPTION;
+        // counted from the stored balance, the given account can be outdated
+        long rate = interestRate;
+        RoundingMode rounding = interestRounding;
+        long[] interest = new long[1];
+        // an event sourced DAO needs the change and its log in one transaction
+        boolean transaction = dao.isEventSourced();
+        if (transaction) dao.beginTransaction();
+        boolean committed = !transaction;
+        try {
+            Account updated = accountManager.updateBalance(account.getId(), ammount -> {
+                interest[0] = Money.multiply(ammount, rate, rounding);
+                return Money.add(ammount, interest[0]);
+            });
+            Operation operation=new Interest(user,interest[0],desc,account);
+            bankHistory.logOperation(operation,updated != null);
+            if (transaction) {
+                dao.commitTransaction();
+                committed = true;
+            }
+            return updated != null;
+        }
+        finally {
+            if (!committed) dao.rollbackTransaction();
+        }
     }
 
-    public void countInterestForAccount(Account account) throws SQLException {
-        double ammount = account.getAmmount();
-        double interest = ammount*interestFactor;
-        User user = dao.findUserByName("InterestOperator");
-        String desc = "Interest ...";
-        boolean success = accountManager.paymentIn(user,interest,desc,account.getId());
-        Operation operation=new Interest(user,interest,desc,account);
-        bankHistory.logOperation(operation,success);
+    /**
+     * Credits interest to every account. Accounts are read in pages of pageSize ids, interest of a page
+     * is counted in parallel on a fork/join pool and the page is written by one writer thread in one
+     * transaction: a balance change and an Interest operation for every account. Reading, counting and
+     * writing of different pages overlap, at most DEFAULT_PAGES_IN_FLIGHT pages wait for the writer.
+     * A page whose transaction fails is repeated account by account with {@link #countInterestForAccount}.
+     * Every reportInterval, and once at the end, {@link #progress()} is given to the progress listener.
+     * @return number of accounts credited
+     */
+    public long countInterestForAllAccounts() throws SQLException {
+        User user = getInterestOperatorUser();
+        long rate = interestRate;
+        RoundingMode rounding = interestRounding;
+        int size = pageSize;
+        processedAccounts.set(0);
+        creditedAccounts.set(0);
+        failedAccounts.set(0);
+        failedPages.set(0);
+        totalAccounts = dao.countAccounts();
+        startNanos = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        ExecutorService writer = Executors.newSingleThreadExecutor(daemon("interest-writer"));
+        Consumer<String> listener = progressListener;
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(daemon("interest-progress"));
+        if (listener != null) {
+            reporter.scheduleAtFixedRate(() -> listener.accept(progress()), reportIntervalMillis, reportIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        Deque<Future<?>> written = new ArrayDeque<>();
+        try {
+            int afterId = 0;
+            while (true) {
+                List<Account> page = dao.findAccountsPage(afterId, size);
+                if (page.isEmpty()) break;
+                afterId = page.get(page.size() - 1).getId();
+                Interest[] operations = new Interest[page.size()];
+                ForkJoinTask<Void> counting = pool.submit(new CountInterest(page, operations, 0, page.size(), user, rate, rounding));
+                written.add(writer.submit(() -> {
+                    counting.join();
+                    writePage(page, operations);
+                    return null;
+                }));
+                while (written.size() > DEFAULT_PAGES_IN_FLIGHT) written.poll().get();
+            }
+            while (!written.isEmpty()) written.poll().get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while counting interest", e);
+        }
+        catch (ExecutionException e) {
+            throw new SQLException("Counting interest failed", e.getCause());
+        }
+        finally {
+            writer.shutdownNow();
+            pool.shutdownNow();
+            reporter.shutdownNow();
+            if (listener != null) listener.accept(progress());
+        }
+        return creditedAccounts.get();
     }
 
+    /**
+     * Runs on the writer thread, one transaction per page.
+     */
+    private void writePage(List<Account> page, Interest[] operations) {
+        List<HistoryEntry> entries = new ArrayList<>(page.size());
+        int credited = 0;
+        int overflowed = 0;
+        try {
+            boolean committed = false;
+            dao.beginTransaction();
+            try {
+                for (Interest operation : operations) {
+                    if (operation == null) {
+                        overflowed++;
+                        continue;
+                    }
+                    if (operation.getAmmount() == 0) continue;
+                    boolean success = dao.applyDelta(operation.getAccount().getId(), operation.getAmmount(), DAO.NO_MIN_BALANCE);
+                    entries.add(new HistoryEntry(operation, success));
+                    if (success) credited++;
+                }
+                bankHistory.logOperations(entries);
+                dao.commitTransaction();
+                committed = true;
+            }
+            finally {
+                if (!committed) dao.rollbackTransaction();
+            }
+            creditedAccounts.addAndGet(credited);
+            failedAccounts.addAndGet(entries.size() - credited + overflowed);
+        }
+        catch (SQLException | RuntimeException e) {
+            failedPages.incrementAndGet();
+            error(e);
+            for (Account account : page) {
+                try {
+                    if (countInterestForAccount(account)) creditedAccounts.incrementAndGet();
+                    else failedAccounts.incrementAndGet();
+                }
+                catch (SQLException | RuntimeException single) {
+                    failedAccounts.incrementAndGet();
+                    error(single);
+                }
+            }
+        }
+        processedAccounts.addAndGet(page.size());
+    }
+
+    private void error(Exception e) {
+        Consumer<Exception> listener = errorListener;
+        if (listener != null) listener.accept(e);
+    }
+
+    public String progress() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long processed = processedAccounts.get();
+        double rate = seconds > 0 ? processed / seconds : 0.0;
+        long left = Math.max(0, totalAccounts - processed);
+        return String.format("Interest: %d of %d accounts, %d credited, %d failed, %.0f accounts/s, ETA %s",
+                processed, totalAccounts, creditedAccounts.get(), failedAccounts.get(), rate,
+                rate > 0 ? Math.round(left / rate) + " s" : "unknown");
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Accounts read per query and written per transaction by {@link #countInterestForAllAccounts}.
+     */
+    public void setPageSize(int pageSize) {
+        if (pageSize < 1) throw new IllegalArgumentException("Bad page size");
+        this.pageSize = pageSize;
+    }
+
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("Bad parallelism");
+        this.parallelism = parallelism;
+    }
+
+    public void setReportIntervalMillis(long reportIntervalMillis) {
+        if (reportIntervalMillis < 1) throw new IllegalArgumentException("Bad report interval");
+        this.reportIntervalMillis = reportIntervalMillis;
+    }
+
+    /**
+     * Receives progress of {@link #countInterestForAllAccounts}, for example System.out::println.
+     * Called from a reporting thread, the last time from the counting one. Null turns reporting off.
+     */
+    public void setProgressListener(Consumer<String> progressListener) {
+        this.progressListener = progressListener;
+    }
 
+    public long getProcessedAccounts() {
+        return processedAccounts.get();
+    }
+
+    public long getCreditedAccounts() {
+        return creditedAccounts.get();
+    }
+
+    public long getFailedAccounts() {
+        return failedAccounts.get();
+    }
+
+    /**
+     * Pages of the last run whose transaction failed and whose accounts were credited one by one.
+     */
+    public long getFailedPages() {
+        return failedPages.get();
+    }
+
+    /**
+     * Receives errors {@link #countInterestForAllAccounts} handles itself, of a page that is then
+     * written account by account and of every account that failed then. Called from the writer thread.
+     * Null turns it off.
+     */
+    public void setErrorListener(Consumer<Exception> errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    public void setInterestRate(double interestFactor) {
+        this.interestRate = Money.rateOf(interestFactor);
+    }
+
+    /**
+     * How interest is rounded to whole grosz, HALF_EVEN by default.
+     */
+    public void setInterestRounding(RoundingMode interestRounding) {
+        this.interestRounding = interestRounding;
+    }
+
+    /**
+     * User that makes interest payments, read once and reused for all accounts.
+     */
+    protected User getInterestOperatorUser() throws SQLException {
+        User user = operatorUser;
+        if (user == null) {
+            user = dao.findUserByName("InterestOperator");
+            operatorUser = user;
+        }
+        return user;
+    }
+
+    /**
+     * Counts interest of a range of a page, halves bigger ranges and counts them in parallel.
+     */
+    private static class CountInterest extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Account> page;
+        private final Interest[] operations;
+        private final int from;
+        private final int to;
+        private final User user;
+        private final long rate;
+        private final RoundingMode rounding;
+
+        CountInterest(List<Account> page, Interest[] operations, int from, int to, User user, long rate, RoundingMode rounding) {
+            this.page = page;
+            this.operations = operations;
+            this.from = from;
+            this.to = to;
+            this.user = user;
+            this.rate = rate;
+            this.rounding = rounding;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new CountInterest(page, operations, from, middle, user, rate, rounding),
+                        new CountInterest(page, operations, middle, to, user, rate, rounding));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                Account account = page.get(i);
+                try {
+                    long interest = Money.multiply(account.getAmmount(), rate, rounding);
+                    operations[i] = new Interest(user, interest, DESCRIPTION, account);
+                }
+                catch (ArithmeticException e) {
+                    // left empty, the writer counts the account as failed
+                }
+            }
+        }
+    }
 }
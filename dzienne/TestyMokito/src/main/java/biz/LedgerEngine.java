@@ -0,0 +1,430 @@
+package biz;
+
+import db.dao.DAO;
+import model.Account;
+import model.HistoryEntry;
+import model.Money;
+import model.Operation;
+import model.User;
+import model.exceptions.OperationIsNotAllowedException;
+import model.operations.PaymentIn;
+import model.operations.Withdraw;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Alternative to the direct DAO path of {@link AccountManager}: callers put balance changes
+ * into a pre-allocated ring of commands and one writer thread applies them, in order,
+ * to balances it keeps in memory. Nothing is locked per account, so hot accounts do
+ * not make callers wait for each other. The writer takes all commands published so far,
+ * up to maxBatch, stores the changed balances and their history entries in one DAO
+ * transaction and only then completes the futures of the whole batch.
+ * <p>
+ * Balances are read from the DAO once and kept, but only the net change of every account
+ * in a batch is written, with {@link DAO#applyDelta}, so changes made by other writers are
+ * not overwritten. When a net withdrawal finds less money in the database than the engine
+ * expected, the batch is rolled back, its accounts are read again and the batch is applied
+ * once more. Until then the engine checks funds against the balance it read.
+ * <p>
+ * At most maxAccounts balances are kept between batches, the least recently used ones are
+ * dropped and read again when needed. A batch may hold more for the accounts it changes.
+ */
+public class LedgerEngine implements AutoCloseable {
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final int DEFAULT_MAX_BATCH = 512;
+    public static final int DEFAULT_MAX_ACCOUNTS = 65536;
+    private static final int SPINS_BEFORE_PARK = 200;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static final int PAYMENT_IN = 0;
+    private static final int WITHDRAW = 1;
+    private static final int TRANSFER = 2;
+
+    // set in claims by close(), no sequence can be claimed after it
+    private static final long CLOSED = 1L << 62;
+
+    private final DAO dao;
+    private final BankHistory history;
+    private final AuthenticationManager auth;
+    private final Command[] ring;
+    private final int mask;
+    private final int maxBatch;
+    private final int maxAccounts;
+    private final Thread writer;
+
+    // number of sequences claimed by publishers, with the CLOSED bit
+    private final AtomicLong claims = new AtomicLong();
+    // last sequence whose command was acknowledged, its slot can be reused
+    private volatile long consumed = -1;
+    private volatile boolean writerParked;
+    private volatile boolean running = true;
+
+    // used only by the writer thread, in order of last use
+    private final Map<Integer, Account> balances = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile int cachedAccounts;
+
+    private final AtomicLong fullRingWaits = new AtomicLong();
+    private volatile long appliedCommands;
+    private volatile long writtenBatches;
+    private volatile long failedBatches;
+    private volatile long staleBatches;
+
+    public LedgerEngine(AccountManager accountManager) {
+        this(accountManager, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH);
+    }
+
+    public LedgerEngine(AccountManager accountManager, int capacity, int maxBatch) {
+        this(accountManager, capacity, maxBatch, DEFAULT_MAX_ACCOUNTS);
+    }
+
+    /**
+     * @param capacity number of commands in the ring, rounded up to a power of two
+     * @param maxAccounts number of balances kept in memory between batches
+     */
+    public LedgerEngine(AccountManager accountManager, int capacity, int maxBatch, int maxAccounts) {
+        if (capacity < 1 || maxBatch < 1) throw new IllegalArgumentException("Bad capacity or batch size");
+        if (maxAccounts < 1) throw new IllegalArgumentException("Bad number of accounts");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) size <<= 1;
+        this.dao = accountManager.dao;
+        this.history = accountManager.history;
+        this.auth = accountManager.auth;
+        this.ring = new Command[size];
+        for (int i = 0; i < size; i++) ring[i] = new Command();
+        this.mask = size - 1;
+        this.maxBatch = Math.min(maxBatch, size);
+        this.maxAccounts = maxAccounts;
+        // Java can not bind a thread to a core, a dedicated platform thread is the closest
+        this.writer = new Thread(this::run, "ledger-writer");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MAX_PRIORITY);
+        writer.start();
+    }
+
+    public CompletableFuture<Boolean> paymentIn(User user, double ammount, String description, int accountId) {
+        return publish(PAYMENT_IN, user, Money.fromDouble(ammount), description, accountId, -1);
+    }
+
+    public CompletableFuture<Boolean> paymentOut(User user, double ammount, String description, int accountId) throws OperationIsNotAllowedException {
+        long minor = Money.fromDouble(ammount);
+        authorize(user, new Withdraw(user, minor, description, accountWithId(accountId)));
+        return publish(WITHDRAW, user, minor, description, accountId, -1);
+    }
+
+    public CompletableFuture<Boolean> internalPayment(User user, double ammount, String description, int sourceAccountId, int destAccountId) throws OperationIsNotAllowedException {
+        long minor = Money.fromDouble(ammount);
+        authorize(user, new Withdraw(user, minor, description, accountWithId(sourceAccountId)));
+        return publish(TRANSFER, user, minor, description, sourceAccountId, destAccountId);
+    }
+
+    private void authorize(User user, Operation operation) throws OperationIsNotAllowedException {
+        if (!auth.canInvokeOperation(operation, user)) {
+            history.logUnauthorizedOperation(operation, false);
+            throw new OperationIsNotAllowedException("Unauthorized operation");
+        }
+    }
+
+    private CompletableFuture<Boolean> publish(int type, User user, long ammount, String description, int accountId, int destAccountId) {
+        long sequence = claim();
+        if (sequence < 0) return CompletableFuture.failedFuture(new SQLException("Ledger engine is closed"));
+        if (sequence - ring.length > consumed) {
+            fullRingWaits.incrementAndGet();
+            while (sequence - ring.length > consumed) LockSupport.parkNanos(PARK_NANOS);
+        }
+        Command command = ring[(int) (sequence & mask)];
+        CompletableFuture<Boolean> ack = new CompletableFuture<>();
+        command.type = type;
+        command.user = user;
+        command.ammount = ammount;
+        command.description = description;
+        command.accountId = accountId;
+        command.destAccountId = destAccountId;
+        command.ack = ack;
+        command.published = sequence;
+        if (writerParked) LockSupport.unpark(writer);
+        return ack;
+    }
+
+    /**
+     * Next sequence, or -1 once {@link #close()} fixed the last one. Claim and close change
+     * the same counter, so the writer stopping after the last claimed sequence misses none.
+     */
+    private long claim() {
+        while (true) {
+            long claimed = claims.get();
+            if ((claimed & CLOSED) != 0) return -1;
+            if (claims.compareAndSet(claimed, claimed + 1)) return claimed;
+        }
+    }
+
+    private long lastClaimed() {
+        return (claims.get() & ~CLOSED) - 1;
+    }
+
+    private void run() {
+        long next = 0;
+        int idle = 0;
+        // close() sets CLOSED before running, the last sequence is known when the loop sees it stopped
+        while (running || next <= lastClaimed()) {
+            long end = next - 1;
+            while (end - next + 1 < maxBatch && ring[(int) ((end + 1) & mask)].published == end + 1) end++;
+            if (end < next) {
+                if (++idle > SPINS_BEFORE_PARK) {
+                    writerParked = true;
+                    if (ring[(int) (next & mask)].published != next) LockSupport.parkNanos(PARK_NANOS);
+                    writerParked = false;
+                }
+                else Thread.onSpinWait();
+                continue;
+            }
+            idle = 0;
+            process(next, end);
+            next = end + 1;
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Account> eldest = balances.values().iterator();
+        while (balances.size() > maxAccounts) {
+            eldest.next();
+            eldest.remove();
+        }
+        cachedAccounts = balances.size();
+    }
+
+    private void process(long from, long to) {
+        Throwable failure = null;
+        boolean reloaded = false;
+        while (true) {
+            // balance of every changed account before the batch, in order of first change
+            Map<Integer, Long> before = new LinkedHashMap<>();
+            List<HistoryEntry> entries = new ArrayList<>();
+            try {
+                for (long sequence = from; sequence <= to; sequence++) {
+                    apply(ring[(int) (sequence & mask)], before, entries);
+                }
+                write(before, entries);
+                writtenBatches++;
+                break;
+            }
+            catch (StaleBalanceException e) {
+                restore(before);
+                // read again by the next attempt
+                for (Integer accountId : before.keySet()) balances.remove(accountId);
+                staleBatches++;
+                if (!reloaded) {
+                    reloaded = true;
+                    continue;
+                }
+                failure = e;
+                failedBatches++;
+                break;
+            }
+            catch (SQLException | RuntimeException e) {
+                restore(before);
+                failure = e;
+                failedBatches++;
+                break;
+            }
+        }
+        for (long sequence = from; sequence <= to; sequence++) {
+            Command command = ring[(int) (sequence & mask)];
+            CompletableFuture<Boolean> ack = command.ack;
+            boolean result = command.result;
+            command.clear();
+            if (failure == null) ack.complete(result);
+            else ack.completeExceptionally(failure);
+        }
+        appliedCommands += to - from + 1;
+        consumed = to;
+    }
+
+    /**
+     * Stores the net change of every account and the history entries in one transaction.
+     */
+    private void write(Map<Integer, Long> before, List<HistoryEntry> entries) throws SQLException {
+        boolean committed = false;
+        dao.beginTransaction();
+        try {
+            for (Map.Entry<Integer, Long> entry : before.entrySet()) {
+                int accountId = entry.getKey();
+                long delta = Money.subtract(balances.get(accountId).getAmmount(), entry.getValue());
+                if (delta == 0) continue;
+                if (!dao.applyDelta(accountId, delta, delta < 0 ? 0 : DAO.NO_MIN_BALANCE)) {
+                    throw new StaleBalanceException(accountId);
+                }
+            }
+            history.logOperations(entries);
+            dao.commitTransaction();
+            committed = true;
+        }
+        finally {
+            if (!committed) dao.rollbackTransaction();
+        }
+    }
+
+    private void restore(Map<Integer, Long> before) {
+        for (Map.Entry<Integer, Long> entry : before.entrySet()) {
+            balances.get(entry.getKey()).setAmmount(entry.getValue());
+        }
+    }
+
+    private void apply(Command command, Map<Integer, Long> before, List<HistoryEntry> entries) throws SQLException {
+        Account source = balance(command.accountId);
+        Account dest = command.type == TRANSFER ? balance(command.destAccountId) : null;
+        boolean success = false;
+        try {
+            switch (command.type) {
+                case PAYMENT_IN:
+                    if (source != null) {
+                        change(source, Money.add(source.getAmmount(), command.ammount), before);
+                        success = true;
+                    }
+                    break;
+                case WITHDRAW:
+                    if (source != null && source.getAmmount() >= command.ammount) {
+                        change(source, Money.subtract(source.getAmmount(), command.ammount), before);
+                        success = true;
+                    }
+                    break;
+                default:
+                    if (source != null && dest != null && source.getAmmount() >= command.ammount) {
+                        long destAmmount = Money.add(dest.getAmmount(), command.ammount);
+                        change(source, Money.subtract(source.getAmmount(), command.ammount), before);
+                        change(dest, destAmmount, before);
+                        success = true;
+                    }
+            }
+        }
+        catch (ArithmeticException e) {
+            success = false;
+        }
+        command.result = success;
+        Account account = accountWithId(command.accountId);
+        if (command.type == PAYMENT_IN) {
+            entries.add(new HistoryEntry(new PaymentIn(command.user, command.ammount, command.description, account), success));
+        }
+        else {
+            entries.add(new HistoryEntry(new Withdraw(command.user, command.ammount, command.description, account), success));
+        }
+        if (command.type == TRANSFER) {
+            Account destAccount = accountWithId(command.destAccountId);
+            entries.add(new HistoryEntry(new PaymentIn(command.user, command.ammount, command.description, destAccount), success));
+        }
+    }
+
+    private void change(Account account, long ammount, Map<Integer, Long> before) {
+        before.putIfAbsent(account.getId(), account.getAmmount());
+        account.setAmmount(ammount);
+    }
+
+    private Account balance(int accountId) throws SQLException {
+        Account account = balances.get(accountId);
+        if (account == null) {
+            account = dao.findAccountById(accountId);
+            if (account != null) balances.put(accountId, account);
+        }
+        return account;
+    }
+
+    private static Account accountWithId(int accountId) {
+        Account account = new Account();
+        account.setId(accountId);
+        return account;
+    }
+
+    /**
+     * Stops accepting commands and waits until the published ones are stored.
+     */
+    public void close() {
+        claims.getAndUpdate(claimed -> claimed | CLOSED);
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Commands published but not acknowledged yet.
+     */
+    public long getQueueDepth() {
+        return lastClaimed() - consumed;
+    }
+
+    /**
+     * Balances kept in memory after the last batch.
+     */
+    public int getCachedAccounts() {
+        return cachedAccounts;
+    }
+
+    public long getAppliedCommands() {
+        return appliedCommands;
+    }
+
+    public long getWrittenBatches() {
+        return writtenBatches;
+    }
+
+    public long getFailedBatches() {
+        return failedBatches;
+    }
+
+    /**
+     * Batches that found an account changed by another writer and were applied again.
+     */
+    public long getStaleBatches() {
+        return staleBatches;
+    }
+
+    /**
+     * Publishes that found the ring full and had to wait for the writer.
+     */
+    public long getFullRingWaits() {
+        return fullRingWaits.get();
+    }
+
+    /**
+     * The database balance of the account is lower than the one kept by the engine.
+     */
+    private static class StaleBalanceException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        StaleBalanceException(int accountId) {
+            super("Account " + accountId + " was changed by another writer");
+        }
+    }
+
+    private static class Command {
+        // sequence of the command in the slot, set last by the publisher
+        volatile long published = -1;
+        int type;
+        User user;
+        long ammount;
+        String description;
+        int accountId;
+        int destAccountId;
+        CompletableFuture<Boolean> ack;
+        boolean result;
+
+        void clear() {
+            user = null;
+            description = null;
+            ack = null;
+        }
+    }
+}
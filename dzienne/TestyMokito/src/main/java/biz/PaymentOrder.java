@@ -0,0 +1,48 @@
+package biz;
+
+import model.Money;
+
+/**
+ * Single payment of a batch, see {@link AccountManager#paymentInBatch}.
+ */
+public class PaymentOrder {
+    private final int accountId;
+    // in minor units, see Money
+    private final long ammount;
+    private final String description;
+
+    /**
+     * @param ammount in złoty, like the other public methods of {@link AccountManager}
+     */
+    public PaymentOrder(int accountId, double ammount, String description) {
+        this(accountId, description, Money.fromDouble(ammount));
+    }
+
+    private PaymentOrder(int accountId, String description, long ammount) {
+        this.accountId = accountId;
+        this.ammount = ammount;
+        this.description = description;
+    }
+
+    /**
+     * Order with the ammount already in minor units (grosz).
+     */
+    public static PaymentOrder ofMinor(int accountId, long ammount, String description) {
+        return new PaymentOrder(accountId, description, ammount);
+    }
+
+    public int getAccountId() {
+        return accountId;
+    }
+
+    /**
+     * Ammount in minor units.
+     */
+    public long getAmmount() {
+        return ammount;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
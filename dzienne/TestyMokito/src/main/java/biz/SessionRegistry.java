@@ -0,0 +1,204 @@
+package biz;
+
+import model.User;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Logged in users by random session token. Every lookup marks the session as used,
+ * sessions not used for idleTimeout are closed by a background thread.
+ * Expiry uses a timer wheel: a session waits in the slot of the tick when it may
+ * expire, each tick only the sessions in one slot are checked. A session used in
+ * the meantime is moved to the slot of its new deadline then, so lookups never
+ * touch the wheel.
+ */
+public class SessionRegistry implements AutoCloseable {
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(30);
+    public static final long DEFAULT_TICK_MILLIS = 1000;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+    private static final int TOKEN_BYTES = 16;
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final List<Queue<Session>> wheel;
+    private final long tickMillis;
+    private final long idleTicks;
+    private final Consumer<User> onExpire;
+    private final SecureRandom random = new SecureRandom();
+    private final Thread worker;
+    private volatile long currentTick;
+    private volatile boolean running = true;
+
+    private final AtomicLong openedSessions = new AtomicLong();
+    private final AtomicLong closedSessions = new AtomicLong();
+    private final AtomicLong expiredSessions = new AtomicLong();
+    private final AtomicLong failedExpiries = new AtomicLong();
+    private volatile Consumer<Exception> errorListener;
+
+    public SessionRegistry(Consumer<User> onExpire) {
+        this(DEFAULT_IDLE_TIMEOUT_MILLIS, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, onExpire);
+    }
+
+    /**
+     * @param onExpire called from the background thread with the user of every expired session
+     */
+    public SessionRegistry(long idleTimeoutMillis, long tickMillis, int wheelSize, Consumer<User> onExpire) {
+        if (tickMillis < 1 || idleTimeoutMillis < tickMillis || wheelSize < 1) {
+            throw new IllegalArgumentException("Bad idle timeout, tick or wheel size");
+        }
+        this.tickMillis = tickMillis;
+        this.idleTicks = (idleTimeoutMillis + tickMillis - 1) / tickMillis;
+        this.onExpire = onExpire;
+        this.wheel = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) wheel.add(new ConcurrentLinkedQueue<>());
+        this.worker = new Thread(this::run, "session-expiry");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Creates a session for an already authenticated user.
+     * @return token identifying the session in later calls
+     */
+    public String open(User user) {
+        Session session = new Session(newToken(), user, currentTick);
+        sessions.put(session.token, session);
+        schedule(session, session.lastUsedTick + idleTicks);
+        openedSessions.incrementAndGet();
+        return session.token;
+    }
+
+    /**
+     * @return user of the session or null when the token is unknown or the session expired
+     */
+    public User get(String token) {
+        if (token == null) return null;
+        Session session = sessions.get(token);
+        if (session == null) return null;
+        session.lastUsedTick = currentTick;
+        return session.user;
+    }
+
+    /**
+     * @return user of the closed session or null when there was no such session
+     */
+    public User remove(String token) {
+        if (token == null) return null;
+        Session session = sessions.remove(token);
+        if (session == null) return null;
+        closedSessions.incrementAndGet();
+        return session.user;
+    }
+
+    private String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private void schedule(Session session, long tick) {
+        wheel.get((int) (tick % wheel.size())).add(session);
+    }
+
+    private void run() {
+        long next = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        while (running) {
+            long remaining = next - System.nanoTime();
+            if (remaining > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(remaining);
+                }
+                catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            next += TimeUnit.MILLISECONDS.toNanos(tickMillis);
+            advance();
+        }
+    }
+
+    private void advance() {
+        long tick = currentTick + 1;
+        currentTick = tick;
+        Queue<Session> slot = wheel.get((int) (tick % wheel.size()));
+        // sessions moved back into this slot wait for the next round
+        for (int n = slot.size(); n > 0; n--) {
+            Session session = slot.poll();
+            if (session == null) break;
+            if (sessions.get(session.token) != session) continue;
+            long deadline = session.lastUsedTick + idleTicks;
+            if (deadline > tick) {
+                schedule(session, deadline);
+            }
+            else if (sessions.remove(session.token, session)) {
+                expiredSessions.incrementAndGet();
+                try {
+                    onExpire.accept(session.user);
+                }
+                catch (RuntimeException e) {
+                    failedExpiries.incrementAndGet();
+                    Consumer<Exception> listener = errorListener;
+                    if (listener != null) listener.accept(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops expiring sessions, open sessions stay valid.
+     */
+    public void close() {
+        running = false;
+        worker.interrupt();
+    }
+
+    public int getActiveSessions() {
+        return sessions.size();
+    }
+
+    public long getOpenedSessions() {
+        return openedSessions.get();
+    }
+
+    public long getClosedSessions() {
+        return closedSessions.get();
+    }
+
+    public long getExpiredSessions() {
+        return expiredSessions.get();
+    }
+
+    /**
+     * Expired sessions whose onExpire threw, they are removed all the same.
+     */
+    public long getFailedExpiries() {
+        return failedExpiries.get();
+    }
+
+    /**
+     * Receives exceptions thrown by onExpire, called from the background thread. Null turns it off.
+     */
+    public void setErrorListener(Consumer<Exception> errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    private static class Session {
+        final String token;
+        final User user;
+        volatile long lastUsedTick;
+
+        Session(String token, User user, long lastUsedTick) {
+            this.token = token;
+            this.user = user;
+            this.lastUsedTick = lastUsedTick;
+        }
+    }
+}
@@ -0,0 +1,452 @@
+package biz;
+
+import model.Account;
+import model.Money;
+import model.Operation;
+import model.User;
+import model.exceptions.OperationIsNotAllowedException;
+import model.exceptions.UserUnnkownOrBadPasswordException;
+import model.operations.PaymentIn;
+import model.operations.Withdraw;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Imports a transfer file line by line:
+ * <pre>
+ * IN,accountId,,ammount,description
+ * OUT,accountId,,ammount,description
+ * TRANSFER,sourceAccountId,destAccountId,ammount,description
+ * </pre>
+ * A reader thread cuts the file into batches, worker threads parse them, check the user
+ * may invoke each operation and look up all accounts of a batch with one query.
+ * The calling thread applies batches in file order through the batch payment API
+ * and a writer thread stores "line,status" for every line in the result file.
+ * Stages are connected by bounded queues, a slow stage stops the ones before it,
+ * so only a few batches are in memory regardless of the file size.
+ */
+public class TransferImport {
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_QUEUE_BATCHES = 8;
+    public static final long DEFAULT_REPORT_INTERVAL_MILLIS = 5000;
+
+    static final String OK = "OK";
+    static final String FAILED = "FAILED";
+
+    private final AccountManager accountManager;
+    private final User user;
+    private final int batchSize;
+    private final int queueBatches;
+    private final int workers;
+    private long reportIntervalMillis = DEFAULT_REPORT_INTERVAL_MILLIS;
+    private volatile Consumer<String> progressListener;
+    private volatile Consumer<Exception> errorListener;
+
+    private final AtomicLong readLines = new AtomicLong();
+    private final AtomicLong appliedLines = new AtomicLong();
+    private final AtomicLong failedLines = new AtomicLong();
+    private final AtomicLong rejectedLines = new AtomicLong();
+    private volatile long startNanos;
+
+    public TransferImport(AccountManager accountManager, User user) {
+        this(accountManager, user, DEFAULT_BATCH_SIZE, DEFAULT_QUEUE_BATCHES, Runtime.getRuntime().availableProcessors());
+    }
+
+    public TransferImport(AccountManager accountManager, User user, int batchSize, int queueBatches, int workers) {
+        if (batchSize < 1 || queueBatches < 1 || workers < 1) throw new IllegalArgumentException("Bad batch size, queue size or worker count");
+        this.accountManager = accountManager;
+        this.user = user;
+        this.batchSize = batchSize;
+        this.queueBatches = queueBatches;
+        this.workers = workers;
+    }
+
+    /**
+     * Imports the whole input file, returns when every line has its status in the output file.
+     * Every reportInterval, and once at the end, {@link #progress()} is given to the progress listener.
+     */
+    public void run(Path input, Path output) throws IOException, SQLException {
+        BlockingQueue<Future<Batch>> validated = new ArrayBlockingQueue<>(queueBatches);
+        BlockingQueue<Batch> applied = new ArrayBlockingQueue<>(queueBatches);
+        ExecutorService validators = Executors.newFixedThreadPool(workers, daemon("transfer-import-validate"));
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(daemon("transfer-import-progress"));
+        CompletableFuture<Void> reading = new CompletableFuture<>();
+        CompletableFuture<Void> writing = new CompletableFuture<>();
+        startNanos = System.nanoTime();
+        Consumer<String> listener = progressListener;
+        if (listener != null) {
+            reporter.scheduleAtFixedRate(() -> listener.accept(progress()), reportIntervalMillis, reportIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        Thread reader = daemon("transfer-import-read").newThread(() -> read(input, validated, validators, reading));
+        Thread writer = daemon("transfer-import-write").newThread(() -> write(output, applied, writing));
+        reader.start();
+        writer.start();
+        try {
+            while (true) {
+                Batch batch = validated.take().get();
+                if (batch == Batch.END) break;
+                apply(batch);
+                putOrFail(applied, batch, writing);
+            }
+            putOrFail(applied, Batch.END, writing);
+            reading.get();
+            writing.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while importing transfers", e);
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            throw new SQLException("Transfer import failed", cause);
+        }
+        finally {
+            reader.interrupt();
+            writer.interrupt();
+            validators.shutdownNow();
+            reporter.shutdownNow();
+            if (listener != null) listener.accept(progress());
+        }
+    }
+
+    /**
+     * Waits for space in the queue but stops when the consumer failed.
+     */
+    private static void putOrFail(BlockingQueue<Batch> queue, Batch batch, CompletableFuture<Void> consumer)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            if (consumer.isDone()) consumer.get();
+        }
+    }
+
+    private void read(Path input, BlockingQueue<Future<Batch>> validated, ExecutorService validators, CompletableFuture<Void> done) {
+        try (BufferedReader in = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+            Batch batch = new Batch(batchSize);
+            String line;
+            long lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty() || (lineNumber == 1 && line.regionMatches(true, 0, "type", 0, 4))) continue;
+                batch.records.add(new Record(lineNumber, line));
+                if (batch.records.size() == batchSize) {
+                    Batch full = batch;
+                    validated.put(validators.submit(() -> validate(full)));
+                    batch = new Batch(batchSize);
+                }
+            }
+            if (!batch.records.isEmpty()) {
+                Batch last = batch;
+                validated.put(validators.submit(() -> validate(last)));
+            }
+            validated.put(CompletableFuture.completedFuture(Batch.END));
+            done.complete(null);
+        }
+        catch (IOException | RuntimeException e) {
+            done.completeExceptionally(e);
+            try {
+                // wakes up the applying thread waiting for the next batch
+                validated.put(CompletableFuture.failedFuture(e));
+            }
+            catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        catch (InterruptedException e) {
+            done.completeExceptionally(e);
+        }
+    }
+
+    private Batch validate(Batch batch) throws SQLException {
+        Set<Integer> accountIds = new HashSet<>();
+        for (Record record : batch.records) {
+            readLines.incrementAndGet();
+            record.parse();
+            if (record.status != null) continue;
+            if (!accountManager.auth.canInvokeOperation(record.operation(user), user)) {
+                record.status = "REJECTED:unauthorized";
+                continue;
+            }
+            accountIds.add(record.accountId);
+            if (record.type == Record.TRANSFER) accountIds.add(record.destAccountId);
+        }
+        Set<Integer> found = new HashSet<>();
+        if (!accountIds.isEmpty()) {
+            for (Account account : accountManager.dao.findAccountsByIds(accountIds)) found.add(account.getId());
+        }
+        for (Record record : batch.records) {
+            if (record.status != null) continue;
+            if (!found.contains(record.accountId) || (record.type == Record.TRANSFER && !found.contains(record.destAccountId))) {
+                record.status = "REJECTED:unknown account";
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Consecutive payments of the same kind go through one batch call, transfers one by one, all in file order.
+     */
+    private void apply(Batch batch) {
+        List<Record> run = new ArrayList<>();
+        int runType = -1;
+        for (Record record : batch.records) {
+            if (record.status != null) {
+                rejectedLines.incrementAndGet();
+                continue;
+            }
+            if (record.type != runType) {
+                applyRun(run, runType);
+                runType = record.type;
+            }
+            run.add(record);
+        }
+        applyRun(run, runType);
+    }
+
+    /**
+     * A database error fails only the records it concerns, the import goes on with the next ones.
+     */
+    private void applyRun(List<Record> run, int type) {
+        if (run.isEmpty()) return;
+        if (type == Record.TRANSFER) {
+            for (Record record : run) {
+                boolean success;
+                try {
+                    // authorized in validate, the ammount stays in minor units
+                    success = accountManager.transferMinor(user, record.ammount, record.description, record.accountId, record.destAccountId);
+                }
+                catch (SQLException e) {
+                    error(e);
+                    success = false;
+                }
+                finish(record, success);
+            }
+        }
+        else {
+            List<PaymentOrder> orders = new ArrayList<>(run.size());
+            for (Record record : run) orders.add(PaymentOrder.ofMinor(record.accountId, record.ammount, record.description));
+            boolean[] results;
+            try {
+                results = type == Record.IN
+                        ? accountManager.paymentInBatch(user, orders)
+                        : accountManager.paymentOutBatch(user, orders);
+            }
+            catch (OperationIsNotAllowedException e) {
+                // nothing of the run was applied, the user may not invoke these operations
+                for (Record record : run) {
+                    record.status = "REJECTED:unauthorized";
+                    rejectedLines.incrementAndGet();
+                }
+                run.clear();
+                return;
+            }
+            catch (SQLException e) {
+                // batch calls handle errors of their chunks, this one came before anything was applied
+                error(e);
+                results = new boolean[run.size()];
+            }
+            for (int i = 0; i < run.size(); i++) finish(run.get(i), results[i]);
+        }
+        run.clear();
+    }
+
+    private void error(Exception e) {
+        Consumer<Exception> listener = errorListener;
+        if (listener != null) listener.accept(e);
+    }
+
+    private void finish(Record record, boolean success) {
+        record.status = success ? OK : FAILED;
+        if (success) appliedLines.incrementAndGet();
+        else failedLines.incrementAndGet();
+    }
+
+    /**
+     * Completes done only after the file is closed, run() interrupts this thread as soon as done completes.
+     */
+    private void write(Path output, BlockingQueue<Batch> applied, CompletableFuture<Void> done) {
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+                out.write("line,status");
+                out.newLine();
+                while (true) {
+                    Batch batch = applied.take();
+                    if (batch == Batch.END) break;
+                    for (Record record : batch.records) {
+                        out.write(record.lineNumber + "," + record.status);
+                        out.newLine();
+                    }
+                }
+            }
+        }
+        catch (IOException | RuntimeException | InterruptedException e) {
+            done.completeExceptionally(e);
+            return;
+        }
+        done.complete(null);
+    }
+
+    public String progress() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        long read = readLines.get();
+        return String.format("Import: %d lines read, %d applied, %d failed, %d rejected, %.0f lines/s",
+                read, appliedLines.get(), failedLines.get(), rejectedLines.get(), seconds > 0 ? read / seconds : 0.0);
+    }
+
+    public void setReportIntervalMillis(long reportIntervalMillis) {
+        if (reportIntervalMillis < 1) throw new IllegalArgumentException("Bad report interval");
+        this.reportIntervalMillis = reportIntervalMillis;
+    }
+
+    /**
+     * Receives progress of {@link #run}, for example System.out::println.
+     * Called from a reporting thread, the last time from the importing one. Null turns reporting off.
+     */
+    public void setProgressListener(Consumer<String> progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Receives database errors that failed lines, the lines are counted as failed either way.
+     * Errors of chunks the batch calls repeat order by order go to
+     * {@link AccountManager#setBatchErrorListener}. Called from the importing thread. Null turns it off.
+     */
+    public void setErrorListener(Consumer<Exception> errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    public long getReadLines() {
+        return readLines.get();
+    }
+
+    public long getAppliedLines() {
+        return appliedLines.get();
+    }
+
+    public long getFailedLines() {
+        return failedLines.get();
+    }
+
+    public long getRejectedLines() {
+        return rejectedLines.get();
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Usage: TransferImport inputFile resultFile userName password
+     */
+    public static void main(String[] args) throws IOException, SQLException, UserUnnkownOrBadPasswordException {
+        if (args.length != 4) {
+            System.err.println("Usage: TransferImport inputFile resultFile userName password");
+            System.exit(2);
+        }
+        AccountManager manager = AccountManager.buildBank();
+        if (manager == null || !manager.logIn(args[2], args[3].toCharArray())) {
+            System.err.println("Cannot log in");
+            System.exit(1);
+        }
+        new TransferImport(manager, manager.getLoggedUser()).run(Paths.get(args[0]), Paths.get(args[1]));
+        manager.history.flush();
+        manager.logOut(manager.getLoggedUser());
+        manager.history.flush();
+    }
+
+    private static class Batch {
+        static final Batch END = new Batch(0);
+
+        final List<Record> records;
+
+        Batch(int size) {
+            records = new ArrayList<>(size);
+        }
+    }
+
+    private static class Record {
+        static final int IN = 0;
+        static final int OUT = 1;
+        static final int TRANSFER = 2;
+
+        final long lineNumber;
+        String line;
+        int type;
+        int accountId;
+        int destAccountId;
+        // in minor units
+        long ammount;
+        String description;
+        // null until the record is rejected or applied
+        String status;
+
+        Record(long lineNumber, String line) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+        }
+
+        void parse() {
+            String[] fields = line.split(",", 5);
+            line = null;
+            if (fields.length < 4) {
+                status = "INVALID:too few fields";
+                return;
+            }
+            switch (fields[0].trim().toUpperCase()) {
+                case "IN": type = IN; break;
+                case "OUT": type = OUT; break;
+                case "TRANSFER": type = TRANSFER; break;
+                default:
+                    status = "INVALID:unknown type";
+                    return;
+            }
+            try {
+                accountId = Integer.parseInt(fields[1].trim());
+                if (type == TRANSFER) destAccountId = Integer.parseInt(fields[2].trim());
+                ammount = Money.parse(fields[3]);
+            }
+            catch (NumberFormatException | ArithmeticException e) {
+                status = "INVALID:bad number";
+                return;
+            }
+            if (!(ammount > 0)) status = "INVALID:ammount must be positive";
+            description = fields.length > 4 ? fields[4] : "";
+        }
+
+        Operation operation(User user) {
+            Account account = new Account();
+            account.setId(accountId);
+            return type == IN
+                    ? new PaymentIn(user, ammount, description, account)
+                    : new Withdraw(user, ammount, description, account);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package biz;
+
+import db.dao.DAO;
+import model.Account;
+import model.HistoryEntry;
+import model.Money;
+import model.User;
+import model.operations.PaymentIn;
+import model.operations.Withdraw;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Opt-in mode of {@link AccountManager#internalPayment} for many small transfers between the same accounts.
+ * Transfers are collected for windowMillis, or until maxTransfers arrive, and each (source, destination)
+ * pair changes the balances once by the sum of its transfers. Every transfer is still logged
+ * with its own two history entries, in the same transaction as the balances.
+ * <p>
+ * A transfer is checked when it arrives: the source balance, read once per window, minus transfers
+ * already accepted from it in the window has to cover it, otherwise it fails at once. The caller
+ * waits until the window is committed. When the source was changed by others in the meantime and
+ * the pair can not be applied at once, its transfers are applied one by one in arrival order.
+ */
+public class TransferNetting implements AutoCloseable {
+    public static final long DEFAULT_WINDOW_MILLIS = 20;
+    public static final int DEFAULT_MAX_TRANSFERS = 1000;
+
+    private final AccountManager accountManager;
+    private final long windowMillis;
+    private final int maxTransfers;
+    private final ScheduledExecutorService flusher;
+    // guarded by this
+    private Window window;
+    private boolean closed;
+
+    private final AtomicLong transfers = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong balanceWrites = new AtomicLong();
+    private final AtomicLong windows = new AtomicLong();
+    private final AtomicLong failedWindows = new AtomicLong();
+    private volatile Consumer<Exception> errorListener;
+
+    public TransferNetting(AccountManager accountManager) {
+        this(accountManager, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_TRANSFERS);
+    }
+
+    public TransferNetting(AccountManager accountManager, long windowMillis, int maxTransfers) {
+        if (windowMillis < 1 || maxTransfers < 1) throw new IllegalArgumentException("Bad netting window");
+        this.accountManager = accountManager;
+        this.windowMillis = windowMillis;
+        this.maxTransfers = maxTransfers;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "transfer-netting");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Transfer of an already authorized user, waits until its window is committed.
+     */
+    boolean transfer(User user, long minor, String description, int sourceAccountId, int destAccountId) throws SQLException {
+        Transfer transfer = new Transfer(user, minor, description, sourceAccountId, destAccountId);
+        Long balance = null;
+        boolean accepted;
+        while (true) {
+            synchronized (this) {
+                if (closed) throw new SQLException("Transfer netting is closed");
+                Window current = current();
+                Long available = current.available.get(sourceAccountId);
+                if (available == null && balance != null) available = balance;
+                if (available != null) {
+                    accepted = available >= minor;
+                    if (accepted) {
+                        current.available.put(sourceAccountId, available - minor);
+                        current.add(transfer);
+                        if (current.size >= maxTransfers) {
+                            window = null;
+                            schedule(current, 0);
+                        }
+                    }
+                    break;
+                }
+            }
+            // read outside the lock, only the first transfer from the account in a window needs it
+            Account source = accountManager.dao.findAccountById(sourceAccountId);
+            balance = source == null ? -1L : source.getAmmount();
+        }
+        transfers.incrementAndGet();
+        if (!accepted) {
+            rejected.incrementAndGet();
+            accountManager.history.logOperations(transfer.entries(false));
+            return false;
+        }
+        try {
+            return transfer.done.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for transfer netting", e);
+        }
+        catch (ExecutionException e) {
+            throw new SQLException("Netted transfer failed", e.getCause());
+        }
+    }
+
+    /**
+     * Window collecting transfers, a new one is started and scheduled when there is none. Called holding this.
+     */
+    private Window current() {
+        if (window == null) {
+            window = new Window();
+            schedule(window, windowMillis);
+        }
+        return window;
+    }
+
+    private void schedule(Window closing, long delayMillis) {
+        flusher.schedule(() -> flush(closing), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush(Window closing) {
+        synchronized (this) {
+            if (window == closing) window = null;
+            if (closing.flushed) return;
+            closing.flushed = true;
+        }
+        // a window opened only by transfers rejected on arrival
+        if (closing.size == 0) return;
+        try {
+            write(closing);
+            windows.incrementAndGet();
+        }
+        catch (SQLException | RuntimeException e) {
+            failedWindows.incrementAndGet();
+            // repeated as separate transfers, so one bad pair does not fail the others
+            for (List<Transfer> pair : closing.pairs.values()) {
+                for (Transfer transfer : pair) {
+                    try {
+                        transfer.done.complete(accountManager.transferMinor(transfer.user, transfer.ammount,
+                                transfer.description, transfer.sourceAccountId, transfer.destAccountId));
+                    }
+                    catch (SQLException | RuntimeException single) {
+                        transfer.done.completeExceptionally(single);
+                    }
+                }
+            }
+            // after the callers got their results, a failing listener can not leave them waiting
+            Consumer<Exception> listener = errorListener;
+            if (listener != null) listener.accept(e);
+        }
+    }
+
+    /**
+     * Applies all pairs of the window and logs every transfer in one transaction,
+     * results are given to the callers after the commit.
+     */
+    private void write(Window closing) throws SQLException {
+        DAO dao = accountManager.dao;
+        List<HistoryEntry> entries = new ArrayList<>(closing.size * 2);
+        Map<Transfer, Boolean> results = new HashMap<>();
+        boolean committed = false;
+        dao.beginTransaction();
+        try {
+            for (List<Transfer> pair : closing.pairs.values()) {
+                long total = 0;
+                for (Transfer transfer : pair) total = Money.add(total, transfer.ammount);
+                Transfer first = pair.get(0);
+                boolean success = apply(dao, first.sourceAccountId, first.destAccountId, total);
+                if (!success && pair.size() > 1) {
+                    for (Transfer transfer : pair) {
+                        boolean single = apply(dao, transfer.sourceAccountId, transfer.destAccountId, transfer.ammount);
+                        results.put(transfer, single);
+                        entries.addAll(transfer.entries(single));
+                    }
+                    continue;
+                }
+                for (Transfer transfer : pair) {
+                    results.put(transfer, success);
+                    entries.addAll(transfer.entries(success));
+                }
+            }
+            accountManager.history.logOperations(entries);
+            dao.commitTransaction();
+            committed = true;
+        }
+        finally {
+            if (!committed) dao.rollbackTransaction();
+        }
+        for (Map.Entry<Transfer, Boolean> result : results.entrySet()) result.getKey().done.complete(result.getValue());
+    }
+
+    /**
+     * Moves the ammount between the accounts, a source change is undone when the destination does not exist.
+     */
+    private boolean apply(DAO dao, int sourceAccountId, int destAccountId, long minor) throws SQLException {
+        balanceWrites.incrementAndGet();
+        if (!dao.applyDelta(sourceAccountId, Money.negate(minor), 0)) return false;
+        balanceWrites.incrementAndGet();
+        if (dao.applyDelta(destAccountId, minor, DAO.NO_MIN_BALANCE)) return true;
+        balanceWrites.incrementAndGet();
+        dao.applyDelta(sourceAccountId, minor, DAO.NO_MIN_BALANCE);
+        return false;
+    }
+
+    /**
+     * Stops accepting transfers and commits the open window.
+     */
+    public void close() {
+        Window last;
+        synchronized (this) {
+            closed = true;
+            last = window;
+            window = null;
+        }
+        if (last != null) flush(last);
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getTransfers() {
+        return transfers.get();
+    }
+
+    /**
+     * Transfers failed on arrival because the source balance did not cover them.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Balance changes written, without netting it would be two per transfer.
+     */
+    public long getBalanceWrites() {
+        return balanceWrites.get();
+    }
+
+    public long getWindows() {
+        return windows.get();
+    }
+
+    /**
+     * Windows whose transaction failed and whose transfers were repeated one by one.
+     */
+    public long getFailedWindows() {
+        return failedWindows.get();
+    }
+
+    /**
+     * Receives the error of every failed window, errors of the repeated transfers go to their callers.
+     * Called from the netting thread, or from the one closing it. Null turns it off.
+     */
+    public void setErrorListener(Consumer<Exception> errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    private static class Window {
+        // transfers of every (source, destination) pair in arrival order
+        final Map<Long, List<Transfer>> pairs = new LinkedHashMap<>();
+        // source balance left for further transfers
+        final Map<Integer, Long> available = new HashMap<>();
+        int size;
+        // guarded by the netting
+        boolean flushed;
+
+        void add(Transfer transfer) {
+            long key = ((long) transfer.sourceAccountId << 32) | (transfer.destAccountId & 0xFFFFFFFFL);
+            pairs.computeIfAbsent(key, k -> new ArrayList<>()).add(transfer);
+            size++;
+        }
+    }
+
+    private static class Transfer {
+        final User user;
+        final long ammount;
+        final String description;
+        final int sourceAccountId;
+        final int destAccountId;
+        final Withdraw withdraw;
+        final PaymentIn payment;
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        Transfer(User user, long ammount, String description, int sourceAccountId, int destAccountId) {
+            this.user = user;
+            this.ammount = ammount;
+            this.description = description;
+            this.sourceAccountId = sourceAccountId;
+            this.destAccountId = destAccountId;
+            this.withdraw = new Withdraw(user, ammount, description, accountWithId(sourceAccountId));
+            this.payment = new PaymentIn(user, ammount, description, accountWithId(destAccountId));
+        }
+
+        List<HistoryEntry> entries(boolean success) {
+            return List.of(new HistoryEntry(withdraw, success), new HistoryEntry(payment, success));
+        }
+
+        private static Account accountWithId(int accountId) {
+            Account account = new Account();
+            account.setId(accountId);
+            return account;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package db.dao;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Receives results of bulk DAO queries one chunk at a time.
+ */
+public interface ChunkHandler<T> {
+    void handle(List<T> chunk) throws SQLException;
+}
@@ -1,22 +1,108 @@
 package db.dao;
 
 import model.Account;
+import model.HistoryEntry;
 import model.Operation;
 import model.Password;
 import model.User;
 
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * Created by Krzysztof Podlaski on 04.03.2018.
  */
 public interface DAO {
+    long NO_MIN_BALANCE = Long.MIN_VALUE;
+    int DEFAULT_CHUNK_SIZE = 500;
+
     User findUserByName(String userName) throws SQLException;
     Password findPasswordForUser(User user) throws SQLException;
     Account findAccountById(int accountId) throws SQLException;
     boolean updateAccountState(Account account) throws SQLException;
+
+    /**
+     * Loads many accounts with IN-list queries, missing ids are skipped.
+     */
+    List<Account> findAccountsByIds(Collection<Integer> accountIds) throws SQLException;
+
+    /**
+     * Loads accounts chunkSize ids per query and passes each chunk to the handler
+     * before the next one is read. A chunk has at most chunkSize accounts.
+     */
+    void findAccountsByIds(Collection<Integer> accountIds, int chunkSize, ChunkHandler<Account> handler) throws SQLException;
+
+    /**
+     * Accounts with id greater than afterId in id order, at most limit of them.
+     * All accounts are read page by page starting from afterId 0, each page is an indexed range query.
+     */
+    List<Account> findAccountsPage(int afterId, int limit) throws SQLException;
+    int countAccounts() throws SQLException;
+
+    /**
+     * Writes balances of all accounts in one transaction using a batch update.
+     * @return for every account, in iteration order, whether it was updated
+     */
+    boolean[] updateAccountStates(Collection<Account> accounts) throws SQLException;
+
+    /**
+     * Stores the balance only if the account still has the version it was read with.
+     * On success the version of the given account is increased to the stored one.
+     * @return false when another writer changed the account in the meantime or it does not exist
+     */
+    boolean compareAndSetAccountState(Account account) throws SQLException;
+
+    /**
+     * Adds delta to the account balance in a single statement, without reading the account first.
+     * Both values are in minor units, see {@link model.Money}.
+     * The change is applied only if the resulting balance is not lower than minBalance,
+     * use {@link #NO_MIN_BALANCE} to skip the check.
+     * @return false when the account does not exist or the balance would drop below minBalance
+     */
+    boolean applyDelta(int accountId, long delta, long minBalance) throws SQLException;
     boolean setUserPassword(User user, String passwd, String oldPass) throws SQLException;
     void close() throws SQLException;
 
+    /**
+     * Starts a transaction bound to the current thread. All DAO calls made by this thread
+     * until commitTransaction or rollbackTransaction are committed together.
+     * Transactions can be nested, only the outermost commit is written to the database.
+     * A commit that throws leaves the transaction open, the caller ends it with rollbackTransaction:
+     * <pre>
+     * finally { if (!committed) dao.rollbackTransaction(); }
+     * </pre>
+     */
+    void beginTransaction() throws SQLException;
+    void commitTransaction() throws SQLException;
+    void rollbackTransaction() throws SQLException;
+    boolean isInTransaction();
+
+    /**
+     * True when balances are counted from the operation log, see {@link db.dao.impl.EventSourcedDAO}.
+     * A balance change then has to be made in the transaction that logs its payment.
+     */
+    boolean isEventSourced();
+
     void logOperation(Operation operation, boolean success) throws SQLException;
+
+    /**
+     * Stores all entries in one transaction.
+     */
+    void logOperations(List<HistoryEntry> entries) throws SQLException;
+
+    /**
+     * Lazily reads logged operations matching the query in the order they were logged.
+     * The stream holds an open database cursor and has to be closed, preferably with try-with-resources.
+     * Database errors while reading are thrown as {@link UncheckedSQLException}.
+     */
+    Stream<Operation> streamOperations(OperationQuery query) throws SQLException;
+
+    /**
+     * Operations of the account from the newest, starting right after the (beforeDate, beforeId) key
+     * of the last row of the previous page, or from the newest one when beforeDate is null.
+     */
+    List<Operation> findOperationsPage(int accountId, Date beforeDate, int beforeId, int limit) throws SQLException;
 }
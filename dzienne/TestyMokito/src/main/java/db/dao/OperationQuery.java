@@ -0,0 +1,109 @@
+package db.dao;
+
+import model.operations.OperationType;
+
+import java.util.Date;
+
+/**
+ * Filter for reading logged operations, unset fields do not restrict the result.
+ */
+public class OperationQuery {
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    private Integer accountId;
+    private Integer userId;
+    private OperationType type;
+    private Date from;
+    private Date to;
+    private Boolean successful;
+    private Integer afterId;
+    private Integer upToId;
+    private int fetchSize = DEFAULT_FETCH_SIZE;
+
+    public OperationQuery forAccount(int accountId) {
+        this.accountId = accountId;
+        return this;
+    }
+
+    public OperationQuery forUser(int userId) {
+        this.userId = userId;
+        return this;
+    }
+
+    public OperationQuery ofType(OperationType type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * Operations logged at or after from and before to, either bound may be null.
+     */
+    public OperationQuery between(Date from, Date to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    public OperationQuery successful(Boolean successful) {
+        this.successful = successful;
+        return this;
+    }
+
+    /**
+     * Operations with id greater than afterId, ids grow in the order operations were logged.
+     */
+    public OperationQuery afterId(int afterId) {
+        this.afterId = afterId;
+        return this;
+    }
+
+    /**
+     * Operations with id not greater than upToId.
+     */
+    public OperationQuery upToId(int upToId) {
+        this.upToId = upToId;
+        return this;
+    }
+
+    public OperationQuery fetchSize(int fetchSize) {
+        if (fetchSize < 1) throw new IllegalArgumentException("Fetch size must be positive");
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    public Integer getAccountId() {
+        return accountId;
+    }
+
+    public Integer getUserId() {
+        return userId;
+    }
+
+    public OperationType getType() {
+        return type;
+    }
+
+    public Date getFrom() {
+        return from;
+    }
+
+    public Date getTo() {
+        return to;
+    }
+
+    public Boolean getSuccessful() {
+        return successful;
+    }
+
+    public Integer getAfterId() {
+        return afterId;
+    }
+
+    public Integer getUpToId() {
+        return upToId;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+}
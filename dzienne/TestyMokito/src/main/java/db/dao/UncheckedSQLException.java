@@ -0,0 +1,17 @@
+package db.dao;
+
+import java.sql.SQLException;
+
+/**
+ * Wraps SQLException thrown where checked exceptions are not allowed, e.g. inside a Stream.
+ */
+public class UncheckedSQLException extends RuntimeException {
+    public UncheckedSQLException(SQLException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized SQLException getCause() {
+        return (SQLException) super.getCause();
+    }
+}
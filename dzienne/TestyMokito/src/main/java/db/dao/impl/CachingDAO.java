@@ -0,0 +1,443 @@
+package db.dao.impl;
+
+import db.dao.DAO;
+import model.Account;
+import model.Money;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Keeps recently used accounts in memory. Callers always get a copy, so changing
+ * a returned account does not change the cache. Accounts changed inside a transaction
+ * are removed from the cache and reloaded after the transaction ends.
+ * <p>
+ * Single account writes outside a transaction write through to the cache. Every write
+ * raises the version by one in all DAOs, so a cached account gets the new balance and
+ * the next version without reading it again, and hot accounts stay cached while they are
+ * paid in and out. A write through keeps the time the account was loaded, so the
+ * time to live still bounds how old a cached account can be. Bulk updates and a write
+ * that failed with an exception remove the account.
+ * <p>
+ * A load or write in progress remembers the version of its account, a change of that
+ * account in the meantime bumps it and the result is not cached. Changes of other
+ * accounts do not matter. Eviction takes constant time for both policies.
+ */
+public class CachingDAO extends ForwardingDAO {
+
+    public enum EvictionPolicy {
+        /** Removes the account that was not used for the longest time. */
+        LRU,
+        /** Removes the account with the lowest number of hits. */
+        LFU
+    }
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+    public static final long DEFAULT_TTL_MILLIS = 60000;
+
+    private final int maxSize;
+    private final EvictionPolicy policy;
+    private final long ttlMillis;
+    private final LinkedHashMap<Integer, Entry> accounts;
+    // accounts being loaded or written, only while it happens
+    private final Map<Integer, Pending> pending = new HashMap<>();
+    // LFU only, lists of accounts with the same number of hits, fewest hits first
+    private final Frequency fewestHits = new Frequency(-1);
+    private final ThreadLocal<Set<Integer>> changedInTransaction = ThreadLocal.withInitial(HashSet::new);
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    public CachingDAO(DAO delegate) {
+        this(delegate, DEFAULT_MAX_SIZE, EvictionPolicy.LRU, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param ttlMillis time after which cached account is loaded again, 0 means no expiry
+     */
+    public CachingDAO(DAO delegate, int maxSize, EvictionPolicy policy, long ttlMillis) {
+        super(delegate);
+        if (maxSize < 1) throw new IllegalArgumentException("Cache size must be positive");
+        this.maxSize = maxSize;
+        this.policy = policy;
+        this.ttlMillis = ttlMillis;
+        this.accounts = new LinkedHashMap<>(16, 0.75f, true);
+        fewestHits.previous = fewestHits;
+        fewestHits.next = fewestHits;
+    }
+
+    @Override
+    public Account findAccountById(int accountId) throws SQLException {
+        long loadVersion;
+        synchronized (this) {
+            Entry entry = accounts.get(accountId);
+            if (entry != null && isExpired(entry)) {
+                remove(accountId);
+                expirations++;
+                entry = null;
+            }
+            if (entry != null && !delegate.isInTransaction()) {
+                hits++;
+                if (policy == EvictionPolicy.LFU) hit(entry);
+                return copy(entry.account);
+            }
+            misses++;
+            loadVersion = start(accountId);
+        }
+        Account account = null;
+        try {
+            account = delegate.findAccountById(accountId);
+        }
+        finally {
+            boolean cache = account != null && !delegate.isInTransaction();
+            synchronized (this) {
+                if (finish(accountId, loadVersion) && cache) put(account);
+            }
+        }
+        return account;
+    }
+
+    @Override
+    public boolean updateAccountState(Account account) throws SQLException {
+        if (delegate.isInTransaction()) {
+            changedInTransaction(account.getId());
+            return delegate.updateAccountState(account);
+        }
+        long ammount = account.getAmmount();
+        Write write = startWrite(account.getId());
+        Boolean updated = null;
+        try {
+            updated = delegate.updateAccountState(account);
+            return updated;
+        }
+        finally {
+            finishWrite(write, updated, balance -> ammount);
+        }
+    }
+
+    /**
+     * A failed update removes the account too, the retry has to see the current version.
+     */
+    @Override
+    public boolean compareAndSetAccountState(Account account) throws SQLException {
+        if (delegate.isInTransaction()) {
+            changedInTransaction(account.getId());
+            return delegate.compareAndSetAccountState(account);
+        }
+        long writeVersion;
+        synchronized (this) {
+            remove(account.getId());
+            writeVersion = start(account.getId());
+        }
+        boolean success = false;
+        try {
+            success = delegate.compareAndSetAccountState(account);
+        }
+        finally {
+            synchronized (this) {
+                // another change in the meantime makes the written value uncertain
+                if (finish(account.getId(), writeVersion) && success) put(account);
+                else remove(account.getId());
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Bulk updates are not written to the cache, updated accounts are loaded again on next use.
+     */
+    @Override
+    public boolean[] updateAccountStates(Collection<Account> accounts) throws SQLException {
+        boolean inTransaction = delegate.isInTransaction();
+        for (Account account : accounts) {
+            if (inTransaction) changedInTransaction(account.getId());
+            else invalidate(account.getId());
+        }
+        try {
+            return delegate.updateAccountStates(accounts);
+        }
+        finally {
+            if (!inTransaction) {
+                for (Account account : accounts) invalidate(account.getId());
+            }
+        }
+    }
+
+    /**
+     * The cached balance gets the delta, a refused delta leaves the account as it is.
+     */
+    @Override
+    public boolean applyDelta(int accountId, long delta, long minBalance) throws SQLException {
+        if (delegate.isInTransaction()) {
+            changedInTransaction(accountId);
+            return delegate.applyDelta(accountId, delta, minBalance);
+        }
+        Write write = startWrite(accountId);
+        Boolean applied = null;
+        try {
+            applied = delegate.applyDelta(accountId, delta, minBalance);
+            return applied;
+        }
+        finally {
+            finishWrite(write, applied, balance -> Money.add(balance, delta));
+        }
+    }
+
+    /**
+     * Registers a write, loads and writes of the account in progress will not be cached.
+     */
+    private synchronized Write startWrite(int accountId) {
+        Entry entry = accounts.get(accountId);
+        Pending started = pending.computeIfAbsent(accountId, id -> new Pending());
+        started.version++;
+        started.count++;
+        return new Write(accountId, started.version, entry == null ? null : entry.account.getVersion());
+    }
+
+    /**
+     * Writes the new balance to the cached account when no other change of it happened since
+     * {@link #startWrite}. A write that did not change anything keeps the account, an unknown
+     * outcome or a change in the meantime removes it.
+     * @param written result of the write, null when it threw
+     */
+    private synchronized void finishWrite(Write write, Boolean written, LongUnaryOperator balance) {
+        boolean unchanged = finish(write.accountId, write.version);
+        Entry entry = accounts.get(write.accountId);
+        if (unchanged && Boolean.FALSE.equals(written)) return;
+        if (unchanged && Boolean.TRUE.equals(written) && entry != null && write.cachedVersion != null
+                && entry.account.getVersion() == write.cachedVersion) {
+            entry.account.setAmmount(balance.applyAsLong(entry.account.getAmmount()));
+            entry.account.setVersion(write.cachedVersion + 1);
+            return;
+        }
+        remove(write.accountId);
+    }
+
+    @Override
+    public void commitTransaction() throws SQLException {
+        try {
+            delegate.commitTransaction();
+        }
+        finally {
+            transactionFinished();
+        }
+    }
+
+    @Override
+    public void rollbackTransaction() throws SQLException {
+        try {
+            delegate.rollbackTransaction();
+        }
+        finally {
+            transactionFinished();
+        }
+    }
+
+    private void changedInTransaction(int accountId) {
+        changedInTransaction.get().add(accountId);
+        invalidate(accountId);
+    }
+
+    private void transactionFinished() {
+        if (delegate.isInTransaction()) return;
+        Set<Integer> changed = changedInTransaction.get();
+        for (Integer id : changed) invalidate(id);
+        changed.clear();
+    }
+
+    /**
+     * Removes the account, a load or write of it in progress will not be cached.
+     */
+    public synchronized void invalidate(int accountId) {
+        remove(accountId);
+        Pending changed = pending.get(accountId);
+        if (changed != null) changed.version++;
+    }
+
+    public synchronized void invalidateAll() {
+        for (Pending changed : pending.values()) changed.version++;
+        accounts.clear();
+        fewestHits.previous = fewestHits;
+        fewestHits.next = fewestHits;
+    }
+
+    /**
+     * Registers a load or write of the account, called holding this.
+     * @return version to give to {@link #finish}
+     */
+    private long start(int accountId) {
+        Pending started = pending.computeIfAbsent(accountId, id -> new Pending());
+        started.count++;
+        return started.version;
+    }
+
+    /**
+     * Called holding this.
+     * @return true when the account was not changed since {@link #start}
+     */
+    private boolean finish(int accountId, long version) {
+        Pending started = pending.get(accountId);
+        if (--started.count == 0) pending.remove(accountId);
+        return started.version == version;
+    }
+
+    private void put(Account account) {
+        Entry entry = accounts.get(account.getId());
+        if (entry == null) {
+            if (accounts.size() >= maxSize) evict();
+            entry = new Entry(account.getId());
+            accounts.put(account.getId(), entry);
+            if (policy == EvictionPolicy.LFU) moveTo(entry, fewestHits, 0);
+        }
+        entry.account = copy(account);
+        entry.loadedAt = System.currentTimeMillis();
+    }
+
+    private void remove(int accountId) {
+        Entry removed = accounts.remove(accountId);
+        if (removed != null && removed.frequency != null) leave(removed);
+    }
+
+    private void evict() {
+        if (policy == EvictionPolicy.LRU) {
+            Iterator<Integer> it = accounts.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+        else {
+            remove(fewestHits.next.accounts.iterator().next().accountId);
+        }
+        evictions++;
+    }
+
+    /**
+     * Moves the entry to the list of one hit more, creating it right after the current one if needed.
+     */
+    private void hit(Entry entry) {
+        Frequency current = entry.frequency;
+        moveTo(entry, current, current.hits + 1);
+        if (current.accounts.isEmpty()) unlink(current);
+    }
+
+    /**
+     * Puts the entry to the list with the given hits, which follows after.
+     */
+    private void moveTo(Entry entry, Frequency after, long hits) {
+        Frequency target = after.next;
+        if (target == fewestHits || target.hits != hits) {
+            target = new Frequency(hits);
+            target.previous = after;
+            target.next = after.next;
+            after.next.previous = target;
+            after.next = target;
+        }
+        if (entry.frequency != null) entry.frequency.accounts.remove(entry);
+        target.accounts.add(entry);
+        entry.frequency = target;
+    }
+
+    private void leave(Entry entry) {
+        Frequency current = entry.frequency;
+        current.accounts.remove(entry);
+        entry.frequency = null;
+        if (current.accounts.isEmpty()) unlink(current);
+    }
+
+    private static void unlink(Frequency frequency) {
+        frequency.previous.next = frequency.next;
+        frequency.next.previous = frequency.previous;
+    }
+
+    private boolean isExpired(Entry entry) {
+        return ttlMillis > 0 && System.currentTimeMillis() - entry.loadedAt > ttlMillis;
+    }
+
+    private static Account copy(Account account) {
+        Account copy = new Account();
+        copy.setId(account.getId());
+        copy.setAmmount(account.getAmmount());
+        copy.setOwner(account.getOwner());
+        copy.setVersion(account.getVersion());
+        return copy;
+    }
+
+    public synchronized int size() {
+        return accounts.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private static class Entry {
+        final int accountId;
+        Account account;
+        long loadedAt;
+        // LFU only
+        Frequency frequency;
+
+        Entry(int accountId) {
+            this.accountId = accountId;
+        }
+    }
+
+    /**
+     * Accounts hit the same number of times, in the order they got there. The first one
+     * of the list following {@link #fewestHits} is evicted.
+     */
+    private static class Frequency {
+        final long hits;
+        final LinkedHashSet<Entry> accounts = new LinkedHashSet<>();
+        Frequency previous;
+        Frequency next;
+
+        Frequency(long hits) {
+            this.hits = hits;
+        }
+    }
+
+    private static class Write {
+        final int accountId;
+        final long version;
+        // version of the cached account when the write started, null when it was not cached
+        final Integer cachedVersion;
+
+        Write(int accountId, long version, Integer cachedVersion) {
+            this.accountId = accountId;
+            this.version = version;
+            this.cachedVersion = cachedVersion;
+        }
+    }
+
+    private static class Pending {
+        int count;
+        long version;
+    }
+}
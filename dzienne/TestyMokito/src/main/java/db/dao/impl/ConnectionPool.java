@@ -0,0 +1,312 @@
+package db.dao.impl;
+
+import org.sqlite.SQLiteConfig;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Connections to a single SQLite database: one writer shared under a lock
+ * and an optional set of read only connections handed out one per caller.
+ * Without read connections every read goes through the writer.
+ */
+public class ConnectionPool {
+    public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 5000;
+    public static final long DEFAULT_VALIDATION_INTERVAL_MILLIS = 30000;
+
+    private final String url;
+    private final int readerCount;
+    private final long borrowTimeoutMillis;
+    private final SQLiteProfile profile;
+    private long validationIntervalMillis = DEFAULT_VALIDATION_INTERVAL_MILLIS;
+
+    private final PooledConnection writer;
+    private final ReentrantLock writerLock = new ReentrantLock(true);
+    private final BlockingQueue<PooledConnection> readers;
+    private final List<PooledConnection> allReaders = new ArrayList<>();
+
+    private final AtomicInteger readersInUse = new AtomicInteger();
+    private final AtomicLong readerBorrows = new AtomicLong();
+    private final AtomicLong writerAcquisitions = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong replacedConnections = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * Wraps an already opened connection, all calls share it.
+     */
+    public ConnectionPool(Connection connection) {
+        this.url = null;
+        this.readerCount = 0;
+        this.borrowTimeoutMillis = DEFAULT_BORROW_TIMEOUT_MILLIS;
+        this.profile = null;
+        this.writer = new PooledConnection(connection, false);
+        this.readers = new ArrayBlockingQueue<>(1);
+    }
+
+    public ConnectionPool(String url, int readerCount, long borrowTimeoutMillis) throws SQLException {
+        this(url, readerCount, borrowTimeoutMillis, SQLiteProfile.DEFAULT);
+    }
+
+    public ConnectionPool(String url, int readerCount, long borrowTimeoutMillis, SQLiteProfile profile) throws SQLException {
+        if (readerCount < 0) throw new IllegalArgumentException("Reader count must not be negative");
+        this.url = url;
+        this.readerCount = readerCount;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.profile = profile;
+        this.writer = new PooledConnection(openWriter(), false);
+        this.readers = new ArrayBlockingQueue<>(Math.max(1, readerCount));
+        try {
+            for (int i = 0; i < readerCount; i++) {
+                PooledConnection reader = new PooledConnection(openReader(), true);
+                allReaders.add(reader);
+                readers.add(reader);
+            }
+        }
+        catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    protected Connection openWriter() throws SQLException {
+        Connection connection = DriverManager.getConnection(url);
+        try {
+            profile.apply(connection);
+        }
+        catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    protected Connection openReader() throws SQLException {
+        SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(true);
+        Connection connection = DriverManager.getConnection(url, config.toProperties());
+        try {
+            profile.applyToReader(connection);
+        }
+        catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /**
+     * Locks the writer connection for the current thread. Calls may be nested,
+     * each one has to be matched by {@link #releaseWriter()}.
+     */
+    PooledConnection acquireWriter() throws SQLException {
+        checkOpen();
+        long start = System.nanoTime();
+        try {
+            if (!writerLock.tryLock(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLTimeoutException("Timeout waiting for writer connection");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for writer connection", e);
+        }
+        waitNanos.addAndGet(System.nanoTime() - start);
+        writerAcquisitions.incrementAndGet();
+        writer.touch();
+        return writer;
+    }
+
+    void releaseWriter() {
+        writerLock.unlock();
+    }
+
+    /**
+     * Writer connection for a thread that already holds the writer lock.
+     */
+    PooledConnection getWriter() {
+        if (!writerLock.isHeldByCurrentThread()) throw new IllegalStateException("Writer lock is not held by current thread");
+        return writer;
+    }
+
+    boolean isWriterHeldByCurrentThread() {
+        return writerLock.isHeldByCurrentThread();
+    }
+
+    /**
+     * Borrows a connection for reading. The writer is used when there are no read
+     * connections or when the current thread already holds it, so reads see its own writes.
+     */
+    PooledConnection borrowReader() throws SQLException {
+        if (readerCount == 0 || writerLock.isHeldByCurrentThread()) return acquireWriter();
+        checkOpen();
+        long start = System.nanoTime();
+        PooledConnection reader;
+        try {
+            reader = readers.poll(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for read connection", e);
+        }
+        waitNanos.addAndGet(System.nanoTime() - start);
+        if (reader == null) {
+            timeouts.incrementAndGet();
+            throw new SQLTimeoutException("Timeout waiting for read connection");
+        }
+        try {
+            reader = validate(reader);
+        }
+        catch (SQLException e) {
+            readers.offer(reader);
+            throw e;
+        }
+        readersInUse.incrementAndGet();
+        readerBorrows.incrementAndGet();
+        reader.touch();
+        return reader;
+    }
+
+    /**
+     * Opens a read only connection outside the pool for a long running cursor,
+     * so it does not hold a pooled connection or the writer while it is read.
+     * @return null when the pool wraps a single connection and can not open new ones
+     */
+    Connection openCursorConnection() throws SQLException {
+        checkOpen();
+        if (url == null) return null;
+        return openReader();
+    }
+
+    void release(PooledConnection connection) {
+        if (connection == writer) {
+            releaseWriter();
+            return;
+        }
+        readersInUse.decrementAndGet();
+        readers.offer(connection);
+    }
+
+    private PooledConnection validate(PooledConnection reader) throws SQLException {
+        boolean idle = System.currentTimeMillis() - reader.getLastUsed() > validationIntervalMillis;
+        Connection connection = reader.getConnection();
+        if (!connection.isClosed() && (!idle || connection.isValid(1))) return reader;
+        try {
+            reader.close();
+        } catch (SQLException ignored) {
+        }
+        PooledConnection replacement = new PooledConnection(openReader(), true);
+        synchronized (allReaders) {
+            allReaders.remove(reader);
+            allReaders.add(replacement);
+        }
+        replacedConnections.incrementAndGet();
+        return replacement;
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+    }
+
+    public void close() throws SQLException {
+        closed = true;
+        SQLException failure = null;
+        synchronized (allReaders) {
+            for (PooledConnection reader : allReaders) {
+                try {
+                    reader.close();
+                } catch (SQLException e) {
+                    failure = e;
+                }
+            }
+            allReaders.clear();
+        }
+        writer.close();
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Profile used to open connections, null when the pool wraps a connection opened elsewhere.
+     */
+    public SQLiteProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * PRAGMA values active on the writer connection.
+     */
+    public Map<String, String> getActiveSettings() throws SQLException {
+        PooledConnection conn = acquireWriter();
+        try {
+            return SQLiteProfile.describe(conn.getConnection());
+        }
+        finally {
+            releaseWriter();
+        }
+    }
+
+    public int getReaderCount() {
+        return readerCount;
+    }
+
+    public int getReadersInUse() {
+        return readersInUse.get();
+    }
+
+    public int getIdleReaders() {
+        return readers.size();
+    }
+
+    public boolean isWriterLocked() {
+        return writerLock.isLocked();
+    }
+
+    public int getWriterQueueLength() {
+        return writerLock.getQueueLength();
+    }
+
+    public long getReaderBorrows() {
+        return readerBorrows.get();
+    }
+
+    public long getWriterAcquisitions() {
+        return writerAcquisitions.get();
+    }
+
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getReplacedConnections() {
+        return replacedConnections.get();
+    }
+
+    public long getBorrowTimeoutMillis() {
+        return borrowTimeoutMillis;
+    }
+
+    public void setValidationIntervalMillis(long validationIntervalMillis) {
+        this.validationIntervalMillis = validationIntervalMillis;
+    }
+
+    public StatementCache getWriterStatementCache() {
+        return writer.getStatementCache();
+    }
+}
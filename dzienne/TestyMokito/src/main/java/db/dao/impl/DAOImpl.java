@@ -1,47 +1,124 @@
 package db.dao.impl;
 
+import db.dao.ChunkHandler;
 import db.dao.DAO;
+import db.dao.OperationQuery;
+import db.dao.UncheckedSQLException;
 import model.*;
 import model.operations.Interest;
-import model.operations.LogOperation;
+import model.operations.LogIn;
+import model.operations.LogOut;
+import model.operations.OperationType;
 import model.operations.Payment;
+import model.operations.PaymentIn;
+import model.operations.Withdraw;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Created by Krzysztof Podlaski on 04.03.2018.
  */
 public class DAOImpl implements DAO{
-    Connection db;
+    private static final String FIND_USER_BY_NAME = "SELECT " +
+            "user.id as user_id, " +
+            "user.name as user_name, " +
+            "role.id as role_id, " +
+            "role.name as role_name " +
+            "FROM User , Role  " +
+            "WHERE role.id=user.role_id " +
+            "AND user.name = ?";
+    private static final String FIND_PASSWORD = "SELECT passwd FROM Password  WHERE user_id=?";
+    private static final String FIND_ACCOUNTS = "SELECT " +
+            "user.id as user_id, " +
+            "user.name as user_name, " +
+            "role.id as role_id, " +
+            "role.name as role_name, " +
+            "account.id as account_id, " +
+            "balance, " +
+            "version " +
+            "FROM User , Role, Account " +
+            "WHERE role.id=user.role_id AND " +
+            "owner_id = user.id AND ";
+    private static final String FIND_ACCOUNT_BY_ID = FIND_ACCOUNTS + "account.id = ?";
+    private static final String FIND_ACCOUNTS_PAGE = FIND_ACCOUNTS + "account.id > ? ORDER BY account.id LIMIT ?";
+    private static final String COUNT_ACCOUNTS = "SELECT COUNT(*) FROM Account";
+    // SQLite allows 999 parameters in one statement
+    private static final int MAX_IN_LIST = 900;
+    // every change of the balance moves the version, so compare and set notices all writers
+    // balances and amounts are INTEGER minor units, the old REAL ammount columns are no longer used
+    private static final String UPDATE_ACCOUNT = "UPDATE ACCOUNT SET balance = ?, version = version + 1 WHERE id = ?";
+    private static final String UPDATE_ACCOUNT_IF_VERSION = "UPDATE ACCOUNT SET balance = ?, version = version + 1 " +
+            "WHERE id = ? AND version = ?";
+    private static final String APPLY_DELTA = "UPDATE ACCOUNT SET balance = balance + ?, version = version + 1 " +
+            "WHERE id = ? AND balance + ? >= ?";
+    private static final String APPLY_DELTA_NO_LIMIT = "UPDATE ACCOUNT SET balance = balance + ?, version = version + 1 WHERE id = ?";
+    private static final String UPDATE_PASSWORD = "UPDATE PASSWORD SET passwd = ? WHERE user_id = ? AND passwd = ?";
+    private static final String INSERT_PAYMENT = "INSERT INTO OPERATION " +
+            "(`type`, `description`, `date`, `user_id`, `ammount_minor`, `account_id`) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_LOG_OPERATION = "INSERT INTO OPERATION " +
+            "(`type`, `description`, `date`, `user_id`) VALUES (?, ?, ?, ?)";
+    private static final String FIND_OPERATIONS = "SELECT " +
+            "operation.id as operation_id, " +
+            "operation.type as operation_type, " +
+            "operation.ammount_minor as operation_ammount, " +
+            "operation.description as description, " +
+            "operation.date as operation_date, " +
+            "operation.account_id as account_id, " +
+            "operation.user_id as user_id, " +
+            "user.name as user_name, " +
+            "role.id as role_id, " +
+            "role.name as role_name " +
+            "FROM Operation " +
+            "LEFT JOIN User ON user.id = operation.user_id " +
+            "LEFT JOIN Role ON role.id = user.role_id ";
+    // served by Operation_account_date_idx, the index holds the row id as well
+    private static final String FIND_FIRST_PAGE = FIND_OPERATIONS +
+            "WHERE operation.account_id = ? " +
+            "ORDER BY operation.date DESC, operation.id DESC LIMIT ?";
+    private static final String FIND_NEXT_PAGE = FIND_OPERATIONS +
+            "WHERE operation.account_id = ? AND (operation.date, operation.id) < (?, ?) " +
+            "ORDER BY operation.date DESC, operation.id DESC LIMIT ?";
+    private static final String INSERT_HISTORY = "INSERT INTO History (`operation_id`,`succesfull`) VALUES (?, ?)";
+
+    private final ConnectionPool pool;
+    // guarded by the writer lock of the pool
+    private int transactionDepth;
+    private boolean rollbackOnly;
+
+    public DAOImpl(ConnectionPool pool) {
+        this.pool = pool;
+    }
 
 
     public User findUserByName(String userName) throws SQLException {
-        String sql = "SELECT " +
-                "user.id as user_id, " +
-                "user.name as user_name, " +
-                "role.id as role_id, " +
-                "role.name as role_name " +
-                "FROM User , Role  " +
-                "WHERE role.id=user.role_id " +
-                "AND user_name = '"+userName+"'";
+        PooledConnection conn = pool.borrowReader();
         User user = null;
-        Statement st = null;
-        try{
-            st = db.createStatement();
-            ResultSet rs = st.executeQuery(sql);
-            if (rs.next()){
-                user = getUserFromRS(rs);
+        try {
+            PreparedStatement st = conn.prepare(FIND_USER_BY_NAME);
+            st.setString(1, userName);
+            try (ResultSet rs = st.executeQuery()) {
+                if (rs.next()){
+                    user = getUserFromRS(rs);
+                }
             }
-            st.close();
         }
-        catch(SQLException e){
-            if (st!= null) {
-                st.close();
-            }
-            throw e;
+        finally {
+            pool.release(conn);
         }
         return user;
     }
@@ -50,85 +127,222 @@ public class DAOImpl implements DAO{
 
 
     public Password findPasswordForUser(User user) throws SQLException {
-        String sql = "SELECT passwd FROM Password  WHERE user_id="+user.getId();
-        Statement st =null;
+        PooledConnection conn = pool.borrowReader();
         Password passwd =null;
         try {
-            st= db.createStatement();
-            ResultSet rs = st.executeQuery(sql);
-            if (rs.next()) passwd = new Password();
-            passwd.setPasswd(rs.getString("passwd"));
-            passwd.setUserId(user.getId());
-            st.close();
+            PreparedStatement st = conn.prepare(FIND_PASSWORD);
+            st.setInt(1, user.getId());
+            try (ResultSet rs = st.executeQuery()) {
+                if (rs.next()) {
+                    passwd = new Password();
+                    passwd.setPasswd(rs.getString("passwd"));
+                    passwd.setUserId(user.getId());
+                }
+            }
         }
-        catch (SQLException e){
-            if (st!=null) st.close();
-            throw e;
+        finally {
+            pool.release(conn);
         }
-
         return passwd;
     }
 
 
     public Account findAccountById(int accountId) throws SQLException {
-        String sql= "SELECT " +
-                "user.id as user_id, " +
-                "user.name as user_name, " +
-                "role.id as role_id, " +
-                "role.name as role_name, " +
-                "account.id as account_id, " +
-                "ammount " +
-                "FROM User , Role, Account " +
-                "WHERE role.id=user.role_id AND " +
-                "owner_id = user.id AND " +
-                "user_id = "+accountId;
-        Statement st = null;
+        PooledConnection conn = pool.borrowReader();
         Account account = null;
         try {
-            st = db.createStatement();
-            ResultSet rs = st.executeQuery(sql);
-            if (rs.next()) account = getAccountFromRs(rs);
-            st.close();
+            PreparedStatement st = conn.prepare(FIND_ACCOUNT_BY_ID);
+            st.setInt(1, accountId);
+            try (ResultSet rs = st.executeQuery()) {
+                if (rs.next()) account = getAccountFromRs(rs);
+            }
         }
-        catch(SQLException e){
-            if (st != null) st.close();
-            throw e;
+        finally {
+            pool.release(conn);
         }
         return account;
     }
 
 
     public boolean updateAccountState(Account account) throws SQLException {
-        String sql = "UPDATE ACCOUNT SET ammount = "+account.getAmmount() +
-                " WHERE id="+account.getId();
-        Statement st = null;
-        int infected_rows =0;
+        PooledConnection conn = pool.acquireWriter();
+        int infected_rows;
         try {
-            st = db.createStatement();
-            infected_rows = st.executeUpdate(sql);
-            st.close();
+            PreparedStatement st = conn.prepare(UPDATE_ACCOUNT);
+            st.setLong(1, account.getAmmount());
+            st.setInt(2, account.getId());
+            infected_rows = st.executeUpdate();
         }
-        catch(SQLException e){
-            if (st!=null) st.close();
-            throw e;
+        finally {
+            pool.releaseWriter();
         }
         if (infected_rows>=1) return true;
         return false;
     }
 
+    public boolean compareAndSetAccountState(Account account) throws SQLException {
+        PooledConnection conn = pool.acquireWriter();
+        int infected_rows;
+        try {
+            PreparedStatement st = conn.prepare(UPDATE_ACCOUNT_IF_VERSION);
+            st.setLong(1, account.getAmmount());
+            st.setInt(2, account.getId());
+            st.setInt(3, account.getVersion());
+            infected_rows = st.executeUpdate();
+        }
+        finally {
+            pool.releaseWriter();
+        }
+        if (infected_rows < 1) return false;
+        account.setVersion(account.getVersion() + 1);
+        return true;
+    }
+
+    public List<Account> findAccountsByIds(Collection<Integer> accountIds) throws SQLException {
+        List<Account> accounts = new ArrayList<>(accountIds.size());
+        findAccountsByIds(accountIds, DEFAULT_CHUNK_SIZE, accounts::addAll);
+        return accounts;
+    }
+
+    public void findAccountsByIds(Collection<Integer> accountIds, int chunkSize, ChunkHandler<Account> handler) throws SQLException {
+        if (chunkSize < 1) throw new IllegalArgumentException("Chunk size must be positive");
+        int inListSize = Math.min(chunkSize, MAX_IN_LIST);
+        Iterator<Integer> ids = accountIds.iterator();
+        List<Account> chunk = new ArrayList<>(chunkSize);
+        while (ids.hasNext()) {
+            List<Integer> keys = new ArrayList<>(inListSize);
+            while (ids.hasNext() && keys.size() < inListSize) keys.add(ids.next());
+            readAccounts(keys, inListSize, chunk);
+            // one query can read more than fits the chunk, the rest starts the next one
+            while (chunk.size() >= chunkSize) {
+                List<Account> full = chunk;
+                chunk = new ArrayList<>(full.subList(chunkSize, full.size()));
+                full.subList(chunkSize, full.size()).clear();
+                handler.handle(full);
+            }
+        }
+        if (!chunk.isEmpty()) handler.handle(chunk);
+    }
+
+    public List<Account> findAccountsPage(int afterId, int limit) throws SQLException {
+        PooledConnection conn = pool.borrowReader();
+        List<Account> page = new ArrayList<>(limit);
+        try {
+            PreparedStatement st = conn.prepare(FIND_ACCOUNTS_PAGE);
+            st.setInt(1, afterId);
+            st.setInt(2, limit);
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) page.add(getAccountFromRs(rs));
+            }
+        }
+        finally {
+            pool.release(conn);
+        }
+        return page;
+    }
+
+    public int countAccounts() throws SQLException {
+        PooledConnection conn = pool.borrowReader();
+        try {
+            PreparedStatement st = conn.prepare(COUNT_ACCOUNTS);
+            try (ResultSet rs = st.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+        finally {
+            pool.release(conn);
+        }
+    }
+
+    /**
+     * Last, shorter list is padded with its first id, so every query has the same shape
+     * and comes from the statement cache.
+     */
+    private void readAccounts(List<Integer> keys, int inListSize, List<Account> result) throws SQLException {
+        PooledConnection conn = pool.borrowReader();
+        try {
+            PreparedStatement st = conn.prepare(FIND_ACCOUNTS + "account.id IN (" + placeholders(inListSize) + ")");
+            for (int i = 0; i < inListSize; i++) {
+                st.setInt(i + 1, keys.get(i < keys.size() ? i : 0));
+            }
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) result.add(getAccountFromRs(rs));
+            }
+        }
+        finally {
+            pool.release(conn);
+        }
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder sb = new StringBuilder(count * 2);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) sb.append(',');
+            sb.append('?');
+        }
+        return sb.toString();
+    }
+
+    public boolean[] updateAccountStates(Collection<Account> accounts) throws SQLException {
+        boolean[] updated = new boolean[accounts.size()];
+        if (accounts.isEmpty()) return updated;
+        beginTransaction();
+        boolean committed = false;
+        try {
+            PreparedStatement st = pool.getWriter().prepare(UPDATE_ACCOUNT);
+            for (Account account : accounts) {
+                st.setLong(1, account.getAmmount());
+                st.setInt(2, account.getId());
+                st.addBatch();
+            }
+            int[] counts = st.executeBatch();
+            for (int i = 0; i < counts.length; i++) {
+                updated[i] = counts[i] >= 1 || counts[i] == Statement.SUCCESS_NO_INFO;
+            }
+            commitTransaction();
+            committed = true;
+        }
+        finally {
+            if (!committed) rollbackTransaction();
+        }
+        return updated;
+    }
+
+    public boolean applyDelta(int accountId, long delta, long minBalance) throws SQLException {
+        PooledConnection conn = pool.acquireWriter();
+        int infected_rows;
+        try {
+            PreparedStatement st;
+            if (minBalance == NO_MIN_BALANCE) {
+                st = conn.prepare(APPLY_DELTA_NO_LIMIT);
+            }
+            else {
+                st = conn.prepare(APPLY_DELTA);
+                st.setLong(3, delta);
+                st.setLong(4, minBalance);
+            }
+            st.setLong(1, delta);
+            st.setInt(2, accountId);
+            infected_rows = st.executeUpdate();
+        }
+        finally {
+            pool.releaseWriter();
+        }
+        return infected_rows >= 1;
+    }
+
     public boolean setUserPassword(User user, String passwd, String oldPass) throws SQLException {
-        String sql = "UPDATE PASSWORD SET passwd = '"+passwd +
-                "' WHERE user_id="+user.getId()+" AND passwd = '"+oldPass+"'" ;
-        Statement st = null;
-        int infected_rows =0;
+        PooledConnection conn = pool.acquireWriter();
+        int infected_rows;
         try {
-            st = db.createStatement();
-            infected_rows = st.executeUpdate(sql);
-            st.close();
+            PreparedStatement st = conn.prepare(UPDATE_PASSWORD);
+            st.setString(1, passwd);
+            st.setInt(2, user.getId());
+            st.setString(3, oldPass);
+            infected_rows = st.executeUpdate();
         }
-        catch(SQLException e){
-            if (st!=null) st.close();
-            throw e;
+        finally {
+            pool.releaseWriter();
         }
         if (infected_rows>=1) return true;
         return false;
@@ -150,60 +364,328 @@ public class DAOImpl implements DAO{
         Account account = new Account();
         account.setOwner(user);
         account.setId(rs.getInt("account_id"));
-        account.setAmmount(rs.getDouble("ammount"));
+        account.setAmmount(rs.getLong("balance"));
+        account.setVersion(rs.getInt("version"));
         return account;
     }
 
     public void close() throws SQLException {
-        db.close();
+        pool.close();
+    }
+
+    public Stream<Operation> streamOperations(OperationQuery query) throws SQLException {
+        List<Object> params = new ArrayList<>();
+        StringBuilder sql = new StringBuilder(FIND_OPERATIONS).append("WHERE 1=1");
+        if (query.getAccountId() != null) {
+            sql.append(" AND operation.account_id = ?");
+            params.add(query.getAccountId());
+        }
+        if (query.getUserId() != null) {
+            sql.append(" AND operation.user_id = ?");
+            params.add(query.getUserId());
+        }
+        if (query.getType() != null) {
+            sql.append(" AND operation.type IN (?, ?)");
+            params.add(query.getType().name());
+            params.add(query.getType().getId());
+        }
+        if (query.getFrom() != null) {
+            sql.append(" AND operation.date >= ?");
+            params.add(OperationDates.format(query.getFrom()));
+        }
+        if (query.getTo() != null) {
+            sql.append(" AND operation.date < ?");
+            params.add(OperationDates.format(query.getTo()));
+        }
+        if (query.getSuccessful() != null) {
+            sql.append(" AND EXISTS (SELECT 1 FROM History WHERE History.operation_id = operation.id AND History.succesfull IN (?, ?))");
+            params.add(String.valueOf(query.getSuccessful()));
+            params.add(query.getSuccessful() ? 1 : 0);
+        }
+        if (query.getAfterId() != null) {
+            sql.append(" AND operation.id > ?");
+            params.add(query.getAfterId());
+        }
+        if (query.getUpToId() != null) {
+            sql.append(" AND operation.id <= ?");
+            params.add(query.getUpToId());
+        }
+        sql.append(" ORDER BY operation.id");
+        return openOperationCursor(sql.toString(), params, query.getFetchSize());
+    }
+
+    public List<Operation> findOperationsPage(int accountId, Date beforeDate, int beforeId, int limit) throws SQLException {
+        PooledConnection conn = pool.borrowReader();
+        List<Operation> page = new ArrayList<>(limit);
+        try {
+            PreparedStatement st;
+            if (beforeDate == null) {
+                st = conn.prepare(FIND_FIRST_PAGE);
+                st.setInt(1, accountId);
+                st.setInt(2, limit);
+            }
+            else {
+                st = conn.prepare(FIND_NEXT_PAGE);
+                st.setInt(1, accountId);
+                st.setString(2, OperationDates.format(beforeDate));
+                st.setInt(3, beforeId);
+                st.setInt(4, limit);
+            }
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) page.add(getOperationFromRs(rs));
+            }
+        }
+        finally {
+            pool.release(conn);
+        }
+        return page;
+    }
+
+    private Stream<Operation> openOperationCursor(String sql, List<Object> params, int fetchSize) throws SQLException {
+        Connection own = pool.openCursorConnection();
+        PooledConnection borrowed = own == null ? pool.borrowReader() : null;
+        Connection conn = own != null ? own : borrowed.getConnection();
+        Runnable release = () -> {
+            try {
+                if (own != null) own.close();
+            }
+            catch (SQLException e) {
+                throw new UncheckedSQLException(e);
+            }
+            finally {
+                if (borrowed != null) pool.release(borrowed);
+            }
+        };
+        PreparedStatement st = null;
+        ResultSet rs;
+        try {
+            st = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            st.setFetchSize(fetchSize);
+            for (int i = 0; i < params.size(); i++) st.setObject(i + 1, params.get(i));
+            rs = st.executeQuery();
+        }
+        catch (SQLException | RuntimeException e) {
+            if (st != null) st.close();
+            release.run();
+            throw e;
+        }
+        OperationCursor cursor = new OperationCursor(st, rs, release);
+        return StreamSupport.stream(cursor, false).onClose(cursor::close);
+    }
+
+    /**
+     * Reads operations from an open result set, closes it together with the connection
+     * when the stream is closed or the last row was read.
+     */
+    private static class OperationCursor extends Spliterators.AbstractSpliterator<Operation> {
+        private final PreparedStatement st;
+        private final ResultSet rs;
+        private final Runnable release;
+        private boolean closed;
+
+        OperationCursor(PreparedStatement st, ResultSet rs, Runnable release) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.st = st;
+            this.rs = rs;
+            this.release = release;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Operation> action) {
+            if (closed) return false;
+            try {
+                if (!rs.next()) {
+                    close();
+                    return false;
+                }
+                action.accept(getOperationFromRs(rs));
+                return true;
+            }
+            catch (SQLException e) {
+                close();
+                throw new UncheckedSQLException(e);
+            }
+        }
+
+        void close() {
+            if (closed) return;
+            closed = true;
+            try {
+                st.close();
+            }
+            catch (SQLException e) {
+                throw new UncheckedSQLException(e);
+            }
+            finally {
+                release.run();
+            }
+        }
+    }
+
+    private static Operation getOperationFromRs(ResultSet rs) throws SQLException {
+        User user = null;
+        int userId = rs.getInt("user_id");
+        if (!rs.wasNull()) {
+            user = new User();
+            user.setId(userId);
+            user.setName(rs.getString("user_name"));
+            if (rs.getString("role_name") != null) {
+                Role role = new Role();
+                role.setId(rs.getInt("role_id"));
+                role.setName(rs.getString("role_name"));
+                user.setRole(role);
+            }
+        }
+        Account account = null;
+        int accountId = rs.getInt("account_id");
+        if (!rs.wasNull()) {
+            account = new Account();
+            account.setId(accountId);
+        }
+        String description = rs.getString("description");
+        long ammount = rs.getLong("operation_ammount");
+        Operation operation;
+        switch (operationType(rs.getString("operation_type"))) {
+            case PAYMENT_IN: operation = new PaymentIn(user, ammount, description, account); break;
+            case WITHDRAW: operation = new Withdraw(user, ammount, description, account); break;
+            case INTEREST: operation = new Interest(user, ammount, description, account); break;
+            case LOG_IN: operation = new LogIn(user, description); break;
+            default: operation = new LogOut(user, description); break;
+        }
+        operation.setId(rs.getInt("operation_id"));
+        operation.setDate(OperationDates.parse(rs.getString("operation_date")));
+        return operation;
+    }
+
+    /**
+     * Type column holds the enum name, but the schema declares it as Operation_Types id.
+     */
+    private static OperationType operationType(String value) {
+        for (OperationType type : OperationType.values()) {
+            if (type.name().equals(value) || String.valueOf(type.getId()).equals(value)) return type;
+        }
+        throw new IllegalArgumentException("Unknown operation type " + value);
+    }
+
+    public void beginTransaction() throws SQLException {
+        PooledConnection conn = pool.acquireWriter();
+        if (transactionDepth == 0) {
+            try {
+                conn.getConnection().setAutoCommit(false);
+            }
+            catch (SQLException e) {
+                pool.releaseWriter();
+                throw e;
+            }
+            rollbackOnly = false;
+        }
+        transactionDepth++;
+    }
+
+    public void commitTransaction() throws SQLException {
+        checkTransaction();
+        if (transactionDepth == 1) {
+            // left open, the caller's rollbackTransaction ends it
+            if (rollbackOnly) throw new SQLException("Transaction was marked for rollback by a nested transaction");
+            Connection connection = pool.getWriter().getConnection();
+            connection.commit();
+            connection.setAutoCommit(true);
+        }
+        transactionDepth--;
+        pool.releaseWriter();
+    }
+
+    public void rollbackTransaction() throws SQLException {
+        checkTransaction();
+        try {
+            if (transactionDepth == 1) {
+                Connection connection = pool.getWriter().getConnection();
+                try {
+                    connection.rollback();
+                }
+                finally {
+                    connection.setAutoCommit(true);
+                }
+            }
+            else {
+                rollbackOnly = true;
+            }
+        }
+        finally {
+            transactionDepth--;
+            pool.releaseWriter();
+        }
+    }
+
+    public boolean isInTransaction() {
+        return pool.isWriterHeldByCurrentThread() && transactionDepth > 0;
+    }
+
+    public boolean isEventSourced() {
+        return false;
+    }
+
+    private void checkTransaction() throws SQLException {
+        if (!isInTransaction()) throw new SQLException("No transaction started by current thread");
     }
 
     public void logOperation(Operation operation, boolean success) throws SQLException {
-        Statement st = db.createStatement();
-        String sqlStart = "INSERT INTO OPERATION ";
-        String sqlFields = "(`type`, `description`, `date`, `user_id` ";
-        String sqlValues = "VALUES ('"+operation.getType()+"'," +
-                "'"+operation.getDescription()+"'," +
-                "'"+operation.getDate()+"'," +
-                operation.getUser().getId();
-        switch(operation.getType()){
-            case INTEREST: buildQueryInterest((Interest) operation,sqlFields,sqlValues);break;
-            case LOG_IN: buildQueryLogOperation((LogOperation) operation,sqlFields,sqlValues);break;
-            case LOG_OUT: buildQueryLogOperation((LogOperation) operation,sqlFields,sqlValues);break;
-            case WITHDRAW: buildQueryPayment((Payment) operation,sqlFields,sqlValues);break;
-            case PAYMENT_IN: buildQueryPayment((Payment) operation,sqlFields,sqlValues);break;
-        }
-        sqlFields+=") ";
-        sqlValues+=") ";
-        st.executeUpdate(sqlStart+sqlFields+sqlValues);
-        ResultSet rs = st.getGeneratedKeys();
-        if (rs.next()) {
-            int generatedkey=rs.getInt(1);
-            Statement st2 = db.createStatement();
-            String sql ="INSERT INTO History (`operation_id`,`succesfull`) " +
-                    "VALUES ("+rs.getInt(1)+", '"+success+"')";
-            st2.execute(sql);
-            st2.close();
-        }
-        st.close();
-
-    }
-
-    private void buildQueryPayment(Payment operation, String sqlFields, String sqlValues) {
-        sqlFields+= ", `ammount`,`account_id`) ";
-        sqlValues+= ", "+operation.getAmmount()+","+
-                    operation.getAccount().getId()+")";
-    }
-
-    private void buildQueryInterest(Interest operation, String sqlFields, String sqlValues) {
-        sqlFields+= ", `ammount`,`account_id`) ";
-        sqlValues+= ", "+operation.getAmmount()+","+
-                operation.getAccount().getId()+")";
-    }
-
-    private void buildQueryLogOperation(LogOperation operation, String sqlFields, String sqlValues) {
-        sqlFields+= " )";
-        sqlValues+= " )";
+        PooledConnection conn = pool.acquireWriter();
+        try {
+            insertOperation(conn, operation, success);
+        }
+        finally {
+            pool.releaseWriter();
+        }
+    }
+
+    public void logOperations(List<HistoryEntry> entries) throws SQLException {
+        if (entries.isEmpty()) return;
+        beginTransaction();
+        boolean committed = false;
+        try {
+            PooledConnection conn = pool.getWriter();
+            for (HistoryEntry entry : entries) {
+                insertOperation(conn, entry.getOperation(), entry.isSuccess());
+            }
+            commitTransaction();
+            committed = true;
+        }
+        finally {
+            if (!committed) rollbackTransaction();
+        }
+    }
+
+    private void insertOperation(PooledConnection conn, Operation operation, boolean success) throws SQLException {
+        PreparedStatement st;
+        if (operation instanceof Payment) {
+            Payment payment = (Payment) operation;
+            st = conn.prepare(INSERT_PAYMENT);
+            st.setLong(5, payment.getAmmount());
+            st.setInt(6, payment.getAccount().getId());
+        }
+        else {
+            st = conn.prepare(INSERT_LOG_OPERATION);
+        }
+        st.setString(1, operation.getType().name());
+        st.setString(2, operation.getDescription());
+        st.setString(3, OperationDates.format(operation.getDate()));
+        if (operation.getUser() != null) st.setInt(4, operation.getUser().getId());
+        else st.setNull(4, Types.INTEGER);
+        st.executeUpdate();
+        try (ResultSet rs = st.getGeneratedKeys()) {
+            if (rs.next()) {
+                operation.setId(rs.getInt(1));
+                PreparedStatement history = conn.prepare(INSERT_HISTORY);
+                history.setInt(1, rs.getInt(1));
+                history.setString(2, String.valueOf(success));
+                history.executeUpdate();
+            }
+        }
+    }
+
+    public ConnectionPool getConnectionPool() {
+        return pool;
     }
 
 
@@ -0,0 +1,718 @@
+package db.dao.impl;
+
+import db.dao.ChunkHandler;
+import db.dao.DAO;
+import db.dao.OperationQuery;
+import model.Account;
+import model.HistoryEntry;
+import model.Money;
+import model.Operation;
+import model.operations.Payment;
+import model.operations.Withdraw;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * DAO in which the operation log of the delegate is the source of truth for balances.
+ * A balance is the one stored in the delegate when this mode was turned on plus all
+ * successful payments logged since then. Balances are kept in memory and written to
+ * snapshot files in the directory every snapshotInterval logged payments, on start
+ * the newest snapshot is read and only operations logged after it are replayed.
+ * <p>
+ * Balance changes made through this DAO (applyDelta, compare and set, account updates)
+ * are only held in memory and visible to readers, they become part of the balance when
+ * the matching payment is logged and committed. They have to be made in a transaction
+ * that also logs their payments, like {@link biz.AccountManager} does when
+ * {@link #isEventSourced()}, so a failed log undoes them with the rollback. A change
+ * outside a transaction is refused. The balance column of the delegate is not written
+ * anymore and nothing else may write it while this mode is on.
+ */
+public class EventSourcedDAO extends ForwardingDAO {
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 10_000;
+    public static final int DEFAULT_RETAINED_SNAPSHOTS = 8;
+
+    private static final int MAGIC = 0x424E4B53;
+    // magic, last operation id, time taken, number of records
+    private static final int HEADER_SIZE = 20;
+    // account id and balance
+    private static final int RECORD_SIZE = 12;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".dat";
+
+    private final Path directory;
+    private final int snapshotInterval;
+    private final int retainedSnapshots;
+    private final Map<Integer, Balance> balances = new ConcurrentHashMap<>();
+    private final ThreadLocal<Transaction> transaction = new ThreadLocal<>();
+    // orders applying committed operations, so snapshots cut the log at lastId
+    private final ReentrantLock eventLock = new ReentrantLock();
+    // guarded by eventLock
+    private int lastId;
+    // sorted by last operation id, guarded by itself
+    private final List<Snapshot> snapshots = new ArrayList<>();
+    private final ExecutorService snapshotWriter;
+    private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+
+    private final AtomicLong eventsSinceSnapshot = new AtomicLong();
+    private final AtomicLong appliedEvents = new AtomicLong();
+    private final AtomicLong snapshotsWritten = new AtomicLong();
+    private final AtomicLong failedSnapshots = new AtomicLong();
+    private final AtomicLong damagedSnapshots = new AtomicLong();
+    private volatile Consumer<Exception> errorListener;
+    private final long replayedEvents;
+    private final long startupMillis;
+
+    public EventSourcedDAO(DAO delegate, Path directory) throws SQLException {
+        this(delegate, directory, DEFAULT_SNAPSHOT_INTERVAL, DEFAULT_RETAINED_SNAPSHOTS);
+    }
+
+    /**
+     * Reads the newest snapshot in the directory and replays operations logged after it.
+     * Without any snapshot the mode is turned on: the whole log is read once to find
+     * where it ends and a first snapshot is written.
+     */
+    public EventSourcedDAO(DAO delegate, Path directory, int snapshotInterval, int retainedSnapshots) throws SQLException {
+        super(delegate);
+        if (snapshotInterval < 1 || retainedSnapshots < 1) throw new IllegalArgumentException("Bad snapshot settings");
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+        this.retainedSnapshots = retainedSnapshots;
+        long start = System.nanoTime();
+        try {
+            Files.createDirectories(directory);
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Iterator<Path> it = files.iterator(); it.hasNext(); ) {
+                    Path file = it.next();
+                    String name = file.getFileName().toString();
+                    if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) snapshots.add(readHeader(file));
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new SQLException("Can not read snapshots in " + directory, e);
+        }
+        snapshots.sort(Comparator.comparingInt(s -> s.lastId));
+        if (snapshots.isEmpty()) {
+            try (Stream<Operation> log = delegate.streamOperations(new OperationQuery())) {
+                lastId = log.mapToInt(Operation::getId).max().orElse(0);
+            }
+            writeSnapshot(lastId, new TreeMap<>());
+        }
+        else {
+            loadNewestSnapshot();
+        }
+        long replayed = 0;
+        try (Stream<Operation> tail = delegate.streamOperations(new OperationQuery().afterId(lastId).successful(true))) {
+            for (Iterator<Operation> it = tail.iterator(); it.hasNext(); ) {
+                Operation operation = it.next();
+                lastId = Math.max(lastId, operation.getId());
+                if (!(operation instanceof Payment)) continue;
+                Balance balance = balance(accountId(operation));
+                if (balance != null) balance.projected = Money.add(balance.projected, delta(operation));
+                replayed++;
+            }
+        }
+        this.replayedEvents = replayed;
+        eventsSinceSnapshot.set(replayed);
+        this.startupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        this.snapshotWriter = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "snapshot-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the newest snapshot that is not damaged, a snapshot cut by a crash is skipped.
+     */
+    private void loadNewestSnapshot() throws SQLException {
+        List<IOException> damaged = new ArrayList<>();
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            Snapshot snapshot = snapshots.get(i);
+            try {
+                Map<Integer, Long> stored = readSnapshot(snapshot.file);
+                for (Map.Entry<Integer, Long> entry : stored.entrySet()) {
+                    Account account = delegate.findAccountById(entry.getKey());
+                    Balance balance = new Balance(entry.getValue(), account == null ? 0 : account.getVersion());
+                    balances.put(entry.getKey(), balance);
+                }
+                lastId = snapshot.lastId;
+                return;
+            }
+            catch (IOException e) {
+                damagedSnapshots.incrementAndGet();
+                damaged.add(e);
+            }
+        }
+        SQLException none = new SQLException("No readable snapshot in " + directory);
+        for (IOException e : damaged) none.addSuppressed(e);
+        throw none;
+    }
+
+    /**
+     * Balance of the account, read from the delegate the first time it is used.
+     * @return null when the account does not exist
+     */
+    private Balance balance(int accountId) throws SQLException {
+        Balance balance = balances.get(accountId);
+        if (balance != null) return balance;
+        Account account = delegate.findAccountById(accountId);
+        if (account == null) return null;
+        Balance loaded = new Balance(account.getAmmount(), account.getVersion());
+        balance = balances.putIfAbsent(accountId, loaded);
+        return balance == null ? loaded : balance;
+    }
+
+    private Account withBalance(Account account) {
+        if (account == null) return null;
+        Balance balance = balances.get(account.getId());
+        if (balance != null) {
+            synchronized (balance) {
+                account.setAmmount(balance.visible());
+                account.setVersion(balance.version);
+            }
+        }
+        return account;
+    }
+
+    @Override
+    public Account findAccountById(int accountId) throws SQLException {
+        return withBalance(delegate.findAccountById(accountId));
+    }
+
+    @Override
+    public List<Account> findAccountsByIds(Collection<Integer> accountIds) throws SQLException {
+        List<Account> accounts = delegate.findAccountsByIds(accountIds);
+        for (Account account : accounts) withBalance(account);
+        return accounts;
+    }
+
+    @Override
+    public void findAccountsByIds(Collection<Integer> accountIds, int chunkSize, ChunkHandler<Account> handler) throws SQLException {
+        delegate.findAccountsByIds(accountIds, chunkSize, chunk -> {
+            for (Account account : chunk) withBalance(account);
+            handler.handle(chunk);
+        });
+    }
+
+    @Override
+    public List<Account> findAccountsPage(int afterId, int limit) throws SQLException {
+        List<Account> accounts = delegate.findAccountsPage(afterId, limit);
+        for (Account account : accounts) withBalance(account);
+        return accounts;
+    }
+
+    @Override
+    public boolean isEventSourced() {
+        return true;
+    }
+
+    @Override
+    public boolean applyDelta(int accountId, long delta, long minBalance) throws SQLException {
+        checkTransaction();
+        Balance balance = balance(accountId);
+        if (balance == null) return false;
+        synchronized (balance) {
+            long changed = Money.add(balance.visible(), delta);
+            if (minBalance != NO_MIN_BALANCE && changed < minBalance) return false;
+            hold(balance, delta);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean compareAndSetAccountState(Account account) throws SQLException {
+        checkTransaction();
+        Balance balance = balance(account.getId());
+        if (balance == null) return false;
+        synchronized (balance) {
+            if (balance.version != account.getVersion()) return false;
+            hold(balance, Money.subtract(account.getAmmount(), balance.visible()));
+            account.setVersion(balance.version);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean updateAccountState(Account account) throws SQLException {
+        checkTransaction();
+        Balance balance = balance(account.getId());
+        if (balance == null) return false;
+        synchronized (balance) {
+            hold(balance, Money.subtract(account.getAmmount(), balance.visible()));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean[] updateAccountStates(Collection<Account> accounts) throws SQLException {
+        boolean[] updated = new boolean[accounts.size()];
+        int i = 0;
+        for (Account account : accounts) updated[i++] = updateAccountState(account);
+        return updated;
+    }
+
+    private void checkTransaction() throws SQLException {
+        if (transaction.get() == null) {
+            throw new SQLException("Balance changes have to be made in the transaction that logs their payments");
+        }
+    }
+
+    /**
+     * Changes the visible balance until the payment is logged, called with the balance locked.
+     */
+    private void hold(Balance balance, long delta) {
+        balance.held = Money.add(balance.held, delta);
+        balance.version++;
+        transaction.get().holds.add(new Hold(balance, delta));
+    }
+
+    @Override
+    public void beginTransaction() throws SQLException {
+        delegate.beginTransaction();
+        Transaction tx = transaction.get();
+        if (tx == null) transaction.set(new Transaction());
+        else tx.depth++;
+    }
+
+    @Override
+    public void commitTransaction() throws SQLException {
+        Transaction tx = transaction.get();
+        if (tx == null || tx.depth > 1) {
+            if (tx != null) tx.depth--;
+            delegate.commitTransaction();
+            return;
+        }
+        for (Operation operation : tx.events) balance(accountId(operation));
+        eventLock.lock();
+        try {
+            // a failed commit keeps the holds, the caller's rollbackTransaction undoes them
+            delegate.commitTransaction();
+            transaction.remove();
+            apply(tx.events);
+        }
+        finally {
+            eventLock.unlock();
+        }
+        if (!tx.events.isEmpty() && eventsSinceSnapshot.addAndGet(tx.events.size()) >= snapshotInterval) {
+            scheduleSnapshot();
+        }
+    }
+
+    @Override
+    public void rollbackTransaction() throws SQLException {
+        Transaction tx = transaction.get();
+        if (tx != null && --tx.depth == 0) {
+            transaction.remove();
+            undo(tx.holds);
+        }
+        delegate.rollbackTransaction();
+    }
+
+    /**
+     * Moves committed payments from held changes to the balances, called with eventLock held.
+     */
+    private void apply(List<Operation> events) {
+        for (Operation operation : events) {
+            lastId = Math.max(lastId, operation.getId());
+            Balance balance = balances.get(accountId(operation));
+            if (balance == null) continue;
+            long delta = delta(operation);
+            synchronized (balance) {
+                balance.projected = Money.add(balance.projected, delta);
+                balance.held -= delta;
+            }
+        }
+        appliedEvents.addAndGet(events.size());
+    }
+
+    private static void undo(List<Hold> holds) {
+        for (int i = holds.size() - 1; i >= 0; i--) {
+            Hold hold = holds.get(i);
+            synchronized (hold.balance) {
+                hold.balance.held -= hold.delta;
+            }
+        }
+    }
+
+    @Override
+    public void logOperation(Operation operation, boolean success) throws SQLException {
+        Transaction tx = transaction.get();
+        if (!(success && operation instanceof Payment)) {
+            delegate.logOperation(operation, success);
+        }
+        else if (tx != null) {
+            delegate.logOperation(operation, success);
+            tx.events.add(operation);
+        }
+        else {
+            // the payment changes balances only once it is committed
+            beginTransaction();
+            boolean committed = false;
+            try {
+                logOperation(operation, success);
+                commitTransaction();
+                committed = true;
+            }
+            finally {
+                if (!committed) rollbackTransaction();
+            }
+        }
+    }
+
+    @Override
+    public void logOperations(List<HistoryEntry> entries) throws SQLException {
+        if (entries.isEmpty()) return;
+        beginTransaction();
+        boolean committed = false;
+        try {
+            delegate.logOperations(entries);
+            Transaction tx = transaction.get();
+            for (HistoryEntry entry : entries) {
+                if (entry.isSuccess() && entry.getOperation() instanceof Payment) tx.events.add(entry.getOperation());
+            }
+            commitTransaction();
+            committed = true;
+        }
+        finally {
+            if (!committed) rollbackTransaction();
+        }
+    }
+
+    private static int accountId(Operation operation) {
+        return ((Payment) operation).getAccount().getId();
+    }
+
+    private static long delta(Operation operation) {
+        long ammount = ((Payment) operation).getAmmount();
+        return operation instanceof Withdraw ? Money.negate(ammount) : ammount;
+    }
+
+    /**
+     * Balance of the account at the given time counted from the log: the snapshot taken closest
+     * before it plus payments logged after the snapshot up to that time, minus payments in the
+     * snapshot made later than that time. Payments held but not logged yet are not included.
+     * @return account with the balance it had at that time or null when it does not exist
+     */
+    public Account findAccountAt(int accountId, Date date) throws SQLException {
+        Account account = delegate.findAccountById(accountId);
+        if (account == null) return null;
+        Snapshot snapshot;
+        long ammount;
+        // read under the lock, so retention can not delete the chosen snapshot meanwhile
+        synchronized (snapshots) {
+            snapshot = snapshots.get(0);
+            for (Snapshot s : snapshots) {
+                if (s.takenAt <= date.getTime()) snapshot = s;
+            }
+            try {
+                Long stored = findInSnapshot(snapshot, accountId);
+                ammount = stored != null ? stored : account.getAmmount();
+            }
+            catch (IOException e) {
+                throw new SQLException("Can not read snapshot " + snapshot.file, e);
+            }
+        }
+        // operations logged until the date, inclusive
+        Date after = new Date(date.getTime() + 1);
+        OperationQuery later = new OperationQuery().forAccount(accountId).successful(true)
+                .afterId(snapshot.lastId).between(null, after);
+        try (Stream<Operation> operations = delegate.streamOperations(later)) {
+            for (Iterator<Operation> it = operations.iterator(); it.hasNext(); ) {
+                ammount = Money.add(ammount, delta(it.next()));
+            }
+        }
+        OperationQuery undone = new OperationQuery().forAccount(accountId).successful(true)
+                .upToId(snapshot.lastId).between(after, null);
+        try (Stream<Operation> operations = delegate.streamOperations(undone)) {
+            for (Iterator<Operation> it = operations.iterator(); it.hasNext(); ) {
+                ammount = Money.subtract(ammount, delta(it.next()));
+            }
+        }
+        account.setAmmount(ammount);
+        return account;
+    }
+
+    /**
+     * Writes balances of all accounts used so far, together with the id of the last operation
+     * they contain. The copy is made under the lock that applies payments, writing happens outside it.
+     */
+    public void snapshot() throws SQLException {
+        int id;
+        TreeMap<Integer, Long> copy = new TreeMap<>();
+        eventLock.lock();
+        try {
+            id = lastId;
+            for (Map.Entry<Integer, Balance> entry : balances.entrySet()) {
+                Balance balance = entry.getValue();
+                synchronized (balance) {
+                    copy.put(entry.getKey(), balance.projected);
+                }
+            }
+            eventsSinceSnapshot.set(0);
+        }
+        finally {
+            eventLock.unlock();
+        }
+        synchronized (snapshots) {
+            if (!snapshots.isEmpty() && snapshots.get(snapshots.size() - 1).lastId >= id) return;
+            writeSnapshot(id, copy);
+        }
+    }
+
+    private void scheduleSnapshot() {
+        if (!snapshotScheduled.compareAndSet(false, true)) return;
+        try {
+            snapshotWriter.execute(() -> {
+                try {
+                    snapshot();
+                }
+                catch (SQLException | RuntimeException e) {
+                    failedSnapshots.incrementAndGet();
+                    error(e);
+                }
+                finally {
+                    snapshotScheduled.set(false);
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            snapshotScheduled.set(false);
+        }
+    }
+
+    /**
+     * Writes the file next to its final name and moves it there, so a crash leaves no partial snapshot,
+     * then deletes snapshots above the retained count. Called holding the snapshots lock or from the constructor.
+     */
+    private void writeSnapshot(int id, TreeMap<Integer, Long> stored) throws SQLException {
+        Path file = directory.resolve(String.format("%s%010d%s", PREFIX, id, SUFFIX));
+        Path temporary = directory.resolve(file.getFileName() + ".tmp");
+        long takenAt = System.currentTimeMillis();
+        try (FileOutputStream fileOut = new FileOutputStream(temporary.toFile())) {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fileOut, crc)));
+            out.writeInt(MAGIC);
+            out.writeInt(id);
+            out.writeLong(takenAt);
+            out.writeInt(stored.size());
+            for (Map.Entry<Integer, Long> entry : stored.entrySet()) {
+                out.writeInt(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.flush();
+            out.writeLong(crc.getValue());
+            out.flush();
+            fileOut.getChannel().force(true);
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            throw new SQLException("Can not write snapshot " + file, e);
+        }
+        snapshots.add(new Snapshot(file, id, takenAt));
+        snapshotsWritten.incrementAndGet();
+        while (snapshots.size() > retainedSnapshots) {
+            Snapshot oldest = snapshots.remove(0);
+            try {
+                Files.deleteIfExists(oldest.file);
+            }
+            catch (IOException e) {
+                // only takes space, the file is not read again once dropped from the list
+                error(e);
+            }
+        }
+    }
+
+    private void error(Exception e) {
+        Consumer<Exception> listener = errorListener;
+        if (listener != null) listener.accept(e);
+    }
+
+    private static Snapshot readHeader(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a snapshot file " + file);
+            int id = in.readInt();
+            long takenAt = in.readLong();
+            return new Snapshot(file, id, takenAt);
+        }
+    }
+
+    private static Map<Integer, Long> readSnapshot(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file)), crc))) {
+            Map<Integer, Long> stored = new TreeMap<>();
+            if (in.readInt() != MAGIC) throw new IOException("Not a snapshot file " + file);
+            in.readInt();
+            in.readLong();
+            int records = in.readInt();
+            for (int i = 0; i < records; i++) stored.put(in.readInt(), in.readLong());
+            long expected = crc.getValue();
+            if (in.readLong() != expected) throw new IOException("Damaged snapshot file " + file);
+            return stored;
+        }
+    }
+
+    /**
+     * Finds the account in a snapshot with a binary search over its records sorted by account id.
+     */
+    private static Long findInSnapshot(Snapshot snapshot, int accountId) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot.file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+            channel.read(buffer, HEADER_SIZE - 4);
+            int low = 0;
+            int high = buffer.getInt(0) - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                buffer.clear();
+                channel.read(buffer, HEADER_SIZE + (long) middle * RECORD_SIZE);
+                int id = buffer.getInt(0);
+                if (id < accountId) low = middle + 1;
+                else if (id > accountId) high = middle - 1;
+                else return buffer.getLong(4);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes a last snapshot, so the next start has nothing to replay, and closes the delegate.
+     */
+    @Override
+    public void close() throws SQLException {
+        snapshotWriter.shutdown();
+        try {
+            snapshotWriter.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            snapshot();
+        }
+        finally {
+            delegate.close();
+        }
+    }
+
+    /**
+     * Operations replayed after the snapshot on start, bounded by the snapshot interval.
+     */
+    public long getReplayedEvents() {
+        return replayedEvents;
+    }
+
+    public long getStartupMillis() {
+        return startupMillis;
+    }
+
+    public long getAppliedEvents() {
+        return appliedEvents.get();
+    }
+
+    public long getEventsSinceSnapshot() {
+        return eventsSinceSnapshot.get();
+    }
+
+    public long getSnapshotsWritten() {
+        return snapshotsWritten.get();
+    }
+
+    /**
+     * Snapshots taken in the background after snapshotInterval payments that could not be written.
+     */
+    public long getFailedSnapshots() {
+        return failedSnapshots.get();
+    }
+
+    /**
+     * Snapshots skipped on start because they could not be read.
+     */
+    public long getDamagedSnapshots() {
+        return damagedSnapshots.get();
+    }
+
+    /**
+     * Receives errors of background snapshots and of deleting old snapshot files. Called from the
+     * snapshot writer thread, or from the one calling {@link #snapshot()}. Null turns it off.
+     */
+    public void setErrorListener(Consumer<Exception> errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    private static class Balance {
+        // from the log: balance when the mode was turned on plus committed payments
+        long projected;
+        // changes made but not logged yet
+        long held;
+        int version;
+
+        Balance(long projected, int version) {
+            this.projected = projected;
+            this.version = version;
+        }
+
+        long visible() {
+            return projected + held;
+        }
+    }
+
+    private static class Hold {
+        final Balance balance;
+        final long delta;
+
+        Hold(Balance balance, long delta) {
+            this.balance = balance;
+            this.delta = delta;
+        }
+    }
+
+    private static class Transaction {
+        int depth = 1;
+        final List<Hold> holds = new ArrayList<>();
+        final List<Operation> events = new ArrayList<>();
+    }
+
+    private static class Snapshot {
+        final Path file;
+        final int lastId;
+        final long takenAt;
+
+        Snapshot(Path file, int lastId, long takenAt) {
+            this.file = file;
+            this.lastId = lastId;
+            this.takenAt = takenAt;
+        }
+    }
+}
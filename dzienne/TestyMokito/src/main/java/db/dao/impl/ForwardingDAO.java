@@ -0,0 +1,119 @@
+package db.dao.impl;
+
+import db.dao.ChunkHandler;
+import db.dao.DAO;
+import db.dao.OperationQuery;
+import model.Account;
+import model.HistoryEntry;
+import model.Operation;
+import model.Password;
+import model.User;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * DAO passing every call to another DAO, base class for decorators.
+ */
+public abstract class ForwardingDAO implements DAO {
+    protected final DAO delegate;
+
+    protected ForwardingDAO(DAO delegate) {
+        this.delegate = delegate;
+    }
+
+    public DAO getDelegate() {
+        return delegate;
+    }
+
+    public User findUserByName(String userName) throws SQLException {
+        return delegate.findUserByName(userName);
+    }
+
+    public Password findPasswordForUser(User user) throws SQLException {
+        return delegate.findPasswordForUser(user);
+    }
+
+    public Account findAccountById(int accountId) throws SQLException {
+        return delegate.findAccountById(accountId);
+    }
+
+    public boolean updateAccountState(Account account) throws SQLException {
+        return delegate.updateAccountState(account);
+    }
+
+    public List<Account> findAccountsByIds(Collection<Integer> accountIds) throws SQLException {
+        return delegate.findAccountsByIds(accountIds);
+    }
+
+    public void findAccountsByIds(Collection<Integer> accountIds, int chunkSize, ChunkHandler<Account> handler) throws SQLException {
+        delegate.findAccountsByIds(accountIds, chunkSize, handler);
+    }
+
+    public List<Account> findAccountsPage(int afterId, int limit) throws SQLException {
+        return delegate.findAccountsPage(afterId, limit);
+    }
+
+    public int countAccounts() throws SQLException {
+        return delegate.countAccounts();
+    }
+
+    public boolean[] updateAccountStates(Collection<Account> accounts) throws SQLException {
+        return delegate.updateAccountStates(accounts);
+    }
+
+    public boolean compareAndSetAccountState(Account account) throws SQLException {
+        return delegate.compareAndSetAccountState(account);
+    }
+
+    public boolean applyDelta(int accountId, long delta, long minBalance) throws SQLException {
+        return delegate.applyDelta(accountId, delta, minBalance);
+    }
+
+    public boolean setUserPassword(User user, String passwd, String oldPass) throws SQLException {
+        return delegate.setUserPassword(user, passwd, oldPass);
+    }
+
+    public void close() throws SQLException {
+        delegate.close();
+    }
+
+    public void beginTransaction() throws SQLException {
+        delegate.beginTransaction();
+    }
+
+    public void commitTransaction() throws SQLException {
+        delegate.commitTransaction();
+    }
+
+    public void rollbackTransaction() throws SQLException {
+        delegate.rollbackTransaction();
+    }
+
+    public boolean isInTransaction() {
+        return delegate.isInTransaction();
+    }
+
+    public boolean isEventSourced() {
+        return delegate.isEventSourced();
+    }
+
+    public void logOperation(Operation operation, boolean success) throws SQLException {
+        delegate.logOperation(operation, success);
+    }
+
+    public void logOperations(List<HistoryEntry> entries) throws SQLException {
+        delegate.logOperations(entries);
+    }
+
+    public Stream<Operation> streamOperations(OperationQuery query) throws SQLException {
+        return delegate.streamOperations(query);
+    }
+
+    public List<Operation> findOperationsPage(int accountId, Date beforeDate, int beforeId, int limit) throws SQLException {
+        return delegate.findOperationsPage(accountId, beforeDate, beforeId, limit);
+    }
+}
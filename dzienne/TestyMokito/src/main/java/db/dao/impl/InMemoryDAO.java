@@ -0,0 +1,456 @@
+package db.dao.impl;
+
+import db.dao.ChunkHandler;
+import db.dao.DAO;
+import db.dao.OperationQuery;
+import model.Account;
+import model.HistoryEntry;
+import model.Money;
+import model.Operation;
+import model.Password;
+import model.Role;
+import model.User;
+import model.operations.Payment;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * DAO keeping everything in memory, with the same results as {@link DAOImpl}.
+ * Writes outside transactions run in parallel, a transaction excludes other writers
+ * like the SQLite writer connection does.
+ * Changes made in a transaction are kept aside and seen only by its thread until commit,
+ * rollback drops them. Commit publishes them account by account, a reader running at the
+ * same time can see some accounts of the transaction changed and others not yet.
+ * Logged operations are appended without locking to a map sorted by id. Writers claim an id,
+ * put the operation and move a published id forward over every id that is filled, readers
+ * stop at the published id, so a reader resuming after the last id it saw misses nothing.
+ */
+public class InMemoryDAO implements DAO {
+    private final Map<String, User> usersByName = new ConcurrentHashMap<>();
+    private final Map<Integer, Password> passwords = new ConcurrentHashMap<>();
+    private final Map<Integer, Role> roles = new ConcurrentHashMap<>();
+    // sorted by id for keyset pages
+    private final ConcurrentNavigableMap<Integer, Account> accounts = new ConcurrentSkipListMap<>();
+    private final AtomicInteger accountCount = new AtomicInteger();
+    private final ConcurrentNavigableMap<Integer, StoredOperation> operations = new ConcurrentSkipListMap<>();
+    private final AtomicInteger operationIds = new AtomicInteger();
+    // every id up to this one is in operations or was rolled back
+    private final AtomicInteger published = new AtomicInteger();
+
+    private final ReentrantReadWriteLock writeLock = new ReentrantReadWriteLock();
+    private final long lockTimeoutMillis;
+    // guarded by the write lock, changes of the current transaction
+    private int transactionDepth;
+    private boolean rollbackOnly;
+    private final Map<Integer, Account> pendingAccounts = new HashMap<>();
+    private final Map<Integer, Password> pendingPasswords = new HashMap<>();
+    private final List<StoredOperation> pendingOperations = new ArrayList<>();
+
+    public InMemoryDAO() {
+        this(ConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS);
+    }
+
+    public InMemoryDAO(long lockTimeoutMillis) {
+        this.lockTimeoutMillis = lockTimeoutMillis;
+    }
+
+    public void addUser(User user, String passwd) {
+        canonicalizeRole(user);
+        usersByName.put(user.getName(), user);
+        if (passwd != null) {
+            Password password = new Password();
+            password.setUserId(user.getId());
+            password.setPasswd(passwd);
+            passwords.put(user.getId(), password);
+        }
+    }
+
+    public void addAccount(Account account) {
+        if (account.getOwner() != null) canonicalizeRole(account.getOwner());
+        if (accounts.put(account.getId(), copy(account)) == null) accountCount.incrementAndGet();
+    }
+
+    private void canonicalizeRole(User user) {
+        Role role = user.getRole();
+        if (role == null) return;
+        Role canonical = roles.putIfAbsent(role.getId(), role);
+        if (canonical != null) user.setRole(canonical);
+    }
+
+    public User findUserByName(String userName) {
+        return usersByName.get(userName);
+    }
+
+    public Password findPasswordForUser(User user) {
+        if (isInTransaction()) {
+            Password pending = pendingPasswords.get(user.getId());
+            if (pending != null) return pending;
+        }
+        return passwords.get(user.getId());
+    }
+
+    public Account findAccountById(int accountId) {
+        Account account = visible(accountId, accounts.get(accountId));
+        return account == null ? null : copy(account);
+    }
+
+    /**
+     * The account as the current thread sees it, with changes of its own transaction.
+     */
+    private Account visible(int accountId, Account committed) {
+        if (committed == null || !isInTransaction()) return committed;
+        Account pending = pendingAccounts.get(accountId);
+        return pending != null ? pending : committed;
+    }
+
+    public List<Account> findAccountsByIds(Collection<Integer> accountIds) {
+        List<Account> result = new ArrayList<>(accountIds.size());
+        for (Integer id : accountIds) {
+            Account account = findAccountById(id);
+            if (account != null) result.add(account);
+        }
+        return result;
+    }
+
+    public void findAccountsByIds(Collection<Integer> accountIds, int chunkSize, ChunkHandler<Account> handler) throws SQLException {
+        if (chunkSize < 1) throw new IllegalArgumentException("Chunk size must be positive");
+        List<Account> chunk = new ArrayList<>(chunkSize);
+        for (Integer id : accountIds) {
+            Account account = findAccountById(id);
+            if (account != null) chunk.add(account);
+            if (chunk.size() == chunkSize) {
+                handler.handle(chunk);
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+        if (!chunk.isEmpty()) handler.handle(chunk);
+    }
+
+    public List<Account> findAccountsPage(int afterId, int limit) {
+        List<Account> page = new ArrayList<>(Math.min(limit, 1024));
+        for (Map.Entry<Integer, Account> entry : accounts.tailMap(afterId, false).entrySet()) {
+            if (page.size() >= limit) break;
+            page.add(copy(visible(entry.getKey(), entry.getValue())));
+        }
+        return page;
+    }
+
+    public int countAccounts() {
+        return accountCount.get();
+    }
+
+    public boolean updateAccountState(Account account) throws SQLException {
+        lockForWrite();
+        try {
+            return setAmmount(account.getId(), account.getAmmount());
+        }
+        finally {
+            unlockForWrite();
+        }
+    }
+
+    public boolean[] updateAccountStates(Collection<Account> accounts) throws SQLException {
+        boolean[] updated = new boolean[accounts.size()];
+        beginTransaction();
+        boolean committed = false;
+        try {
+            int i = 0;
+            for (Account account : accounts) {
+                updated[i++] = setAmmount(account.getId(), account.getAmmount());
+            }
+            commitTransaction();
+            committed = true;
+        }
+        finally {
+            if (!committed) rollbackTransaction();
+        }
+        return updated;
+    }
+
+    private boolean setAmmount(int accountId, long ammount) {
+        return update(accountId, current -> {
+            Account changed = copy(current);
+            changed.setAmmount(ammount);
+            changed.setVersion(current.getVersion() + 1);
+            return changed;
+        }) != null;
+    }
+
+    public boolean compareAndSetAccountState(Account account) throws SQLException {
+        lockForWrite();
+        try {
+            boolean[] applied = new boolean[1];
+            update(account.getId(), current -> {
+                if (current.getVersion() != account.getVersion()) return current;
+                applied[0] = true;
+                Account changed = copy(current);
+                changed.setAmmount(account.getAmmount());
+                changed.setVersion(current.getVersion() + 1);
+                return changed;
+            });
+            if (!applied[0]) return false;
+            account.setVersion(account.getVersion() + 1);
+            return true;
+        }
+        finally {
+            unlockForWrite();
+        }
+    }
+
+    public boolean applyDelta(int accountId, long delta, long minBalance) throws SQLException {
+        lockForWrite();
+        try {
+            boolean[] applied = new boolean[1];
+            update(accountId, current -> {
+                long ammount = Money.add(current.getAmmount(), delta);
+                if (ammount < minBalance) return current;
+                applied[0] = true;
+                Account changed = copy(current);
+                changed.setAmmount(ammount);
+                changed.setVersion(current.getVersion() + 1);
+                return changed;
+            });
+            return applied[0];
+        }
+        finally {
+            unlockForWrite();
+        }
+    }
+
+    /**
+     * Replaces the account by the result of change, which returns the same instance to keep it.
+     * Outside a transaction it is atomic per account, inside it the result is kept aside until commit.
+     * @return the account after the change, null when it does not exist
+     */
+    private Account update(int accountId, UnaryOperator<Account> change) {
+        if (!isInTransaction()) return accounts.computeIfPresent(accountId, (id, current) -> change.apply(current));
+        Account current = visible(accountId, accounts.get(accountId));
+        if (current == null) return null;
+        Account changed = change.apply(current);
+        if (changed != current) pendingAccounts.put(accountId, changed);
+        return changed;
+    }
+
+    public boolean setUserPassword(User user, String passwd, String oldPass) throws SQLException {
+        lockForWrite();
+        try {
+            Password current = findPasswordForUser(user);
+            if (current == null || !current.getPasswd().equals(oldPass)) return false;
+            Password changed = new Password();
+            changed.setUserId(user.getId());
+            changed.setPasswd(passwd);
+            if (isInTransaction()) {
+                pendingPasswords.put(user.getId(), changed);
+                return true;
+            }
+            return passwords.replace(user.getId(), current, changed);
+        }
+        finally {
+            unlockForWrite();
+        }
+    }
+
+    public void close() {
+    }
+
+    public void beginTransaction() throws SQLException {
+        acquire(writeLock.writeLock());
+        if (transactionDepth == 0) rollbackOnly = false;
+        transactionDepth++;
+    }
+
+    public void commitTransaction() throws SQLException {
+        checkTransaction();
+        // left open, the caller's rollbackTransaction ends it
+        if (transactionDepth == 1 && rollbackOnly) throw new SQLException("Transaction was marked for rollback by a nested transaction");
+        if (transactionDepth == 1) {
+            accounts.putAll(pendingAccounts);
+            passwords.putAll(pendingPasswords);
+            for (StoredOperation stored : pendingOperations) operations.put(stored.operation.getId(), stored);
+            // other writers wait for the transaction, all claimed ids are filled now
+            published.set(operationIds.get());
+            clearPending();
+        }
+        transactionDepth--;
+        writeLock.writeLock().unlock();
+    }
+
+    public void rollbackTransaction() throws SQLException {
+        checkTransaction();
+        if (transactionDepth == 1) {
+            // ids of the transaction stay unused
+            published.set(operationIds.get());
+            clearPending();
+        }
+        else {
+            rollbackOnly = true;
+        }
+        transactionDepth--;
+        writeLock.writeLock().unlock();
+    }
+
+    private void clearPending() {
+        pendingAccounts.clear();
+        pendingPasswords.clear();
+        pendingOperations.clear();
+    }
+
+    public boolean isInTransaction() {
+        return writeLock.isWriteLockedByCurrentThread();
+    }
+
+    public boolean isEventSourced() {
+        return false;
+    }
+
+    private void checkTransaction() throws SQLException {
+        if (!isInTransaction()) throw new SQLException("No transaction started by current thread");
+    }
+
+    private void lockForWrite() throws SQLException {
+        if (!isInTransaction()) acquire(writeLock.readLock());
+    }
+
+    private void unlockForWrite() {
+        if (!isInTransaction()) writeLock.readLock().unlock();
+    }
+
+    private void acquire(Lock lock) throws SQLException {
+        try {
+            if (!lock.tryLock(lockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLTimeoutException("Timeout waiting for write lock");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for write lock", e);
+        }
+    }
+
+    public void logOperation(Operation operation, boolean success) throws SQLException {
+        lockForWrite();
+        try {
+            store(operation, success);
+        }
+        finally {
+            unlockForWrite();
+        }
+    }
+
+    public void logOperations(List<HistoryEntry> entries) throws SQLException {
+        beginTransaction();
+        boolean committed = false;
+        try {
+            for (HistoryEntry entry : entries) store(entry.getOperation(), entry.isSuccess());
+            commitTransaction();
+            committed = true;
+        }
+        finally {
+            if (!committed) rollbackTransaction();
+        }
+    }
+
+    private void store(Operation operation, boolean success) {
+        StoredOperation stored = new StoredOperation(operation, success);
+        if (isInTransaction()) {
+            operation.setId(operationIds.incrementAndGet());
+            pendingOperations.add(stored);
+            return;
+        }
+        int id = operationIds.incrementAndGet();
+        operation.setId(id);
+        operations.put(id, stored);
+        // a writer that filled the last gap also publishes the ids put after it
+        for (int last = published.get(); operations.containsKey(last + 1); last = published.get()) {
+            published.compareAndSet(last, last + 1);
+        }
+    }
+
+    /**
+     * Operations in id order up to the published id, read while the stream is consumed.
+     */
+    private Stream<StoredOperation> publishedOperations() {
+        return operations.entrySet().stream()
+                .takeWhile(e -> e.getKey() <= published.get())
+                .map(Map.Entry::getValue);
+    }
+
+    public Stream<Operation> streamOperations(OperationQuery query) {
+        return publishedOperations()
+                .filter(o -> matches(o, query))
+                .map(o -> o.operation);
+    }
+
+    public List<Operation> findOperationsPage(int accountId, Date beforeDate, int beforeId, int limit) {
+        Comparator<Operation> newestFirst = Comparator.comparing(Operation::getDate)
+                .thenComparingInt(Operation::getId).reversed();
+        return publishedOperations()
+                .map(o -> o.operation)
+                .filter(o -> accountId(o) != null && accountId(o) == accountId)
+                .filter(o -> beforeDate == null || o.getDate().before(beforeDate)
+                        || (o.getDate().equals(beforeDate) && o.getId() < beforeId))
+                .sorted(newestFirst)
+                .limit(limit)
+                .collect(Collectors.toList());
+    }
+
+    private static boolean matches(StoredOperation stored, OperationQuery query) {
+        Operation o = stored.operation;
+        if (query.getAccountId() != null && !query.getAccountId().equals(accountId(o))) return false;
+        if (query.getUserId() != null && (o.getUser() == null || o.getUser().getId() != query.getUserId())) return false;
+        if (query.getType() != null && o.getType() != query.getType()) return false;
+        if (query.getFrom() != null && o.getDate().before(query.getFrom())) return false;
+        if (query.getTo() != null && !o.getDate().before(query.getTo())) return false;
+        if (query.getSuccessful() != null && query.getSuccessful() != stored.success) return false;
+        if (query.getAfterId() != null && o.getId() <= query.getAfterId()) return false;
+        if (query.getUpToId() != null && o.getId() > query.getUpToId()) return false;
+        return true;
+    }
+
+    private static Integer accountId(Operation operation) {
+        if (!(operation instanceof Payment)) return null;
+        Account account = ((Payment) operation).getAccount();
+        return account == null ? null : account.getId();
+    }
+
+    private static Account copy(Account account) {
+        Account copy = new Account();
+        copy.setId(account.getId());
+        copy.setAmmount(account.getAmmount());
+        copy.setOwner(account.getOwner());
+        copy.setVersion(account.getVersion());
+        return copy;
+    }
+
+    public int getOperationCount() {
+        return operations.size();
+    }
+
+    private static class StoredOperation {
+        final Operation operation;
+        final boolean success;
+
+        StoredOperation(Operation operation, boolean success) {
+            this.operation = operation;
+            this.success = success;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package db.dao.impl;
+
+import model.Account;
+import model.Money;
+import model.Operation;
+import model.operations.OperationType;
+import model.operations.Payment;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * View of one operation stored in a {@link MappedJournal}, fields are read straight from
+ * the mapped segment. The same instance is moved over the records while reading, so
+ * it must not be kept after the visitor returns.
+ */
+public class JournalRecord {
+    private static final int ID = 0;
+    private static final int TYPE = 4;
+    private static final int SUCCESS = 5;
+    private static final int DATE = 6;
+    private static final int USER_ID = 14;
+    private static final int ACCOUNT_ID = 18;
+    private static final int AMMOUNT = 22;
+    private static final int USER_NAME_LENGTH = 30;
+    private static final int USER_NAME = 32;
+
+    private ByteBuffer buffer;
+    private int offset;
+    private boolean legacy;
+
+    /**
+     * @param legacy record of an old segment, with the ammount stored as a double
+     */
+    JournalRecord moveTo(ByteBuffer buffer, int offset, boolean legacy) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.legacy = legacy;
+        return this;
+    }
+
+    public int getId() {
+        return buffer.getInt(offset + ID);
+    }
+
+    public OperationType getType() {
+        int id = buffer.get(offset + TYPE);
+        for (OperationType type : OperationType.values()) {
+            if (type.getId() == id) return type;
+        }
+        throw new IllegalStateException("Unknown operation type " + id);
+    }
+
+    public boolean isSuccess() {
+        return buffer.get(offset + SUCCESS) != 0;
+    }
+
+    public long getDate() {
+        return buffer.getLong(offset + DATE);
+    }
+
+    /**
+     * Returns -1 when the operation has no user.
+     */
+    public int getUserId() {
+        return buffer.getInt(offset + USER_ID);
+    }
+
+    /**
+     * Returns -1 when the operation is not a payment.
+     */
+    public int getAccountId() {
+        return buffer.getInt(offset + ACCOUNT_ID);
+    }
+
+    /**
+     * Ammount in minor units.
+     */
+    public long getAmmount() {
+        if (legacy) return Money.fromDouble(buffer.getDouble(offset + AMMOUNT));
+        return buffer.getLong(offset + AMMOUNT);
+    }
+
+    public String getUserName() {
+        int length = buffer.getShort(offset + USER_NAME_LENGTH);
+        return length < 0 ? null : decode(offset + USER_NAME, length);
+    }
+
+    public String getDescription() {
+        int at = descriptionOffset();
+        int length = buffer.getInt(at);
+        return length < 0 ? null : decode(at + 4, length);
+    }
+
+    /**
+     * Description as UTF-8 bytes without copying them out of the segment.
+     */
+    public ByteBuffer getDescriptionBytes() {
+        int at = descriptionOffset();
+        int length = Math.max(buffer.getInt(at), 0);
+        return buffer.slice(at + 4, length).asReadOnlyBuffer();
+    }
+
+    private int descriptionOffset() {
+        return offset + USER_NAME + Math.max(buffer.getShort(offset + USER_NAME_LENGTH), 0);
+    }
+
+    private String decode(int at, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(at, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serializes the operation into the layout read by this class.
+     */
+    static byte[] encode(Operation operation, boolean success) {
+        byte[] userName = operation.getUser() == null || operation.getUser().getName() == null
+                ? null : operation.getUser().getName().getBytes(StandardCharsets.UTF_8);
+        byte[] description = operation.getDescription() == null
+                ? null : operation.getDescription().getBytes(StandardCharsets.UTF_8);
+        if (userName != null && userName.length > Short.MAX_VALUE) throw new IllegalArgumentException("User name too long");
+        int accountId = -1;
+        long ammount = 0;
+        if (operation instanceof Payment) {
+            Account account = ((Payment) operation).getAccount();
+            if (account != null) accountId = account.getId();
+            ammount = ((Payment) operation).getAmmount();
+        }
+        ByteBuffer out = ByteBuffer.allocate(USER_NAME + length(userName) + 4 + length(description));
+        out.putInt(operation.getId());
+        out.put((byte) operation.getType().getId());
+        out.put((byte) (success ? 1 : 0));
+        out.putLong(operation.getDate().getTime());
+        out.putInt(operation.getUser() == null ? -1 : operation.getUser().getId());
+        out.putInt(accountId);
+        out.putLong(ammount);
+        out.putShort((short) (userName == null ? -1 : userName.length));
+        if (userName != null) out.put(userName);
+        out.putInt(description == null ? -1 : description.length);
+        if (description != null) out.put(description);
+        return out.array();
+    }
+
+    private static int length(byte[] bytes) {
+        return bytes == null ? 0 : bytes.length;
+    }
+}
@@ -0,0 +1,283 @@
+package db.dao.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of operations kept in memory mapped segment files.
+ * Every record is its payload length, CRC32 of the payload and the payload itself,
+ * the length is written last so a record with zero length was never finished.
+ * On open the last segment is cut at the first damaged record, a damaged record in
+ * any earlier segment is reported as an error.
+ * A record is found again by its location, the segment number in the high
+ * and the position in the low 32 bits.
+ */
+public class MappedJournal implements AutoCloseable {
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int MAGIC = 0x424E4B4B;
+    // segments with amounts stored as doubles, read only
+    private static final int LEGACY_MAGIC = 0x424E4B4A;
+    // magic and segment number
+    private static final int SEGMENT_HEADER = 8;
+    // payload length and checksum
+    private static final int RECORD_HEADER = 8;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".seg";
+
+    private final Path directory;
+    private final int segmentSize;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private int lastId;
+    private long droppedBytes;
+
+    public MappedJournal(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public MappedJournal(Path directory, int segmentSize) throws IOException {
+        if (segmentSize < 1024) throw new IllegalArgumentException("Segment size too small");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(MappedJournal::isSegment).sorted().collect(Collectors.toList());
+        }
+        for (int i = 0; i < files.size(); i++) {
+            segments.add(recover(files.get(i), i == files.size() - 1));
+        }
+        // new records are never appended to a legacy segment
+        if (segments.isEmpty() || segments.get(segments.size() - 1).legacy) segments.add(create(segments.size()));
+    }
+
+    private static boolean isSegment(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+    }
+
+    private Segment recover(Path file, boolean last) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        int magic = buffer.capacity() < SEGMENT_HEADER ? 0 : buffer.getInt(0);
+        if (magic != MAGIC && magic != LEGACY_MAGIC) {
+            channel.close();
+            throw new IOException("Not a journal segment " + file);
+        }
+        boolean legacy = magic == LEGACY_MAGIC;
+        JournalRecord record = new JournalRecord();
+        int position = SEGMENT_HEADER;
+        while (position + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length == 0) break;
+            if (!isValid(buffer, position, length)) {
+                if (!last) {
+                    channel.close();
+                    throw new IOException("Damaged record in journal segment " + file + " at " + position);
+                }
+                droppedBytes = clear(buffer, position);
+                buffer.force();
+                break;
+            }
+            lastId = Math.max(lastId, record.moveTo(buffer, position + RECORD_HEADER, legacy).getId());
+            position += RECORD_HEADER + length;
+        }
+        return new Segment(channel, buffer, position, legacy);
+    }
+
+    private static boolean isValid(ByteBuffer buffer, int position, int length) {
+        if (length < 0 || position + RECORD_HEADER + length > buffer.capacity()) return false;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(position + RECORD_HEADER, length));
+        return (int) crc.getValue() == buffer.getInt(position + 4);
+    }
+
+    private static long clear(ByteBuffer buffer, int from) {
+        long cleared = 0;
+        for (int i = from; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+                cleared++;
+            }
+        }
+        return cleared;
+    }
+
+    private Segment create(int number) throws IOException {
+        Path file = directory.resolve(String.format("%s%08d%s", PREFIX, number, SUFFIX));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, number);
+        return new Segment(channel, buffer, SEGMENT_HEADER, false);
+    }
+
+    /**
+     * Appends the payloads in order, a new segment is started when the current one is full.
+     * @return locations of the appended records
+     */
+    public synchronized long[] append(List<byte[]> payloads) throws IOException {
+        long[] locations = new long[payloads.size()];
+        int i = 0;
+        for (byte[] payload : payloads) {
+            int size = RECORD_HEADER + payload.length;
+            if (size > segmentSize - SEGMENT_HEADER) throw new IOException("Record larger than journal segment");
+            Segment tail = segments.get(segments.size() - 1);
+            if (tail.end + size > tail.buffer.capacity()) {
+                tail.buffer.force();
+                tail = create(segments.size());
+                segments.add(tail);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            int position = tail.end;
+            tail.buffer.put(position + RECORD_HEADER, payload);
+            tail.buffer.putInt(position + 4, (int) crc.getValue());
+            tail.buffer.putInt(position, payload.length);
+            tail.end = position + size;
+            locations[i++] = location(segments.size() - 1, position);
+        }
+        return locations;
+    }
+
+    private static long location(int segment, int position) {
+        return ((long) segment << 32) | position;
+    }
+
+    /**
+     * Record at a location returned by {@link #append} or {@link Cursor#location()}.
+     */
+    public JournalRecord read(long location) {
+        Segment segment = segments.get((int) (location >>> 32));
+        return new JournalRecord().moveTo(segment.buffer, (int) location + RECORD_HEADER, segment.legacy);
+    }
+
+    /**
+     * Passes every complete record to the visitor, oldest first.
+     */
+    public void read(Consumer<JournalRecord> visitor) {
+        JournalRecord record = new JournalRecord();
+        for (Segment segment : segments) {
+            int end = segment.end;
+            int position = SEGMENT_HEADER;
+            while (position < end) {
+                int length = segment.buffer.getInt(position);
+                visitor.accept(record.moveTo(segment.buffer, position + RECORD_HEADER, segment.legacy));
+                position += RECORD_HEADER + length;
+            }
+        }
+    }
+
+    /**
+     * Lazy alternative to {@link #read}, records appended while iterating are returned too.
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Writes the mapped pages of the current segment to disk.
+     */
+    public synchronized void sync() {
+        segments.get(segments.size() - 1).buffer.force();
+    }
+
+    public synchronized void close() throws IOException {
+        IOException failure = null;
+        sync();
+        for (Segment segment : segments) {
+            try {
+                segment.channel.close();
+            }
+            catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Highest operation id found in the journal when it was opened.
+     */
+    public int getLastId() {
+        return lastId;
+    }
+
+    /**
+     * Number of bytes of an unfinished record removed when the journal was opened.
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Iterates over complete records oldest first. Like in {@link #read} the returned record
+     * is moved to the next one by the following call to next.
+     */
+    public class Cursor implements Iterator<JournalRecord> {
+        private final JournalRecord record = new JournalRecord();
+        private int segment;
+        private int position = SEGMENT_HEADER;
+        private long location = -1;
+
+        @Override
+        public boolean hasNext() {
+            while (segment < segments.size()) {
+                if (position < segments.get(segment).end) return true;
+                if (segment == segments.size() - 1) return false;
+                segment++;
+                position = SEGMENT_HEADER;
+            }
+            return false;
+        }
+
+        @Override
+        public JournalRecord next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Segment current = segments.get(segment);
+            location = MappedJournal.location(segment, position);
+            record.moveTo(current.buffer, position + RECORD_HEADER, current.legacy);
+            position += RECORD_HEADER + current.buffer.getInt(position);
+            return record;
+        }
+
+        /**
+         * Location of the record returned by the last call to next.
+         */
+        public long location() {
+            return location;
+        }
+    }
+
+    private static class Segment {
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        final boolean legacy;
+        volatile int end;
+
+        Segment(FileChannel channel, MappedByteBuffer buffer, int end, boolean legacy) {
+            this.channel = channel;
+            this.buffer = buffer;
+            this.end = end;
+            this.legacy = legacy;
+        }
+    }
+}
@@ -0,0 +1,610 @@
+package db.dao.impl;
+
+import db.dao.ChunkHandler;
+import db.dao.DAO;
+import db.dao.OperationQuery;
+import model.Account;
+import model.HistoryEntry;
+import model.Money;
+import model.Operation;
+import model.User;
+import model.operations.Interest;
+import model.operations.LogIn;
+import model.operations.LogOut;
+import model.operations.PaymentIn;
+import model.operations.Withdraw;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * DAO keeping account balances in a memory mapped file with one fixed size record per
+ * account id, and logged operations in a {@link MappedJournal}.
+ * Users, passwords and account owners come from the delegate, an account is copied into
+ * the balances file the first time it is used.
+ * Transactions exclude other writers. Balances changed in a transaction are kept aside and
+ * seen only by its thread, commit writes them to the balances file account by account after
+ * appending the journal records, rollback drops them. The balances file is not rebuilt from
+ * the journal, after a power failure in the middle of a commit it can hold part of the transaction.
+ * <p>
+ * Pages of account statements come from an index kept in memory, with the date, id and
+ * journal location of every operation of an account. It is built when the journal is opened
+ * and is never trimmed, so it takes heap in proportion to all operations in the journal,
+ * a few dozen bytes each. Journals too large for that belong in {@link DAOImpl}.
+ */
+public class MappedJournalDAO extends ForwardingDAO {
+    public static final int DEFAULT_MAX_ACCOUNTS = 1 << 20;
+
+    private static final int MAGIC = 0x424E4B43;
+    // balances stored as doubles, converted to minor units on open
+    private static final int LEGACY_MAGIC = 0x424E4B42;
+    // magic and number of records
+    private static final int FILE_HEADER = 16;
+    // balance, present flag and version
+    private static final int RECORD_SIZE = 16;
+    private static final int STRIPES = 64;
+    private static final User NO_OWNER = new User();
+
+    private final MappedJournal journal;
+    private final FileChannel balancesChannel;
+    private final MappedByteBuffer balances;
+    private final int maxAccounts;
+    private final Object[] stripes = new Object[STRIPES];
+    private final Map<Integer, User> owners = new ConcurrentHashMap<>();
+    private final AtomicInteger operationIds;
+    // operations of every account, newest first, one entry per operation
+    private final Map<Integer, NavigableSet<IndexEntry>> accountIndex = new ConcurrentHashMap<>();
+
+    private final ReentrantReadWriteLock writeLock = new ReentrantReadWriteLock();
+    private final long lockTimeoutMillis = ConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS;
+    // guarded by the write lock
+    private int transactionDepth;
+    private boolean rollbackOnly;
+    private final Map<Integer, Balance> pendingBalances = new HashMap<>();
+    private final List<byte[]> pendingRecords = new ArrayList<>();
+
+    public MappedJournalDAO(DAO delegate, Path directory) throws SQLException {
+        this(delegate, directory, DEFAULT_MAX_ACCOUNTS, MappedJournal.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens or creates the files in the directory, maxAccounts is used only when
+     * the balances file does not exist yet.
+     */
+    public MappedJournalDAO(DAO delegate, Path directory, int maxAccounts, int segmentSize) throws SQLException {
+        super(delegate);
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Object();
+        FileChannel channel = null;
+        try {
+            journal = new MappedJournal(directory.resolve("journal"), segmentSize);
+            Path file = directory.resolve("balances.dat");
+            boolean exists = Files.exists(file);
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (exists) {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, FILE_HEADER);
+                if (header.getInt(0) == LEGACY_MAGIC) {
+                    channel.close();
+                    convertLegacyBalances(file);
+                    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    header = channel.map(FileChannel.MapMode.READ_ONLY, 0, FILE_HEADER);
+                }
+                if (header.getInt(0) != MAGIC) throw new IOException("Not a balances file " + file);
+                maxAccounts = header.getInt(4);
+            }
+            balances = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_HEADER + (long) maxAccounts * RECORD_SIZE);
+            balances.putInt(0, MAGIC);
+            balances.putInt(4, maxAccounts);
+        }
+        catch (IOException e) {
+            closeQuietly(channel);
+            throw new SQLException("Can not open mapped files in " + directory, e);
+        }
+        this.balancesChannel = channel;
+        this.maxAccounts = maxAccounts;
+        this.operationIds = new AtomicInteger(journal.getLastId());
+        for (MappedJournal.Cursor cursor = journal.cursor(); cursor.hasNext(); ) {
+            index(cursor.next(), cursor.location());
+        }
+    }
+
+    private void index(JournalRecord record, long location) {
+        if (record.getAccountId() < 0) return;
+        accountIndex.computeIfAbsent(record.getAccountId(), id -> new ConcurrentSkipListSet<>(IndexEntry.NEWEST_FIRST))
+                .add(new IndexEntry(record.getDate(), record.getId(), location));
+    }
+
+    /**
+     * Writes a converted copy next to the file and moves it over the original,
+     * so a crash leaves either the old or the new file.
+     */
+    private static void convertLegacyBalances(Path file) throws IOException {
+        Path converted = file.resolveSibling(file.getFileName() + ".converting");
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(converted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer source = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            MappedByteBuffer target = out.map(FileChannel.MapMode.READ_WRITE, 0, in.size());
+            target.put(source);
+            target.putInt(0, MAGIC);
+            int records = target.getInt(4);
+            for (int i = 0; i < records; i++) {
+                int offset = FILE_HEADER + i * RECORD_SIZE;
+                if (target.getInt(offset + 8) != 0) target.putLong(offset, Money.fromDouble(target.getDouble(offset)));
+            }
+            target.force();
+        }
+        Files.move(converted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private int offset(int accountId) throws SQLException {
+        if (accountId < 0 || accountId >= maxAccounts) {
+            throw new SQLException("Account id " + accountId + " outside balances file");
+        }
+        return FILE_HEADER + accountId * RECORD_SIZE;
+    }
+
+    private Object stripe(int accountId) {
+        return stripes[accountId & (STRIPES - 1)];
+    }
+
+    /**
+     * Makes sure the account has a record and its owner is known, false when the account does not exist.
+     */
+    private boolean load(int accountId) throws SQLException {
+        int offset = offset(accountId);
+        if (owners.containsKey(accountId)) return true;
+        Account loaded = delegate.findAccountById(accountId);
+        if (loaded == null) {
+            // the balances file keeps accounts the delegate no longer knows
+            if (balances.getInt(offset + 8) == 0) return false;
+            owners.put(accountId, NO_OWNER);
+            return true;
+        }
+        synchronized (stripe(accountId)) {
+            if (balances.getInt(offset + 8) == 0) {
+                balances.putLong(offset, loaded.getAmmount());
+                balances.putInt(offset + 8, 1);
+                balances.putInt(offset + 12, loaded.getVersion());
+            }
+        }
+        owners.put(accountId, loaded.getOwner() == null ? NO_OWNER : loaded.getOwner());
+        return true;
+    }
+
+    @Override
+    public Account findAccountById(int accountId) throws SQLException {
+        if (!load(accountId)) return null;
+        Account account = new Account();
+        account.setId(accountId);
+        User owner = owners.get(accountId);
+        account.setOwner(owner == NO_OWNER ? null : owner);
+        Balance balance = visible(accountId);
+        account.setAmmount(balance.ammount);
+        account.setVersion(balance.version);
+        return account;
+    }
+
+    /**
+     * The balance as the current thread sees it, with changes of its own transaction.
+     */
+    private Balance visible(int accountId) throws SQLException {
+        if (isInTransaction()) {
+            Balance pending = pendingBalances.get(accountId);
+            if (pending != null) return pending;
+        }
+        int offset = offset(accountId);
+        synchronized (stripe(accountId)) {
+            return new Balance(balances.getLong(offset), balances.getInt(offset + 12));
+        }
+    }
+
+    @Override
+    public List<Account> findAccountsByIds(Collection<Integer> accountIds) throws SQLException {
+        List<Account> result = new ArrayList<>(accountIds.size());
+        for (Integer id : accountIds) {
+            Account account = findAccountById(id);
+            if (account != null) result.add(account);
+        }
+        return result;
+    }
+
+    @Override
+    public void findAccountsByIds(Collection<Integer> accountIds, int chunkSize, ChunkHandler<Account> handler) throws SQLException {
+        if (chunkSize < 1) throw new IllegalArgumentException("Chunk size must be positive");
+        List<Account> chunk = new ArrayList<>(chunkSize);
+        for (Integer id : accountIds) {
+            Account account = findAccountById(id);
+            if (account != null) chunk.add(account);
+            if (chunk.size() == chunkSize) {
+                handler.handle(chunk);
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+        if (!chunk.isEmpty()) handler.handle(chunk);
+    }
+
+    /**
+     * Ids come from the delegate, balances from the balances file.
+     */
+    @Override
+    public List<Account> findAccountsPage(int afterId, int limit) throws SQLException {
+        List<Account> result = new ArrayList<>(limit);
+        for (Account listed : delegate.findAccountsPage(afterId, limit)) {
+            Account account = findAccountById(listed.getId());
+            if (account != null) result.add(account);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean updateAccountState(Account account) throws SQLException {
+        lockForWrite();
+        try {
+            return setAmmount(account.getId(), account.getAmmount());
+        }
+        finally {
+            unlockForWrite();
+        }
+    }
+
+    @Override
+    public boolean[] updateAccountStates(Collection<Account> accounts) throws SQLException {
+        boolean[] updated = new boolean[accounts.size()];
+        beginTransaction();
+        boolean committed = false;
+        try {
+            int i = 0;
+            for (Account account : accounts) {
+                updated[i++] = setAmmount(account.getId(), account.getAmmount());
+            }
+            commitTransaction();
+            committed = true;
+        }
+        finally {
+            if (!committed) rollbackTransaction();
+        }
+        return updated;
+    }
+
+    private boolean setAmmount(int accountId, long ammount) throws SQLException {
+        if (!load(accountId)) return false;
+        update(accountId, current -> new Balance(ammount, current.version + 1));
+        return true;
+    }
+
+    @Override
+    public boolean compareAndSetAccountState(Account account) throws SQLException {
+        lockForWrite();
+        try {
+            if (!load(account.getId())) return false;
+            boolean applied = update(account.getId(), current -> current.version != account.getVersion() ? current
+                    : new Balance(account.getAmmount(), current.version + 1));
+            if (!applied) return false;
+            account.setVersion(account.getVersion() + 1);
+            return true;
+        }
+        finally {
+            unlockForWrite();
+        }
+    }
+
+    @Override
+    public boolean applyDelta(int accountId, long delta, long minBalance) throws SQLException {
+        lockForWrite();
+        try {
+            if (!load(accountId)) return false;
+            return update(accountId, current -> {
+                long ammount = Money.add(current.ammount, delta);
+                return ammount < minBalance ? current : new Balance(ammount, current.version + 1);
+            });
+        }
+        finally {
+            unlockForWrite();
+        }
+    }
+
+    /**
+     * Applies the change to a loaded account, false when it returns the balance unchanged.
+     * Outside a transaction the file is changed under the account's stripe, in a transaction
+     * the result is kept aside until commit.
+     */
+    private boolean update(int accountId, UnaryOperator<Balance> change) throws SQLException {
+        if (isInTransaction()) {
+            Balance current = visible(accountId);
+            Balance changed = change.apply(current);
+            if (changed == current) return false;
+            pendingBalances.put(accountId, changed);
+            return true;
+        }
+        int offset = offset(accountId);
+        synchronized (stripe(accountId)) {
+            Balance current = new Balance(balances.getLong(offset), balances.getInt(offset + 12));
+            Balance changed = change.apply(current);
+            if (changed == current) return false;
+            write(offset, changed);
+            return true;
+        }
+    }
+
+    private void write(int offset, Balance balance) {
+        balances.putLong(offset, balance.ammount);
+        balances.putInt(offset + 12, balance.version);
+    }
+
+    @Override
+    public void beginTransaction() throws SQLException {
+        acquire(writeLock.writeLock());
+        if (transactionDepth == 0) rollbackOnly = false;
+        transactionDepth++;
+    }
+
+    @Override
+    public void commitTransaction() throws SQLException {
+        checkTransaction();
+        if (transactionDepth == 1) {
+            // on failure the transaction is left open, the caller's rollbackTransaction drops the balances
+            if (rollbackOnly) throw new SQLException("Transaction was marked for rollback by a nested transaction");
+            append(pendingRecords);
+            for (Map.Entry<Integer, Balance> pending : pendingBalances.entrySet()) {
+                int accountId = pending.getKey();
+                int offset = offset(accountId);
+                synchronized (stripe(accountId)) {
+                    write(offset, pending.getValue());
+                }
+            }
+            pendingRecords.clear();
+            pendingBalances.clear();
+        }
+        transactionDepth--;
+        writeLock.writeLock().unlock();
+    }
+
+    @Override
+    public void rollbackTransaction() throws SQLException {
+        checkTransaction();
+        if (transactionDepth == 1) {
+            pendingBalances.clear();
+            pendingRecords.clear();
+        }
+        else {
+            rollbackOnly = true;
+        }
+        transactionDepth--;
+        writeLock.writeLock().unlock();
+    }
+
+    @Override
+    public boolean isInTransaction() {
+        return writeLock.isWriteLockedByCurrentThread();
+    }
+
+    private void checkTransaction() throws SQLException {
+        if (!isInTransaction()) throw new SQLException("No transaction started by current thread");
+    }
+
+    private void lockForWrite() throws SQLException {
+        if (!isInTransaction()) acquire(writeLock.readLock());
+    }
+
+    private void unlockForWrite() {
+        if (!isInTransaction()) writeLock.readLock().unlock();
+    }
+
+    private void acquire(Lock lock) throws SQLException {
+        try {
+            if (!lock.tryLock(lockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLTimeoutException("Timeout waiting for write lock");
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for write lock", e);
+        }
+    }
+
+    @Override
+    public void logOperation(Operation operation, boolean success) throws SQLException {
+        lockForWrite();
+        try {
+            store(operation, success);
+        }
+        finally {
+            unlockForWrite();
+        }
+    }
+
+    @Override
+    public void logOperations(List<HistoryEntry> entries) throws SQLException {
+        beginTransaction();
+        boolean committed = false;
+        try {
+            for (HistoryEntry entry : entries) store(entry.getOperation(), entry.isSuccess());
+            commitTransaction();
+            committed = true;
+        }
+        finally {
+            if (!committed) rollbackTransaction();
+        }
+    }
+
+    private void store(Operation operation, boolean success) throws SQLException {
+        if (isInTransaction()) {
+            // other writers wait for the transaction, its ids stay in journal order
+            operation.setId(operationIds.incrementAndGet());
+            pendingRecords.add(JournalRecord.encode(operation, success));
+            return;
+        }
+        synchronized (journal) {
+            operation.setId(operationIds.incrementAndGet());
+            append(Collections.singletonList(JournalRecord.encode(operation, success)));
+        }
+    }
+
+    private void append(List<byte[]> records) throws SQLException {
+        long[] locations;
+        try {
+            locations = journal.append(records);
+        }
+        catch (IOException e) {
+            throw new SQLException("Can not append to journal", e);
+        }
+        for (long location : locations) index(journal.read(location), location);
+    }
+
+    /**
+     * Reads the journal while the stream is consumed, in journal order, which is the order of ids.
+     */
+    @Override
+    public Stream<Operation> streamOperations(OperationQuery query) {
+        Spliterator<JournalRecord> records = Spliterators.spliteratorUnknownSize(journal.cursor(),
+                Spliterator.ORDERED | Spliterator.NONNULL);
+        // the record is moved on by the next read, so it becomes an operation at once
+        return StreamSupport.stream(records, false)
+                .filter(record -> matches(record, query))
+                .map(MappedJournalDAO::toOperation);
+    }
+
+    @Override
+    public List<Operation> findOperationsPage(int accountId, Date beforeDate, int beforeId, int limit) {
+        List<Operation> page = new ArrayList<>();
+        NavigableSet<IndexEntry> operations = accountIndex.get(accountId);
+        if (operations == null) return page;
+        if (beforeDate != null) operations = operations.tailSet(new IndexEntry(beforeDate.getTime(), beforeId, -1), false);
+        for (IndexEntry entry : operations) {
+            if (page.size() >= limit) break;
+            page.add(toOperation(journal.read(entry.location)));
+        }
+        return page;
+    }
+
+    private static boolean matches(JournalRecord record, OperationQuery query) {
+        if (query.getAccountId() != null && query.getAccountId() != record.getAccountId()) return false;
+        if (query.getUserId() != null && query.getUserId() != record.getUserId()) return false;
+        if (query.getType() != null && query.getType() != record.getType()) return false;
+        if (query.getFrom() != null && record.getDate() < query.getFrom().getTime()) return false;
+        if (query.getTo() != null && record.getDate() >= query.getTo().getTime()) return false;
+        if (query.getSuccessful() != null && query.getSuccessful() != record.isSuccess()) return false;
+        if (query.getAfterId() != null && record.getId() <= query.getAfterId()) return false;
+        if (query.getUpToId() != null && record.getId() > query.getUpToId()) return false;
+        return true;
+    }
+
+    private static Operation toOperation(JournalRecord record) {
+        User user = null;
+        if (record.getUserId() >= 0) {
+            user = new User();
+            user.setId(record.getUserId());
+            user.setName(record.getUserName());
+        }
+        Account account = null;
+        if (record.getAccountId() >= 0) {
+            account = new Account();
+            account.setId(record.getAccountId());
+        }
+        String description = record.getDescription();
+        long ammount = record.getAmmount();
+        Operation operation;
+        switch (record.getType()) {
+            case PAYMENT_IN: operation = new PaymentIn(user, ammount, description, account); break;
+            case WITHDRAW: operation = new Withdraw(user, ammount, description, account); break;
+            case INTEREST: operation = new Interest(user, ammount, description, account); break;
+            case LOG_IN: operation = new LogIn(user, description); break;
+            default: operation = new LogOut(user, description); break;
+        }
+        operation.setId(record.getId());
+        operation.setDate(new Date(record.getDate()));
+        return operation;
+    }
+
+    /**
+     * Gives replay and audit tools the stored records without building operations.
+     */
+    public MappedJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Writes balances and the journal tail to disk.
+     */
+    public void sync() {
+        balances.force();
+        journal.sync();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            sync();
+            journal.close();
+            balancesChannel.close();
+        }
+        catch (IOException e) {
+            throw new SQLException("Can not close mapped files", e);
+        }
+        finally {
+            delegate.close();
+        }
+    }
+
+    private static class Balance {
+        final long ammount;
+        final int version;
+
+        Balance(long ammount, int version) {
+            this.ammount = ammount;
+            this.version = version;
+        }
+    }
+
+    private static class IndexEntry {
+        static final Comparator<IndexEntry> NEWEST_FIRST = Comparator.comparingLong((IndexEntry e) -> e.date)
+                .thenComparingInt(e -> e.id).reversed();
+
+        final long date;
+        final int id;
+        final long location;
+
+        IndexEntry(long date, int id, long location) {
+            this.date = date;
+            this.id = id;
+            this.location = location;
+        }
+    }
+}
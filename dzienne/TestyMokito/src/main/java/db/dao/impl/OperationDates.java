@@ -0,0 +1,44 @@
+package db.dao.impl;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Format of Operation.date column. Dates are stored in UTC as text that sorts in time order,
+ * rows written before it used Date.toString() and are still understood by {@link #parse}.
+ */
+class OperationDates {
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final DateTimeFormatter LEGACY_FORMAT = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US);
+
+    static String format(Date date) {
+        return FORMAT.format(LocalDateTime.ofInstant(date.toInstant(), ZoneOffset.UTC));
+    }
+
+    static Date parse(String text) {
+        try {
+            return Date.from(LocalDateTime.parse(text, FORMAT).toInstant(ZoneOffset.UTC));
+        }
+        catch (DateTimeParseException e) {
+            return Date.from(ZonedDateTime.parse(text, LEGACY_FORMAT).toInstant());
+        }
+    }
+
+    static boolean isLegacy(String text) {
+        try {
+            LocalDateTime.parse(text, FORMAT);
+            return false;
+        }
+        catch (DateTimeParseException e) {
+            return true;
+        }
+    }
+
+    private OperationDates() {
+    }
+}
@@ -0,0 +1,55 @@
+package db.dao.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Connection owned by {@link ConnectionPool} together with its statement cache.
+ */
+class PooledConnection {
+    private final Connection connection;
+    private final StatementCache statements;
+    private final boolean readOnly;
+    private long lastUsed;
+
+    PooledConnection(Connection connection, boolean readOnly) {
+        this.connection = connection;
+        this.statements = new StatementCache(connection);
+        this.readOnly = readOnly;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        return statements.prepare(sql);
+    }
+
+    Connection getConnection() {
+        return connection;
+    }
+
+    StatementCache getStatementCache() {
+        return statements;
+    }
+
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    void close() throws SQLException {
+        try {
+            statements.clear();
+        }
+        finally {
+            connection.close();
+        }
+    }
+}
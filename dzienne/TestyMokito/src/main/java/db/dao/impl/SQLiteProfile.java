@@ -0,0 +1,92 @@
+package db.dao.impl;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sets of PRAGMA values applied to every connection when it is opened.
+ * Null value leaves the driver default.
+ */
+public enum SQLiteProfile {
+    /** Driver defaults, rollback journal and full sync, with a 5 s busy timeout. */
+    DEFAULT(null, null, null, null, null, 5000),
+    /** WAL journal synced on every commit, readers do not block the writer. */
+    DURABLE_WAL("WAL", "FULL", 64L * 1024 * 1024, -16000, "MEMORY", 5000),
+    /** WAL journal synced on checkpoints only, last commits may be lost on power failure. */
+    THROUGHPUT("WAL", "NORMAL", 256L * 1024 * 1024, -64000, "MEMORY", 10000),
+    /** Large cache and memory mapped reads for long reports, connections can not write. */
+    READ_ONLY_ANALYTICS(null, null, 1024L * 1024 * 1024, -256000, "MEMORY", 30000);
+
+    private static final String[] REPORTED = {
+            "journal_mode", "synchronous", "mmap_size", "cache_size", "temp_store", "busy_timeout", "query_only"};
+
+    private final String journalMode;
+    private final String synchronous;
+    private final Long mmapSize;
+    private final Integer cacheSize;
+    private final String tempStore;
+    private final Integer busyTimeout;
+
+    SQLiteProfile(String journalMode, String synchronous, Long mmapSize, Integer cacheSize, String tempStore, Integer busyTimeout) {
+        this.journalMode = journalMode;
+        this.synchronous = synchronous;
+        this.mmapSize = mmapSize;
+        this.cacheSize = cacheSize;
+        this.tempStore = tempStore;
+        this.busyTimeout = busyTimeout;
+    }
+
+    /**
+     * Applies the profile to a connection that is allowed to write.
+     */
+    public void apply(Connection connection) throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            if (busyTimeout != null) pragma(st, "busy_timeout", busyTimeout);
+            if (journalMode != null) pragma(st, "journal_mode", journalMode);
+            if (synchronous != null) pragma(st, "synchronous", synchronous);
+            applyCommon(st);
+            if (this == READ_ONLY_ANALYTICS) pragma(st, "query_only", "ON");
+        }
+    }
+
+    /**
+     * Applies the profile to a read only connection, journal and sync settings belong to the writer.
+     */
+    public void applyToReader(Connection connection) throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            if (busyTimeout != null) pragma(st, "busy_timeout", busyTimeout);
+            applyCommon(st);
+            pragma(st, "query_only", "ON");
+        }
+    }
+
+    private void applyCommon(Statement st) throws SQLException {
+        if (mmapSize != null) pragma(st, "mmap_size", mmapSize);
+        if (cacheSize != null) pragma(st, "cache_size", cacheSize);
+        if (tempStore != null) pragma(st, "temp_store", tempStore);
+    }
+
+    private static void pragma(Statement st, String name, Object value) throws SQLException {
+        // some pragmas return the new value, it is not needed here
+        st.execute("PRAGMA " + name + " = " + value);
+    }
+
+    /**
+     * Reads back the settings that are active on the connection.
+     */
+    public static Map<String, String> describe(Connection connection) throws SQLException {
+        Map<String, String> settings = new LinkedHashMap<>();
+        try (Statement st = connection.createStatement()) {
+            for (String name : REPORTED) {
+                try (ResultSet rs = st.executeQuery("PRAGMA " + name)) {
+                    settings.put(name, rs.next() ? rs.getString(1) : null);
+                }
+            }
+        }
+        return settings;
+    }
+}
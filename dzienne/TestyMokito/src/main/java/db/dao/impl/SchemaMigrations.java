@@ -0,0 +1,187 @@
+package db.dao.impl;
+
+import model.operations.OperationType;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ordered list of schema changes. Applied version is kept in PRAGMA user_version,
+ * each migration runs in its own transaction together with the version update.
+ */
+public class SchemaMigrations {
+
+    private static final List<Migration> MIGRATIONS = new ArrayList<>();
+
+    static {
+        MIGRATIONS.add(new Migration(1, "Base tables", baseTables()));
+        MIGRATIONS.add(new Migration(2, "Indexes for DAO lookups",
+                "CREATE INDEX IF NOT EXISTS Account_owner_idx ON Account (owner_id, id)",
+                "CREATE INDEX IF NOT EXISTS Password_user_idx ON Password (user_id, passwd)",
+                "CREATE INDEX IF NOT EXISTS Operation_account_date_idx ON Operation (account_id, date)",
+                "CREATE INDEX IF NOT EXISTS Operation_user_date_idx ON Operation (user_id, date)",
+                "CREATE INDEX IF NOT EXISTS Operation_date_idx ON Operation (date)",
+                "CREATE INDEX IF NOT EXISTS History_operation_idx ON History (operation_id, succesfull)"));
+        MIGRATIONS.add(new Migration(3, "Sortable operation dates", SchemaMigrations::convertOperationDates));
+        MIGRATIONS.add(new Migration(4, "Account version for optimistic updates",
+                "ALTER TABLE Account ADD COLUMN `version` INTEGER NOT NULL DEFAULT 0"));
+        // SQLite can not change or drop a column, the REAL ones stay but are no longer written
+        MIGRATIONS.add(new Migration(5, "Amounts in minor units",
+                "ALTER TABLE Account ADD COLUMN `balance` INTEGER NOT NULL DEFAULT 0",
+                "UPDATE Account SET balance = CAST(ROUND(ammount * 100) AS INTEGER) WHERE ammount IS NOT NULL",
+                "ALTER TABLE Operation ADD COLUMN `ammount_minor` INTEGER",
+                "UPDATE Operation SET ammount_minor = CAST(ROUND(ammount * 100) AS INTEGER) WHERE ammount IS NOT NULL"));
+    }
+
+    public static int getLatestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    public static int getVersion(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Applies all migrations newer than the database version. Each transaction takes the write
+     * lock before reading the version again, so another connection migrating the same file
+     * at the same time is waited for and its migrations are not applied twice.
+     * @return version of the schema after migration
+     */
+    public static int migrate(Connection conn) throws SQLException {
+        int version = getVersion(conn);
+        if (version >= getLatestVersion()) return version;
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(true);
+        try (Statement st = conn.createStatement()) {
+            for (Migration migration : MIGRATIONS) {
+                if (migration.version <= version) continue;
+                st.execute("BEGIN IMMEDIATE");
+                try {
+                    version = getVersion(conn);
+                    if (migration.version > version) {
+                        for (String sql : migration.statements) {
+                            st.executeUpdate(sql);
+                        }
+                        if (migration.step != null) migration.step.apply(conn);
+                        st.executeUpdate("PRAGMA user_version = " + migration.version);
+                        version = migration.version;
+                    }
+                    st.execute("COMMIT");
+                }
+                catch (SQLException e) {
+                    SQLException failure = new SQLException("Migration " + migration.version + " (" + migration.description + ") failed", e);
+                    try {
+                        st.execute("ROLLBACK");
+                    }
+                    catch (SQLException rollback) {
+                        failure.addSuppressed(rollback);
+                    }
+                    throw failure;
+                }
+            }
+        }
+        finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return version;
+    }
+
+    private static String[] baseTables() {
+        List<String> sql = new ArrayList<>();
+        sql.add("CREATE TABLE IF NOT EXISTS `Role` (" +
+                " `id`	INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT, " +
+                " `name`	TEXT NOT NULL UNIQUE )");
+        sql.add("CREATE TABLE IF NOT EXISTS \"User\" ( " +
+                " `id`  INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                " `name` TEXT NOT NULL UNIQUE, " +
+                " `role_id` INTEGER NOT NULL, " +
+                " FOREIGN KEY(`role_id`) REFERENCES Role(id) " +
+                ")");
+        sql.add("CREATE TABLE IF NOT EXISTS \"Password\" ( " +
+                " `user_id` INTEGER, " +
+                " `passwd` TEXT, " +
+                " FOREIGN KEY(`user_id`) REFERENCES User(id) " +
+                ")");
+        sql.add("CREATE TABLE IF NOT EXISTS `Account` (" +
+                " `id`\tINTEGER PRIMARY KEY AUTOINCREMENT, " +
+                " `owner_id` INTEGER, " +
+                " `ammount` REAL, " +
+                "FOREIGN KEY(`owner_id`) REFERENCES User(id) " +
+                ")");
+        sql.add("CREATE TABLE IF NOT EXISTS `Operation` ( " +
+                " `id` INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                " `ammount` REAL, " +
+                " `description` TEXT NOT NULL, " +
+                " `date` TEXT NOT NULL, " +
+                " `user_id` INTEGER," +
+                " `account_id` INTEGER," +
+                " `type` INTEGER," +
+                "FOREIGN KEY(`type`) REFERENCES Operation_Types ( id ), " +
+                "FOREIGN KEY(`user_id`) REFERENCES User ( id ), " +
+                "FOREIGN KEY(`account_id`) REFERENCES Account ( id ) " +
+                ")");
+        sql.add("CREATE TABLE IF NOT EXISTS `History` ( " +
+                " `operation_id` INTEGER, " +
+                " `succesfull` INTEGER NOT NULL, " +
+                " FOREIGN KEY(`operation_id`) REFERENCES Operation(id) " +
+                ")");
+        sql.add("CREATE TABLE IF NOT EXISTS `Operation_Types` ( " +
+                " `id` INTEGER, " +
+                " `name` TEXT, " +
+                " PRIMARY KEY(id) " +
+                ")");
+        for (OperationType type : OperationType.values()) {
+            sql.add("INSERT OR IGNORE INTO Operation_Types (`id`, `name`) VALUES (" +
+                    type.getId() + ", '" + type.name() + "')");
+        }
+        return sql.toArray(new String[0]);
+    }
+
+    private static void convertOperationDates(Connection conn) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT id, date FROM Operation");
+             PreparedStatement update = conn.prepareStatement("UPDATE Operation SET date = ? WHERE id = ?")) {
+            while (rs.next()) {
+                String date = rs.getString("date");
+                if (!OperationDates.isLegacy(date)) continue;
+                update.setString(1, OperationDates.format(OperationDates.parse(date)));
+                update.setInt(2, rs.getInt("id"));
+                update.addBatch();
+            }
+            update.executeBatch();
+        }
+    }
+
+    private interface Step {
+        void apply(Connection conn) throws SQLException;
+    }
+
+    private static class Migration {
+        final int version;
+        final String description;
+        final String[] statements;
+        final Step step;
+
+        Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+            this.step = null;
+        }
+
+        Migration(int version, String description, Step step) {
+            this.version = version;
+            this.description = description;
+            this.statements = new String[0];
+            this.step = step;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package db.dao.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of prepared statements for a single connection, keyed by SQL text.
+ * Least recently used statements are closed when the cache is full.
+ */
+public class StatementCache {
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private final Connection connection;
+    private final int capacity;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public StatementCache(Connection connection) {
+        this(connection, DEFAULT_CAPACITY);
+    }
+
+    public StatementCache(Connection connection, int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive");
+        this.connection = connection;
+        this.capacity = capacity;
+        this.statements = new LinkedHashMap<>(capacity, 0.75f, true);
+    }
+
+    /**
+     * Returns a prepared statement for the given SQL, reusing a cached one if possible.
+     * Parameters of a reused statement are cleared, the statement must not be closed by the caller.
+     */
+    public synchronized PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement st = statements.get(sql);
+        if (st != null && !st.isClosed()) {
+            hits++;
+            st.clearParameters();
+            return st;
+        }
+        misses++;
+        st = connection.prepareStatement(sql);
+        statements.put(sql, st);
+        if (statements.size() > capacity) evictEldest();
+        return st;
+    }
+
+    private void evictEldest() throws SQLException {
+        Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator();
+        PreparedStatement eldest = it.next().getValue();
+        it.remove();
+        evictions++;
+        eldest.close();
+    }
+
+    public synchronized void clear() throws SQLException {
+        SQLException failure = null;
+        for (PreparedStatement st : statements.values()) {
+            try {
+                st.close();
+            } catch (SQLException e) {
+                failure = e;
+            }
+        }
+        statements.clear();
+        if (failure != null) throw failure;
+    }
+
+    public synchronized int size() {
+        return statements.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
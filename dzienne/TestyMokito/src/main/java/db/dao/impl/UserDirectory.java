@@ -0,0 +1,206 @@
+package db.dao.impl;
+
+import db.dao.ChunkHandler;
+import db.dao.DAO;
+import model.Account;
+import model.Password;
+import model.Role;
+import model.User;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Users, their passwords and roles kept in memory after the first lookup.
+ * Every user and account owner gets the same Role instance for a given role id.
+ * Returned users are shared and must not be modified by callers.
+ * <p>
+ * At most maxUsers users and as many passwords are kept, above that an arbitrary entry is
+ * dropped. Roles are not bounded, there is one per row of the Role table.
+ */
+public class UserDirectory extends ForwardingDAO {
+    public static final int DEFAULT_MAX_USERS = 10000;
+    private static final int VERSION_STRIPES = 64;
+
+    private final int maxUsers;
+    private final ConcurrentMap<String, User> users = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Password> passwords = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, Role> roles = new ConcurrentHashMap<>();
+    // changed with every password change of the users of a stripe, a lookup started
+    // before the change must not cache what it read
+    private final AtomicLongArray passwordVersions = new AtomicLongArray(VERSION_STRIPES);
+
+    private final AtomicLong userHits = new AtomicLong();
+    private final AtomicLong userMisses = new AtomicLong();
+    private final AtomicLong passwordHits = new AtomicLong();
+    private final AtomicLong passwordMisses = new AtomicLong();
+
+    public UserDirectory(DAO delegate) {
+        this(delegate, DEFAULT_MAX_USERS);
+    }
+
+    public UserDirectory(DAO delegate, int maxUsers) {
+        super(delegate);
+        if (maxUsers < 1) throw new IllegalArgumentException("Bad user limit");
+        this.maxUsers = maxUsers;
+    }
+
+    @Override
+    public User findUserByName(String userName) throws SQLException {
+        User user = users.get(userName);
+        if (user != null) {
+            userHits.incrementAndGet();
+            return user;
+        }
+        userMisses.incrementAndGet();
+        user = delegate.findUserByName(userName);
+        if (user == null) return null;
+        canonicalizeRole(user);
+        User previous = users.putIfAbsent(userName, user);
+        if (previous != null) return previous;
+        evictOverLimit(users);
+        return user;
+    }
+
+    @Override
+    public Password findPasswordForUser(User user) throws SQLException {
+        Password passwd = passwords.get(user.getId());
+        if (passwd != null) {
+            passwordHits.incrementAndGet();
+            return passwd;
+        }
+        passwordMisses.incrementAndGet();
+        int stripe = user.getId() & (VERSION_STRIPES - 1);
+        long version = passwordVersions.get(stripe);
+        passwd = delegate.findPasswordForUser(user);
+        if (passwd != null) {
+            Password read = passwd;
+            // checked under the same entry lock setUserPassword changes the version with
+            passwords.compute(user.getId(), (id, cached) -> passwordVersions.get(stripe) == version ? read : cached);
+            evictOverLimit(passwords);
+        }
+        return passwd;
+    }
+
+    @Override
+    public Account findAccountById(int accountId) throws SQLException {
+        Account account = delegate.findAccountById(accountId);
+        if (account != null && account.getOwner() != null) canonicalizeRole(account.getOwner());
+        return account;
+    }
+
+    @Override
+    public List<Account> findAccountsByIds(Collection<Integer> accountIds) throws SQLException {
+        List<Account> accounts = delegate.findAccountsByIds(accountIds);
+        canonicalizeOwners(accounts);
+        return accounts;
+    }
+
+    @Override
+    public void findAccountsByIds(Collection<Integer> accountIds, int chunkSize, ChunkHandler<Account> handler) throws SQLException {
+        delegate.findAccountsByIds(accountIds, chunkSize, chunk -> {
+            canonicalizeOwners(chunk);
+            handler.handle(chunk);
+        });
+    }
+
+    @Override
+    public List<Account> findAccountsPage(int afterId, int limit) throws SQLException {
+        List<Account> accounts = delegate.findAccountsPage(afterId, limit);
+        canonicalizeOwners(accounts);
+        return accounts;
+    }
+
+    private void canonicalizeOwners(List<Account> accounts) {
+        for (Account account : accounts) {
+            if (account.getOwner() != null) canonicalizeRole(account.getOwner());
+        }
+    }
+
+    @Override
+    public boolean setUserPassword(User user, String passwd, String oldPass) throws SQLException {
+        try {
+            return delegate.setUserPassword(user, passwd, oldPass);
+        }
+        finally {
+            // after the change, so a lookup still reading the old value sees a newer version
+            int stripe = user.getId() & (VERSION_STRIPES - 1);
+            passwords.compute(user.getId(), (id, cached) -> {
+                passwordVersions.incrementAndGet(stripe);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Drops the cached user and password, next lookup reads them again.
+     * Has to be called after role or name of the user is changed outside this DAO.
+     */
+    public void invalidateUser(String userName) {
+        User user = users.remove(userName);
+        if (user != null) passwords.remove(user.getId());
+    }
+
+    /**
+     * Has to be called after a role is renamed, users keep sharing the same instance.
+     */
+    public void updateRole(int roleId, String name) {
+        Role role = roles.get(roleId);
+        if (role != null) role.setName(name);
+    }
+
+    public void invalidateAll() {
+        users.clear();
+        passwords.clear();
+        roles.clear();
+    }
+
+    private <K, V> void evictOverLimit(ConcurrentMap<K, V> cache) {
+        Iterator<K> keys = cache.keySet().iterator();
+        while (cache.size() > maxUsers && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    private void canonicalizeRole(User user) {
+        Role role = user.getRole();
+        if (role == null) return;
+        Role canonical = roles.putIfAbsent(role.getId(), role);
+        if (canonical != null) user.setRole(canonical);
+    }
+
+    public int getCachedUsers() {
+        return users.size();
+    }
+
+    public int getCachedPasswords() {
+        return passwords.size();
+    }
+
+    public int getCachedRoles() {
+        return roles.size();
+    }
+
+    public long getUserHits() {
+        return userHits.get();
+    }
+
+    public long getUserMisses() {
+        return userMisses.get();
+    }
+
+    public long getPasswordHits() {
+        return passwordHits.get();
+    }
+
+    public long getPasswordMisses() {
+        return passwordMisses.get();
+    }
+}
@@ -5,17 +5,19 @@ package model;
  */
 public class Account {
     private int id;
-    private double ammount;
+    // in minor units, see Money
+    private long ammount;
     private User owner;
+    private int version;
 
-    public boolean income(double ammount){
-        this.ammount+=ammount;
+    public boolean income(long ammount){
+        this.ammount = Money.add(this.ammount, ammount);
         return true;
     }
 
-    public boolean outcome(double ammount){
+    public boolean outcome(long ammount){
         if (this.ammount<ammount) return false;
-        this.ammount-=ammount;
+        this.ammount = Money.subtract(this.ammount, ammount);
         return true;
     }
 
@@ -27,11 +29,14 @@ public class Account {
         this.id = id;
     }
 
-    public double getAmmount() {
+    /**
+     * Balance in minor units.
+     */
+    public long getAmmount() {
         return ammount;
     }
 
-    public void setAmmount(double ammount) {
+    public void setAmmount(long ammount) {
         this.ammount = ammount;
     }
 
@@ -42,4 +47,12 @@ public class Account {
     public void setOwner(User owner) {
         this.owner = owner;
     }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
 }
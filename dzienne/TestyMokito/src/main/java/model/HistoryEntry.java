@@ -0,0 +1,22 @@
+package model;
+
+/**
+ * Operation together with its result, as stored in the History table.
+ */
+public class HistoryEntry {
+    private final Operation operation;
+    private final boolean success;
+
+    public HistoryEntry(Operation operation, boolean success) {
+        this.operation = operation;
+        this.success = success;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+}
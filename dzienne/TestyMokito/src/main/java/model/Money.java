@@ -0,0 +1,93 @@
+package model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Amounts of money as long counts of minor units (grosz), so balance math is exact
+ * and does not allocate. All arithmetic throws ArithmeticException on overflow.
+ * Doubles and text are converted only at the edges of the system.
+ */
+public final class Money {
+    public static final int SCALE = 2;
+    public static final long MINOR_PER_UNIT = 100;
+    // rates are kept as millionths, 0.2 is 200000
+    public static final long RATE_SCALE = 1_000_000;
+
+    private Money() {
+    }
+
+    public static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    public static long subtract(long a, long b) {
+        return Math.subtractExact(a, b);
+    }
+
+    public static long negate(long a) {
+        return Math.negateExact(a);
+    }
+
+    /**
+     * Part of the amount given by a rate in millionths, e.g. interest.
+     */
+    public static long multiply(long minor, long rateMicros, RoundingMode mode) {
+        return divide(Math.multiplyExact(minor, rateMicros), RATE_SCALE, mode);
+    }
+
+    /**
+     * Integer division rounded with the given mode, without BigDecimal.
+     */
+    public static long divide(long dividend, long divisor, RoundingMode mode) {
+        if (divisor == 0) throw new ArithmeticException("Division by zero");
+        long quotient = dividend / divisor;
+        long remainder = dividend % divisor;
+        if (remainder == 0) return quotient;
+        int sign = (dividend < 0) == (divisor < 0) ? 1 : -1;
+        // remainder against the rest of the divisor: above zero means more than a half
+        long absRemainder = Math.abs(remainder);
+        int half = Long.compare(absRemainder, Math.abs(divisor) - absRemainder);
+        boolean awayFromZero;
+        switch (mode) {
+            case UP: awayFromZero = true; break;
+            case DOWN: awayFromZero = false; break;
+            case CEILING: awayFromZero = sign > 0; break;
+            case FLOOR: awayFromZero = sign < 0; break;
+            case HALF_UP: awayFromZero = half >= 0; break;
+            case HALF_DOWN: awayFromZero = half > 0; break;
+            case HALF_EVEN: awayFromZero = half > 0 || (half == 0 && (quotient & 1) != 0); break;
+            default: throw new ArithmeticException("Rounding necessary");
+        }
+        return awayFromZero ? Math.addExact(quotient, sign) : quotient;
+    }
+
+    /**
+     * Converts a rate like 0.2 to millionths.
+     */
+    public static long rateOf(double rate) {
+        return BigDecimal.valueOf(rate).movePointRight(6).setScale(0, RoundingMode.HALF_EVEN).longValueExact();
+    }
+
+    /**
+     * Amount in units rounded half even to minor units, for input given as double.
+     * Binary errors like 0.1 * 100 = 10.000000000000002 are far below half a grosz.
+     */
+    public static long fromDouble(double ammount) {
+        double scaled = ammount * MINOR_PER_UNIT;
+        if (!(Math.abs(scaled) < 0x1p63)) throw new ArithmeticException("Amount out of range " + ammount);
+        return (long) Math.rint(scaled);
+    }
+
+    public static double toDouble(long minor) {
+        return minor / (double) MINOR_PER_UNIT;
+    }
+
+    public static long parse(String ammount) {
+        return new BigDecimal(ammount.trim()).setScale(SCALE, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+    }
+
+    public static String format(long minor) {
+        return BigDecimal.valueOf(minor, SCALE).toPlainString();
+    }
+}
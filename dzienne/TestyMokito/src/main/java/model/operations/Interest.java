@@ -8,7 +8,7 @@ import model.User;
  */
 public class Interest extends Payment {
 
-    public Interest(User user, double ammount, String description, Account account) {
+    public Interest(User user, long ammount, String description, Account account) {
         super(user, ammount, description, account, OperationType.INTEREST);
     }
 }
@@ -8,7 +8,7 @@ import model.User;
  */
 public class PaymentIn  extends Payment{
 
-    public PaymentIn(User user, double ammount, String description, Account account) {
+    public PaymentIn(User user, long ammount, String description, Account account) {
         super(user, ammount, description, account, OperationType.PAYMENT_IN);
     }
 }
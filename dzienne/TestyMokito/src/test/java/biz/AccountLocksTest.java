@@ -0,0 +1,201 @@
+package biz;
+
+import db.dao.impl.InMemoryDAO;
+import model.Account;
+import model.Role;
+import model.User;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccountLocksTest {
+
+    AccountLocks target;
+
+    @BeforeEach
+    void setUp() {
+        target = new AccountLocks(8, 100);
+    }
+
+    @Test
+    void stripeCountIsRoundedUpToPowerOfTwo() {
+        //THEN
+        assertEquals(8, new AccountLocks(5, 100).getStripeCount());
+        assertEquals(1, new AccountLocks(1, 100).getStripeCount());
+        assertThrows(IllegalArgumentException.class, () -> new AccountLocks(0, 100));
+    }
+
+    @Test
+    void accountsSharingStripeAreLockedOnce() throws Exception {
+        //GIVEN
+        //Konta 1 i 9 mają ten sam zamek przy 8 pasach
+        target.lock(1, 9);
+        //WHEN
+        target.unlock(1, 9);
+        //THEN
+        assertTrue(freeForOtherThread(1));
+    }
+
+    @Test
+    void accountHeldByOtherThreadTimesOut() throws Exception {
+        //GIVEN
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Void> holder = hold(1, release);
+        //WHEN
+        assertThrows(SQLTimeoutException.class, () -> target.lock(1));
+        release.countDown();
+        holder.get(10, TimeUnit.SECONDS);
+        //THEN
+        assertEquals(1, target.getTimeouts());
+        assertEquals(1, target.getContended());
+        target.lock(1);
+        target.unlock(1);
+    }
+
+    @Test
+    void timeoutOnSecondAccountReleasesFirst() throws Exception {
+        //GIVEN
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Void> holder = hold(2, release);
+        //WHEN
+        assertThrows(SQLTimeoutException.class, () -> target.lock(2, 1));
+        //THEN
+        assertTrue(freeForOtherThread(1));
+        release.countDown();
+        holder.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void transfersInOppositeDirectionsDoNotDeadlock() throws Exception {
+        //GIVEN
+        target = new AccountLocks(8, 10000);
+        long[] balances = new long[8];
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> done = new ArrayList<>();
+        //WHEN
+        for (int t = 0; t < 8; t++) {
+            done.add(pool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 5000; i++) {
+                    int from = random.nextInt(8);
+                    int to = random.nextInt(8);
+                    target.lock(from, to);
+                    try {
+                        //Pola tablicy chronione tylko zamkami kont
+                        balances[from]--;
+                        balances[to]++;
+                    }
+                    finally {
+                        target.unlock(from, to);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : done) future.get(30, TimeUnit.SECONDS);
+        pool.shutdown();
+        //THEN
+        long total = 0;
+        for (int id = 0; id < 8; id++) {
+            target.lock(id);
+            total += balances[id];
+            target.unlock(id);
+        }
+        assertEquals(0, total);
+        assertEquals(0, target.getTimeouts());
+    }
+
+    @Test
+    void parallelTransfersKeepTotalBalance() throws Exception {
+        //GIVEN
+        Role role = new Role();
+        role.setId(1);
+        role.setName("Admin");
+        User admin = new User();
+        admin.setId(1);
+        admin.setName("admin");
+        admin.setRole(role);
+        InMemoryDAO dao = new InMemoryDAO();
+        dao.addUser(admin, null);
+        for (int id = 1; id <= 4; id++) {
+            Account account = new Account();
+            account.setId(id);
+            account.setOwner(admin);
+            account.setAmmount(10000);
+            dao.addAccount(account);
+        }
+        AccountManager manager = new AccountManager();
+        manager.dao = dao;
+        manager.history = new BankHistory(dao);
+        manager.auth = new AuthenticationManager(dao, manager.history);
+        manager.setAccountLocks(new AccountLocks(2, 10000));
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> done = new ArrayList<>();
+        //WHEN
+        for (int t = 0; t < 8; t++) {
+            done.add(pool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 300; i++) {
+                    int from = 1 + random.nextInt(4);
+                    int to = 1 + (from + random.nextInt(3)) % 4;
+                    manager.internalPayment(admin, 1 + random.nextInt(50), "Przelew", from, to);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : done) future.get(60, TimeUnit.SECONDS);
+        pool.shutdown();
+        //THEN
+        long total = 0;
+        for (int id = 1; id <= 4; id++) {
+            long balance = dao.findAccountById(id).getAmmount();
+            assertTrue(balance >= 0);
+            total += balance;
+        }
+        assertEquals(4 * 10000, total);
+        assertEquals(0, manager.getAccountLocks().getTimeouts());
+        assertTrue(manager.getAccountLocks().getAcquisitions() >= 8 * 300);
+    }
+
+    private CompletableFuture<Void> hold(int accountId, CountDownLatch release) throws InterruptedException {
+        CountDownLatch held = new CountDownLatch(1);
+        CompletableFuture<Void> holder = CompletableFuture.runAsync(() -> {
+            try {
+                target.lock(accountId);
+                held.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                target.unlock(accountId);
+            }
+            catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertTrue(held.await(10, TimeUnit.SECONDS));
+        return holder;
+    }
+
+    private boolean freeForOtherThread(int accountId) throws Exception {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                target.lock(accountId);
+                target.unlock(accountId);
+                return true;
+            }
+            catch (Exception e) {
+                return false;
+            }
+        }).get(10, TimeUnit.SECONDS);
+    }
+}
@@ -1,21 +1,32 @@
 package biz;
 
 import db.dao.DAO;
+import db.dao.impl.InMemoryDAO;
 import model.Account;
 import model.Operation;
 import model.User;
+import model.exceptions.OperationIsNotAllowedException;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.verification.VerificationMode;
 
 import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
@@ -52,30 +63,18 @@ class AccountManagerTest {
         //GIVEN
         int accId = 13;
         User user = new User();
-        Account a = mock(Account.class) ;
-//        = new Account();
-//        a.setOwner(user);
-//        a.setAmmount(100);
-//        a.setId(accId);
         String desc = "Wpłata";
         double amount = 123;
-        when(mockDao.findAccountById(eq(accId))).thenReturn(a);
-        when(mockDao.updateAccountState(eq(a))).thenReturn(true);
+        when(mockDao.applyDelta(eq(accId), eq(12300L), anyLong())).thenReturn(true);
         //WHEN
         boolean result = target.paymentIn(user,amount,desc,accId);
         //THEN
-        //System.out.println(target.dao.findAccountById(13));
-        //System.out.println(target.dao.findAccountById(1));
         assertTrue(result);
-        //Możemy sprawdzić stan konta po operacji
-        //assertEquals(100+amount,a.getAmmount());
-        verify(a, times(1)).income(amount);
-        //Sprawzamy operacje na dao, find account by ID
-        verify(mockDao, atMostOnce() ).findAccountById(eq(accId));
-        verify(mockDao, atLeastOnce() ).findAccountById(anyInt());
-        verify(mockDao, times(1) ).findAccountById(anyInt());
-        verify(mockDao, atMostOnce() ).updateAccountState(eq(a));
-        verify(mockDao, atLeastOnce() ).updateAccountState(any(Account.class));
+        //Saldo zmieniane jednym zapytaniem, bez odczytu konta
+        //Kwoty w groszach
+        verify(mockDao, times(1) ).applyDelta(eq(accId), eq(12300L), eq(DAO.NO_MIN_BALANCE));
+        verify(mockDao, never() ).findAccountById(anyInt());
+        verify(mockDao, never() ).updateAccountState(any(Account.class));
         //Sprawdzamy czy zalogowano odpowiednie operacje
         verify(mockHistory, atLeastOnce()).logOperation(any(Operation.class),eq(true));
     }
@@ -85,8 +84,8 @@ class AccountManagerTest {
     @Test
     void nullAccountpaymentIn() throws SQLException {
         //GIVEN
-        when(mockDao.findAccountById(anyInt())).thenReturn(null);
         int accId = 13;
+        when(mockDao.applyDelta(eq(accId), anyLong(), anyLong())).thenReturn(false);
         User user = new User();
         String desc = "Wpłata";
         double amount = 123;
@@ -94,5 +93,269 @@ class AccountManagerTest {
         boolean result = target.paymentIn(user,amount,desc,accId);
         //THEN
         assertFalse(result);
+        verify(mockHistory).logOperation(any(Operation.class),eq(false));
     }
-}
\ No newline at end of file
+
+    @Test
+    void paymentOutWithoutFunds() throws SQLException, OperationIsNotAllowedException {
+        //GIVEN
+        int accId = 13;
+        User user = new User();
+        when(mockAuthManager.canInvokeOperation(any(Operation.class), eq(user))).thenReturn(true);
+        when(mockDao.applyDelta(accId, -50000, 0)).thenReturn(false);
+        //WHEN
+        boolean result = target.paymentOut(user, 500, "Wypłata", accId);
+        //THEN
+        assertFalse(result);
+        verify(mockDao, never() ).findAccountById(anyInt());
+        verify(mockHistory).logOperation(any(Operation.class),eq(false));
+    }
+
+    @Test
+    void internalPaymentInOneTransaction() throws SQLException, OperationIsNotAllowedException {
+        //GIVEN
+        User user = new User();
+        when(mockAuthManager.canInvokeOperation(any(Operation.class), eq(user))).thenReturn(true);
+        when(mockDao.applyDelta(1, -4000, 0)).thenReturn(true);
+        when(mockDao.applyDelta(2, 4000, DAO.NO_MIN_BALANCE)).thenReturn(true);
+        //WHEN
+        boolean result = target.internalPayment(user, 40, "Przelew", 1, 2);
+        //THEN
+        assertTrue(result);
+        InOrder inOrder = inOrder(mockDao, mockHistory);
+        inOrder.verify(mockDao).beginTransaction();
+        inOrder.verify(mockHistory, times(2)).logOperation(any(Operation.class), eq(true));
+        inOrder.verify(mockDao).commitTransaction();
+        verify(mockDao, never()).rollbackTransaction();
+    }
+
+    @Test
+    void failedInternalPaymentIsRolledBack() throws SQLException, OperationIsNotAllowedException {
+        //GIVEN
+        User user = new User();
+        when(mockAuthManager.canInvokeOperation(any(Operation.class), eq(user))).thenReturn(true);
+        when(mockDao.applyDelta(1, -4000, 0)).thenReturn(true);
+        when(mockDao.applyDelta(2, 4000, DAO.NO_MIN_BALANCE)).thenReturn(false);
+        //WHEN
+        boolean result = target.internalPayment(user, 40, "Przelew", 1, 2);
+        //THEN
+        assertFalse(result);
+        verify(mockDao).rollbackTransaction();
+        verify(mockDao, never()).commitTransaction();
+        verify(mockHistory, times(2)).logOperation(any(Operation.class), eq(false));
+    }
+
+    @Test
+    void paymentInBatchChangesEachAccountOnce() throws SQLException {
+        //GIVEN
+        User user = new User();
+        List<PaymentOrder> orders = List.of(
+                new PaymentOrder(1, 10.00, "Pensja"),
+                new PaymentOrder(2, 0.05, "Pensja"),
+                PaymentOrder.ofMinor(1, 2050, "Premia"));
+        when(mockDao.applyDelta(1, 3050, DAO.NO_MIN_BALANCE)).thenReturn(true);
+        when(mockDao.applyDelta(2, 5, DAO.NO_MIN_BALANCE)).thenReturn(false);
+        //WHEN
+        boolean[] result = target.paymentInBatch(user, orders);
+        //THEN
+        assertArrayEquals(new boolean[]{true, false, true}, result);
+        verify(mockDao, times(2)).applyDelta(anyInt(), anyLong(), anyLong());
+        verify(mockHistory).logOperations(anyList());
+        verify(mockDao).commitTransaction();
+    }
+
+    @Test
+    void paymentOutBatchWithdrawsOneByOneWithoutFunds() throws SQLException, OperationIsNotAllowedException {
+        //GIVEN
+        User user = new User();
+        List<PaymentOrder> orders = List.of(
+                new PaymentOrder(1, 50, "Wypłata"),
+                new PaymentOrder(1, 0.3, "Wypłata"));
+        when(mockAuthManager.canInvokeOperation(any(Operation.class), eq(user))).thenReturn(true);
+        when(mockDao.applyDelta(1, -5030, 0)).thenReturn(false);
+        when(mockDao.applyDelta(1, -5000, 0)).thenReturn(true);
+        when(mockDao.applyDelta(1, -30, 0)).thenReturn(false);
+        //WHEN
+        boolean[] result = target.paymentOutBatch(user, orders);
+        //THEN
+        assertArrayEquals(new boolean[]{true, false}, result);
+        verify(mockAuthManager, times(1)).canInvokeOperation(any(Operation.class), eq(user));
+        verify(mockDao).commitTransaction();
+    }
+
+    @Test
+    void failedBatchChunkIsReportedAndRepeatedOrderByOrder() throws SQLException {
+        //GIVEN
+        User user = new User();
+        List<PaymentOrder> orders = List.of(
+                PaymentOrder.ofMinor(1, 1000, "Pensja"),
+                PaymentOrder.ofMinor(2, 5, "Pensja"));
+        SQLException error = new SQLException("Błąd zapisu konta 2");
+        when(mockDao.applyDelta(1, 1000, DAO.NO_MIN_BALANCE)).thenReturn(true);
+        when(mockDao.applyDelta(2, 5, DAO.NO_MIN_BALANCE)).thenThrow(error);
+        List<Exception> reported = new ArrayList<>();
+        target.setBatchErrorListener(reported::add);
+        //WHEN
+        boolean[] result = target.paymentInBatch(user, orders);
+        //THEN
+        assertArrayEquals(new boolean[]{true, false}, result);
+        assertEquals(List.of(error, error), reported);
+        assertEquals(1, target.getFailedBatchChunks());
+        assertEquals(1, target.getFailedBatchOrders());
+        verify(mockDao).rollbackTransaction();
+        verify(mockHistory).logOperation(any(Operation.class), eq(true));
+    }
+
+    @Test
+    void nettedTransferIsLoggedAfterCommit() throws SQLException, OperationIsNotAllowedException {
+        //GIVEN
+        User user = new User();
+        Account source = new Account();
+        source.setId(1);
+        source.setAmmount(10000);
+        when(mockAuthManager.canInvokeOperation(any(Operation.class), eq(user))).thenReturn(true);
+        when(mockDao.findAccountById(1)).thenReturn(source);
+        when(mockDao.applyDelta(1, -4000, 0)).thenReturn(true);
+        when(mockDao.applyDelta(2, 4000, DAO.NO_MIN_BALANCE)).thenReturn(true);
+        TransferNetting netting = new TransferNetting(target, 1, 10);
+        target.setTransferNetting(netting);
+        //WHEN
+        boolean result = target.internalPayment(user, 40, "Przelew", 1, 2);
+        netting.close();
+        //THEN
+        assertTrue(result);
+        InOrder inOrder = inOrder(mockDao, mockHistory);
+        inOrder.verify(mockDao).beginTransaction();
+        inOrder.verify(mockHistory).logOperations(argThat(entries -> entries.size() == 2));
+        inOrder.verify(mockDao).commitTransaction();
+    }
+
+    @Test
+    void failedNettingWindowIsReportedAndRepeatedOneByOne() throws SQLException, OperationIsNotAllowedException {
+        //GIVEN
+        User user = new User();
+        Account source = new Account();
+        source.setId(1);
+        source.setAmmount(10000);
+        SQLException error = new SQLException("Błąd zapisu historii");
+        when(mockAuthManager.canInvokeOperation(any(Operation.class), eq(user))).thenReturn(true);
+        when(mockDao.findAccountById(1)).thenReturn(source);
+        when(mockDao.applyDelta(1, -4000, 0)).thenReturn(true);
+        when(mockDao.applyDelta(2, 4000, DAO.NO_MIN_BALANCE)).thenReturn(true);
+        doThrow(error).when(mockHistory).logOperations(anyList());
+        TransferNetting netting = new TransferNetting(target, 1, 10);
+        List<Exception> reported = new ArrayList<>();
+        netting.setErrorListener(reported::add);
+        target.setTransferNetting(netting);
+        //WHEN
+        boolean result = target.internalPayment(user, 40, "Przelew", 1, 2);
+        netting.close();
+        //THEN
+        assertTrue(result);
+        assertEquals(List.of(error), reported);
+        assertEquals(1, netting.getFailedWindows());
+        verify(mockHistory, times(2)).logOperation(any(Operation.class), eq(true));
+    }
+
+    @Test
+    void nettedTransferWithoutFundsFailsAtOnce() throws SQLException, OperationIsNotAllowedException {
+        //GIVEN
+        User user = new User();
+        Account source = new Account();
+        source.setId(1);
+        source.setAmmount(1000);
+        when(mockAuthManager.canInvokeOperation(any(Operation.class), eq(user))).thenReturn(true);
+        when(mockDao.findAccountById(1)).thenReturn(source);
+        TransferNetting netting = new TransferNetting(target, 1, 10);
+        target.setTransferNetting(netting);
+        //WHEN
+        boolean result = target.internalPayment(user, 40, "Przelew", 1, 2);
+        netting.close();
+        //THEN
+        assertFalse(result);
+        verify(mockHistory).logOperations(argThat(entries -> entries.size() == 2 && !entries.get(0).isSuccess()));
+        verify(mockDao, never()).applyDelta(anyInt(), anyLong(), anyLong());
+    }
+
+    @Test
+    void updateBalanceReadsAgainAfterConflict() throws SQLException {
+        //GIVEN
+        when(mockDao.findAccountById(1)).thenAnswer(invocation -> account(1, 10000));
+        when(mockDao.compareAndSetAccountState(any(Account.class))).thenReturn(false, false, true);
+        target.setRetryPolicy(5, 0, 0);
+        //WHEN
+        Account result = target.updateBalance(1, balance -> balance + 500);
+        //THEN
+        assertEquals(10500, result.getAmmount());
+        verify(mockDao, times(3)).findAccountById(1);
+        assertEquals(3, target.getUpdateAttempts());
+        assertEquals(2, target.getUpdateConflicts());
+        assertEquals(0, target.getFailedUpdates());
+    }
+
+    @Test
+    void updateBalanceGivesUpAfterLastAttempt() throws SQLException {
+        //GIVEN
+        when(mockDao.findAccountById(1)).thenAnswer(invocation -> account(1, 10000));
+        when(mockDao.compareAndSetAccountState(any(Account.class))).thenReturn(false);
+        target.setRetryPolicy(3, 1, 4);
+        //WHEN
+        SQLTransientException error = assertThrows(SQLTransientException.class, () -> target.updateBalance(1, balance -> balance + 500));
+        //THEN
+        assertTrue(error.getMessage().contains("3 attempts"));
+        verify(mockDao, times(3)).compareAndSetAccountState(any(Account.class));
+        assertEquals(3, target.getUpdateConflicts());
+        assertEquals(1, target.getFailedUpdates());
+        assertEquals(1.0, target.getConflictRate());
+    }
+
+    @Test
+    void updateBalanceOfMissingAccountIsNotAttempted() throws SQLException {
+        //GIVEN
+        when(mockDao.findAccountById(1)).thenReturn(null);
+        //WHEN
+        Account result = target.updateBalance(1, balance -> balance + 500);
+        //THEN
+        assertNull(result);
+        verify(mockDao, never()).compareAndSetAccountState(any(Account.class));
+        assertEquals(0, target.getUpdateAttempts());
+    }
+
+    @Test
+    void parallelUpdateBalanceLosesNoChange() throws Exception {
+        //GIVEN
+        InMemoryDAO dao = new InMemoryDAO();
+        dao.addAccount(account(1, 10000));
+        target.dao = dao;
+        target.setRetryPolicy(1000, 1, 10);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> done = new ArrayList<>();
+        //WHEN
+        for (int t = 0; t < 8; t++) {
+            done.add(pool.submit(() -> {
+                for (int i = 0; i < 200; i++) target.updateBalance(1, balance -> balance + 1);
+                return null;
+            }));
+        }
+        for (Future<?> future : done) future.get(30, TimeUnit.SECONDS);
+        pool.shutdown();
+        //THEN
+        assertEquals(10000 + 8 * 200, dao.findAccountById(1).getAmmount());
+        assertEquals(8 * 200, target.getUpdateAttempts() - target.getUpdateConflicts());
+        assertEquals(0, target.getFailedUpdates());
+    }
+
+    @Test
+    void badRetryPolicyIsRejected() {
+        //THEN
+        assertThrows(IllegalArgumentException.class, () -> target.setRetryPolicy(0, 1, 1));
+        assertThrows(IllegalArgumentException.class, () -> target.setRetryPolicy(3, 10, 5));
+    }
+
+    private static Account account(int id, long ammount) {
+        Account account = new Account();
+        account.setId(id);
+        account.setAmmount(ammount);
+        return account;
+    }
+}
@@ -0,0 +1,147 @@
+package biz;
+
+import db.dao.impl.InMemoryDAO;
+import model.Account;
+import model.Role;
+import model.User;
+import model.exceptions.UserUnnkownOrBadPasswordException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncAccountManagerTest {
+
+    InMemoryDAO dao;
+    AccountManager manager;
+    ExecutorService executor;
+    AsyncAccountManager target;
+    User adam;
+
+    @BeforeEach
+    void setUp() {
+        Role role = new Role();
+        role.setId(1);
+        role.setName("Admin");
+        dao = new InMemoryDAO();
+        for (int id = 1; id <= 8; id++) {
+            User user = new User();
+            user.setId(id);
+            user.setName("user" + id);
+            user.setRole(role);
+            dao.addUser(user, AuthenticationManager.hashPassword(("haslo" + id).toCharArray()));
+            Account account = new Account();
+            account.setId(id);
+            account.setOwner(user);
+            account.setAmmount(10000);
+            dao.addAccount(account);
+            if (id == 1) adam = user;
+        }
+        manager = new AccountManager();
+        manager.dao = dao;
+        manager.history = new BankHistory(dao);
+        manager.auth = new AuthenticationManager(dao, manager.history);
+        executor = Executors.newFixedThreadPool(4);
+        target = new AsyncAccountManager(manager, executor);
+    }
+
+    @AfterEach
+    void tearDown() {
+        target.close();
+        executor.shutdownNow();
+    }
+
+    @Test
+    void concurrentLogInsReturnTheirOwnUsers() throws Exception {
+        //GIVEN
+        List<CompletableFuture<User>> logins = new ArrayList<>();
+        //WHEN
+        for (int id = 1; id <= 8; id++) logins.add(target.logIn("user" + id, ("haslo" + id).toCharArray()));
+        //THEN
+        for (int id = 1; id <= 8; id++) assertEquals(id, logins.get(id - 1).get(10, TimeUnit.SECONDS).getId());
+        //Wspólny zalogowany użytkownik managera nie jest zmieniany
+        assertNull(manager.getLoggedUser());
+    }
+
+    @Test
+    void badPasswordFailsTheFuture() {
+        //WHEN
+        CompletableFuture<User> login = target.logIn("user1", "zle".toCharArray());
+        //THEN
+        ExecutionException error = assertThrows(ExecutionException.class, () -> login.get(10, TimeUnit.SECONDS));
+        assertTrue(error.getCause() instanceof UserUnnkownOrBadPasswordException);
+        assertEquals(1, target.getFailed());
+    }
+
+    @Test
+    void paymentsFromManyCallersAreAllApplied() throws Exception {
+        //GIVEN
+        List<CompletableFuture<Boolean>> payments = new ArrayList<>();
+        //WHEN
+        for (int i = 0; i < 100; i++) payments.add(target.internalPayment(adam, 1, "Przelew", 1, 2));
+        CompletableFuture.allOf(payments.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        //THEN
+        for (CompletableFuture<Boolean> payment : payments) assertTrue(payment.join());
+        assertEquals(10000 - 100 * 100, dao.findAccountById(1).getAmmount());
+        assertEquals(10000 + 100 * 100, dao.findAccountById(2).getAmmount());
+        assertEquals(100, target.getCompleted());
+        assertEquals(0, target.getInFlight());
+        assertEquals(0, target.getQueueDepth());
+    }
+
+    @Test
+    void operationTimedOutBeforeStartIsSkipped() throws Exception {
+        //GIVEN
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) executor.execute(() -> awaitQuietly(release));
+        target.setTimeoutMillis(50);
+        //WHEN
+        CompletableFuture<Boolean> payment = target.paymentIn(adam, 5, "Wpłata", 3);
+        ExecutionException error = assertThrows(ExecutionException.class, () -> payment.get(10, TimeUnit.SECONDS));
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        //THEN
+        assertTrue(error.getCause() instanceof TimeoutException);
+        assertEquals(1, target.getTimedOut());
+        assertEquals(0, target.getCompleted());
+        assertEquals(10000, dao.findAccountById(3).getAmmount());
+    }
+
+    @Test
+    void cancelledOperationIsSkipped() throws Exception {
+        //GIVEN
+        CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 4; i++) executor.execute(() -> awaitQuietly(release));
+        CompletableFuture<Boolean> payment = target.paymentIn(adam, 5, "Wpłata", 3);
+        //WHEN
+        assertTrue(payment.cancel(true));
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        //THEN
+        assertEquals(1, target.getCancelled());
+        assertEquals(0, target.getQueueDepth());
+        assertEquals(10000, dao.findAccountById(3).getAmmount());
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package biz;
+
+import db.dao.impl.InMemoryDAO;
+import model.Account;
+import model.HistoryEntry;
+import model.User;
+import model.operations.PaymentIn;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuditWriterTest {
+
+    SlowDAO dao;
+    AuditWriter target;
+
+    @BeforeEach
+    void setUp() {
+        dao = new SlowDAO();
+        target = new AuditWriter(dao, 1000, 50, 1);
+    }
+
+    @AfterEach
+    void tearDown() {
+        target.close();
+    }
+
+    @Test
+    void entriesAreWrittenInBatches() throws Exception {
+        //GIVEN
+        List<CompletableFuture<Void>> done = new ArrayList<>();
+        //WHEN
+        for (int i = 0; i < 200; i++) done.add(target.submit(payment(i), true));
+        target.flush();
+        //THEN
+        for (CompletableFuture<Void> future : done) assertTrue(future.isDone());
+        assertEquals(200, dao.getOperationCount());
+        assertTrue(target.getWrittenBatches() < 200);
+    }
+
+    @Test
+    void flushWaitsForEntriesOfEveryThread() throws Exception {
+        //GIVEN
+        ExecutorService submitters = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<>();
+        //WHEN
+        //Każdy wątek po swoich wpisach woła flush, wpisy innych wątków nie mogą go skrócić
+        for (int t = 0; t < 8; t++) {
+            results.add(submitters.submit(() -> {
+                List<CompletableFuture<Void>> own = new ArrayList<>();
+                for (int i = 0; i < 100; i++) own.add(target.submit(payment(i), true));
+                target.flush();
+                for (CompletableFuture<Void> future : own) {
+                    if (!future.isDone()) return false;
+                }
+                return true;
+            }));
+        }
+        //THEN
+        for (Future<Boolean> result : results) assertTrue(result.get(10, TimeUnit.SECONDS));
+        submitters.shutdown();
+        assertEquals(800, dao.getOperationCount());
+    }
+
+    @Test
+    void flushReportsFailedBatch() throws Exception {
+        //GIVEN
+        dao.failing = true;
+        CompletableFuture<Void> done = target.submit(payment(1), true);
+        //WHEN
+        SQLException e = assertThrows(SQLException.class, () -> target.flush());
+        //THEN
+        assertNotNull(e.getCause());
+        assertTrue(done.isCompletedExceptionally());
+        assertEquals(1, target.getFailedEntries());
+        //Kolejny flush bez nowych błędów kończy się poprawnie
+        dao.failing = false;
+        target.submit(payment(2), true);
+        target.flush();
+        assertEquals(1, dao.getOperationCount());
+    }
+
+    @Test
+    void flushReportsBatchFailedBeforeTheCall() throws Exception {
+        //GIVEN
+        dao.failing = true;
+        CompletableFuture<Void> done = target.submit(payment(1), true);
+        //Partia zapisana z błędem zanim ktokolwiek wywołał flush
+        assertThrows(Exception.class, () -> done.get(10, TimeUnit.SECONDS));
+        dao.failing = false;
+        //WHEN
+        SQLException e = assertThrows(SQLException.class, () -> target.flush());
+        //THEN
+        assertEquals("Zapis nieudany", e.getCause().getMessage());
+        target.flush();
+    }
+
+    @Test
+    void closeWritesQueuedEntries() throws Exception {
+        //GIVEN
+        for (int i = 0; i < 100; i++) target.submit(payment(i), true);
+        //WHEN
+        target.close();
+        //THEN
+        assertEquals(100, dao.getOperationCount());
+        assertThrows(SQLException.class, () -> target.submit(payment(1), true));
+        target.flush();
+    }
+
+    private static PaymentIn payment(int i) {
+        Account account = new Account();
+        account.setId(1 + i % 10);
+        return new PaymentIn(new User(), 100, "Wpłata", account);
+    }
+
+    /**
+     * Every batch takes a while, so the queue fills up while one is written.
+     */
+    static class SlowDAO extends InMemoryDAO {
+        volatile boolean failing;
+
+        @Override
+        public void logOperations(List<HistoryEntry> entries) throws SQLException {
+            try {
+                Thread.sleep(2);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (failing) throw new SQLException("Zapis nieudany");
+            super.logOperations(entries);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package biz;
+
+import db.dao.DAO;
+import db.dao.OperationQuery;
+import db.dao.impl.EventSourcedDAO;
+import db.dao.impl.InMemoryDAO;
+import model.Account;
+import model.Operation;
+import model.User;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InterestOperatorTest {
+
+    static final int ACCOUNTS = 300;
+
+    @TempDir
+    Path dir;
+
+    InMemoryDAO dao;
+    AccountManager manager;
+    InterestOperator target;
+
+    @BeforeEach
+    void setUp() {
+        dao = new InMemoryDAO();
+        build(dao);
+    }
+
+    private void build(InMemoryDAO accounts) {
+        User operator = new User();
+        operator.setId(7);
+        operator.setName("InterestOperator");
+        accounts.addUser(operator, null);
+        for (int id = 1; id <= ACCOUNTS; id++) {
+            Account account = new Account();
+            account.setId(id);
+            account.setOwner(operator);
+            //Co dziesiąte konto puste, odsetki zero
+            account.setAmmount(id % 10 == 0 ? 0 : 10000);
+            accounts.addAccount(account);
+        }
+        manager = bank(accounts);
+        target = new InterestOperator(accounts, manager);
+        target.setInterestRate(.1);
+        target.setPageSize(32);
+        target.setParallelism(4);
+    }
+
+    private static AccountManager bank(DAO dao) {
+        AccountManager manager = new AccountManager();
+        manager.dao = dao;
+        manager.history = new BankHistory(dao);
+        manager.auth = new AuthenticationManager(dao, manager.history);
+        return manager;
+    }
+
+    @Test
+    void everyAccountWithBalanceIsCreditedOnce() throws SQLException {
+        //GIVEN
+        List<String> reports = new ArrayList<>();
+        target.setProgressListener(reports::add);
+        //WHEN
+        long credited = target.countInterestForAllAccounts();
+        //THEN
+        assertEquals(ACCOUNTS - ACCOUNTS / 10, credited);
+        assertEquals(ACCOUNTS, target.getProcessedAccounts());
+        assertEquals(0, target.getFailedAccounts());
+        for (int id = 1; id <= ACCOUNTS; id++) {
+            assertEquals(id % 10 == 0 ? 0 : 11000, dao.findAccountById(id).getAmmount());
+        }
+        assertEquals(credited, loggedInterest());
+        assertFalse(reports.isEmpty());
+        assertTrue(reports.get(reports.size() - 1).contains(ACCOUNTS + " of " + ACCOUNTS));
+    }
+
+    @Test
+    void failedPageCountsOnlyAccountsReallyCredited() throws SQLException {
+        //GIVEN
+        GoneAccountDAO accounts = new GoneAccountDAO(5);
+        build(accounts);
+        List<Exception> errors = new ArrayList<>();
+        target.setErrorListener(errors::add);
+        //WHEN
+        long credited = target.countInterestForAllAccounts();
+        //THEN
+        //Strona z kontem 5 jest powtarzana konto po koncie, konta 5 już nie ma,
+        //puste konta 10, 20 i 30 tej strony są wtedy zapisane z zerowymi odsetkami
+        assertEquals(ACCOUNTS - ACCOUNTS / 10 - 1 + 3, credited);
+        assertEquals(1, target.getFailedAccounts());
+        assertEquals(ACCOUNTS, target.getProcessedAccounts());
+        assertEquals(11000, accounts.findAccountById(4).getAmmount());
+        assertEquals(0, accounts.findAccountById(10).getAmmount());
+        assertEquals(1, target.getFailedPages());
+        assertEquals(1, errors.size());
+        assertEquals("Account 5 is locked", errors.get(0).getMessage());
+    }
+
+    @Test
+    void singleAccountReportsWhetherItWasCredited() throws SQLException {
+        //GIVEN
+        Account missing = new Account();
+        missing.setId(ACCOUNTS + 1);
+        //WHEN
+        //THEN
+        assertTrue(target.countInterestForAccount(dao.findAccountById(1)));
+        assertFalse(target.countInterestForAccount(missing));
+        assertEquals(11000, dao.findAccountById(1).getAmmount());
+    }
+
+    @Test
+    void eventSourcedBalanceChangesWithItsLog() throws SQLException {
+        //GIVEN
+        EventSourcedDAO sourced = new EventSourcedDAO(dao, dir);
+        manager = bank(sourced);
+        target = new InterestOperator(sourced, manager);
+        target.setInterestRate(.1);
+        //WHEN
+        boolean credited = target.countInterestForAccount(sourced.findAccountById(1));
+        //THEN
+        assertTrue(credited);
+        assertEquals(11000, sourced.findAccountById(1).getAmmount());
+        assertFalse(sourced.isInTransaction());
+    }
+
+    private long loggedInterest() throws SQLException {
+        try (Stream<Operation> operations = dao.streamOperations(new OperationQuery().successful(true))) {
+            return operations.count();
+        }
+    }
+
+    /**
+     * Konto znika po odczycie strony: zapis strony się nie udaje, a pojedynczo konta już nie ma.
+     */
+    static class GoneAccountDAO extends InMemoryDAO {
+        final int gone;
+
+        GoneAccountDAO(int gone) {
+            this.gone = gone;
+        }
+
+        @Override
+        public boolean applyDelta(int accountId, long delta, long minBalance) throws SQLException {
+            if (accountId == gone) throw new SQLException("Account " + gone + " is locked");
+            return super.applyDelta(accountId, delta, minBalance);
+        }
+
+        @Override
+        public Account findAccountById(int accountId) {
+            return accountId == gone ? null : super.findAccountById(accountId);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package biz;
+
+import db.dao.DAO;
+import db.dao.impl.InMemoryDAO;
+import db.dao.impl.SQLiteDB;
+import model.Account;
+import model.Money;
+import model.Role;
+import model.User;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares transfers between a few hot accounts done directly by {@link AccountManager}
+ * with the same transfers sent through {@link LedgerEngine}, on {@link InMemoryDAO} and on
+ * SQLite. Every run is preceded by a warm-up of a tenth of its transfers, not measured.
+ * Not a unit test, run it by hand with the test classpath.
+ * Arguments: threads, transfers per thread in memory, transfers per thread on SQLite,
+ * accounts (default 8 100000 2000 16).
+ */
+public class LedgerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int memoryTransfers = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int sqliteTransfers = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        int accounts = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+        compare("memory", memoryBank(accounts), memoryBank(accounts), threads, memoryTransfers, accounts);
+        Path dir = Files.createTempDirectory("ledger-benchmark");
+        compare("sqlite", sqliteBank(dir.resolve("direct.db"), accounts),
+                sqliteBank(dir.resolve("ledger.db"), accounts), threads, sqliteTransfers, accounts);
+    }
+
+    private static void compare(String name, AccountManager direct, AccountManager engineBank,
+                                int threads, int transfers, int accounts) throws Exception {
+        Transfer directTransfer = (user, source, dest) -> direct.internalPayment(user, 0.01, "Benchmark", source, dest);
+        run(direct.loggedUser, threads, Math.max(1, transfers / 10), accounts, directTransfer);
+        report(name + " direct", run(direct.loggedUser, threads, transfers, accounts, directTransfer));
+        direct.dao.close();
+
+        try (LedgerEngine engine = new LedgerEngine(engineBank)) {
+            Transfer engineTransfer = (user, source, dest) ->
+                    engine.internalPayment(user, 0.01, "Benchmark", source, dest).join();
+            run(engineBank.loggedUser, threads, Math.max(1, transfers / 10), accounts, engineTransfer);
+            long batches = engine.getWrittenBatches();
+            long commands = engine.getAppliedCommands();
+            report(name + " ledger", run(engineBank.loggedUser, threads, transfers, accounts, engineTransfer));
+            batches = engine.getWrittenBatches() - batches;
+            commands = engine.getAppliedCommands() - commands;
+            System.out.println(name + " ledger batches " + batches +
+                    ", commands per batch " + commands / Math.max(1, batches) +
+                    ", full ring waits " + engine.getFullRingWaits());
+        }
+        engineBank.dao.close();
+    }
+
+    private static AccountManager memoryBank(int accounts) {
+        User user = admin();
+        InMemoryDAO dao = new InMemoryDAO();
+        dao.addUser(user, null);
+        for (int i = 1; i <= accounts; i++) {
+            Account account = new Account();
+            account.setId(i);
+            account.setOwner(user);
+            account.setAmmount(Money.fromDouble(1_000_000));
+            dao.addAccount(account);
+        }
+        return bank(dao, user);
+    }
+
+    private static AccountManager sqliteBank(Path file, int accounts) throws Exception {
+        String url = "jdbc:sqlite:" + file;
+        SQLiteDB.initializeDB(url);
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement st = conn.createStatement();
+             PreparedStatement insert = conn.prepareStatement("INSERT INTO Account (id, owner_id, balance) VALUES (?, 1, ?)")) {
+            conn.setAutoCommit(false);
+            st.executeUpdate("INSERT INTO Role (id, name) VALUES (1, 'Admin')");
+            st.executeUpdate("INSERT INTO User (id, name, role_id) VALUES (1, 'Admin', 1)");
+            for (int i = 1; i <= accounts; i++) {
+                insert.setInt(1, i);
+                insert.setLong(2, Money.fromDouble(1_000_000));
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            conn.commit();
+        }
+        DAO dao = SQLiteDB.createDAO(url);
+        return bank(dao, dao.findUserByName("Admin"));
+    }
+
+    private static User admin() {
+        Role role = new Role();
+        role.setId(1);
+        role.setName("Admin");
+        User user = new User();
+        user.setId(1);
+        user.setName("Admin");
+        user.setRole(role);
+        return user;
+    }
+
+    private static AccountManager bank(DAO dao, User user) {
+        BankHistory history = new BankHistory(dao);
+        AccountManager manager = new AccountManager();
+        manager.dao = dao;
+        manager.history = history;
+        manager.auth = new AuthenticationManager(dao, history);
+        manager.loggedUser = user;
+        return manager;
+    }
+
+    private static Result run(User user, int threads, int transfers, int accounts, Transfer transfer) throws InterruptedException {
+        long[][] latencies = new long[threads][transfers];
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            long[] latency = latencies[t];
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    for (int i = 0; i < transfers; i++) {
+                        int source = 1 + random.nextInt(accounts);
+                        int dest = 1 + (source + random.nextInt(accounts - 1)) % accounts;
+                        long begin = System.nanoTime();
+                        transfer.run(user, source, dest);
+                        latency[i] = System.nanoTime() - begin;
+                    }
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+                finally {
+                    done.countDown();
+                }
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        long[] all = new long[threads * transfers];
+        for (int t = 0; t < threads; t++) System.arraycopy(latencies[t], 0, all, t * transfers, transfers);
+        Arrays.sort(all);
+        return new Result(all.length, elapsed, all[all.length / 2], all[(int) (all.length * 0.99)]);
+    }
+
+    private static void report(String name, Result result) {
+        System.out.printf("%s: %d transfers in %d ms, %.0f ops/s, p50 %.1f us, p99 %.1f us%n",
+                name, result.operations, result.elapsedNanos / 1_000_000,
+                result.operations * 1e9 / result.elapsedNanos, result.p50 / 1e3, result.p99 / 1e3);
+    }
+
+    private interface Transfer {
+        void run(User user, int source, int dest) throws Exception;
+    }
+
+    private static class Result {
+        final long operations;
+        final long elapsedNanos;
+        final long p50;
+        final long p99;
+
+        Result(long operations, long elapsedNanos, long p50, long p99) {
+            this.operations = operations;
+            this.elapsedNanos = elapsedNanos;
+            this.p50 = p50;
+            this.p99 = p99;
+        }
+    }
+}
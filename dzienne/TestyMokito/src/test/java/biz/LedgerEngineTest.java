@@ -0,0 +1,175 @@
+package biz;
+
+import db.dao.DAO;
+import db.dao.OperationQuery;
+import db.dao.impl.InMemoryDAO;
+import model.Account;
+import model.Role;
+import model.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LedgerEngineTest {
+
+    InMemoryDAO dao;
+    User user;
+    LedgerEngine target;
+
+    @BeforeEach
+    void setUp() {
+        Role role = new Role();
+        role.setId(1);
+        role.setName("Admin");
+        user = new User();
+        user.setId(1);
+        user.setName("admin");
+        user.setRole(role);
+        dao = new InMemoryDAO();
+        dao.addUser(user, null);
+        for (int id = 1; id <= 4; id++) {
+            Account account = new Account();
+            account.setId(id);
+            account.setOwner(user);
+            account.setAmmount(10000);
+            dao.addAccount(account);
+        }
+        target = new LedgerEngine(manager(), 64, 16);
+    }
+
+    private AccountManager manager() {
+        AccountManager manager = new AccountManager();
+        manager.dao = dao;
+        manager.history = new BankHistory(dao);
+        manager.auth = new AuthenticationManager(dao, manager.history);
+        return manager;
+    }
+
+    @AfterEach
+    void tearDown() {
+        target.close();
+    }
+
+    @Test
+    void transfersFromManyThreadsKeepTotal() throws Exception {
+        //GIVEN
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        List<Future<Boolean>> results = new ArrayList<>();
+        //WHEN
+        for (int i = 0; i < 400; i++) {
+            int source = 1 + i % 4;
+            int dest = 1 + (i + 1) % 4;
+            results.add(callers.submit(() -> target.internalPayment(user, 0.5, "Przelew", source, dest).get()));
+        }
+        for (Future<Boolean> result : results) assertTrue(result.get(10, TimeUnit.SECONDS));
+        callers.shutdown();
+        //THEN
+        long total = 0;
+        for (int id = 1; id <= 4; id++) total += dao.findAccountById(id).getAmmount();
+        assertEquals(40000, total);
+        //Każdy przelew to wypłata i wpłata w historii
+        assertEquals(800, dao.getOperationCount());
+        assertEquals(0, target.getFailedBatches());
+    }
+
+    @Test
+    void withdrawalWithoutFundsFailsAndIsLogged() throws Exception {
+        //WHEN
+        boolean result = target.paymentOut(user, 100.01, "Wypłata", 1).get(5, TimeUnit.SECONDS);
+        //THEN
+        assertFalse(result);
+        assertEquals(10000, dao.findAccountById(1).getAmmount());
+        assertEquals(1, dao.streamOperations(new OperationQuery().successful(false)).count());
+    }
+
+    @Test
+    void changesOfOtherWritersAreKept() throws Exception {
+        //GIVEN
+        //Silnik odczytał saldo konta, potem zmienia je ktoś inny
+        assertTrue(target.paymentIn(user, 1, "Wpłata", 1).get(5, TimeUnit.SECONDS));
+        dao.applyDelta(1, 500, DAO.NO_MIN_BALANCE);
+        //WHEN
+        boolean result = target.paymentIn(user, 1, "Wpłata", 1).get(5, TimeUnit.SECONDS);
+        //THEN
+        assertTrue(result);
+        assertEquals(10000 + 100 + 500 + 100, dao.findAccountById(1).getAmmount());
+    }
+
+    @Test
+    void staleBalanceIsReadAgain() throws Exception {
+        //GIVEN
+        assertTrue(target.paymentIn(user, 1, "Wpłata", 1).get(5, TimeUnit.SECONDS));
+        dao.applyDelta(1, -9000, 0);
+        //WHEN
+        //Silnik liczy na 101 zł, w bazie zostało 11 zł
+        CompletableFuture<Boolean> tooMuch = target.internalPayment(user, 50, "Przelew", 1, 2);
+        CompletableFuture<Boolean> enough = target.internalPayment(user, 10, "Przelew", 1, 2);
+        //THEN
+        assertFalse(tooMuch.get(5, TimeUnit.SECONDS));
+        assertTrue(enough.get(5, TimeUnit.SECONDS));
+        assertTrue(target.getStaleBatches() >= 1);
+        assertEquals(100, dao.findAccountById(1).getAmmount());
+        assertEquals(11000, dao.findAccountById(2).getAmmount());
+    }
+
+    @Test
+    void publishRacingCloseIsAppliedOrRefused() throws Exception {
+        //GIVEN
+        ExecutorService callers = Executors.newFixedThreadPool(4);
+        List<Future<List<CompletableFuture<Boolean>>>> published = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            published.add(callers.submit(() -> {
+                List<CompletableFuture<Boolean>> acks = new ArrayList<>();
+                CompletableFuture<Boolean> ack;
+                do {
+                    ack = target.paymentIn(user, 0.01, "Wpłata", 1);
+                    acks.add(ack);
+                } while (!ack.isCompletedExceptionally());
+                return acks;
+            }));
+        }
+        Thread.sleep(20);
+        //WHEN
+        target.close();
+        //THEN
+        //Po zamknięciu żadna przyjęta wpłata nie czeka już na zapis
+        long applied = 0;
+        for (Future<List<CompletableFuture<Boolean>>> acks : published) {
+            for (CompletableFuture<Boolean> ack : acks.get(10, TimeUnit.SECONDS)) {
+                assertTrue(ack.isDone());
+                if (!ack.isCompletedExceptionally()) applied++;
+            }
+        }
+        callers.shutdown();
+        assertEquals(10000 + applied, dao.findAccountById(1).getAmmount());
+        assertEquals(0, target.getQueueDepth());
+    }
+
+    @Test
+    void leastRecentlyUsedBalancesAreDropped() throws Exception {
+        //GIVEN
+        target.close();
+        target = new LedgerEngine(manager(), 64, 16, 2);
+        //WHEN
+        for (int id = 1; id <= 4; id++) assertTrue(target.paymentIn(user, 1, "Wpłata", id).get(5, TimeUnit.SECONDS));
+        //Saldo konta 1 wypadło z pamięci, zmiana innego zapisu jest odczytana
+        dao.applyDelta(1, -10000, 0);
+        boolean result = target.paymentOut(user, 1.5, "Wypłata", 1).get(5, TimeUnit.SECONDS);
+        //THEN
+        assertFalse(result);
+        assertEquals(0, target.getStaleBatches());
+        assertEquals(2, target.getCachedAccounts());
+        assertEquals(100, dao.findAccountById(1).getAmmount());
+        assertEquals(10100, dao.findAccountById(4).getAmmount());
+    }
+}
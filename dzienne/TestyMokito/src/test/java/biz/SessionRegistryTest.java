@@ -0,0 +1,146 @@
+package biz;
+
+import model.User;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionRegistryTest {
+
+    List<User> expired;
+    SessionRegistry target;
+
+    @BeforeEach
+    void setUp() {
+        expired = new CopyOnWriteArrayList<>();
+        //Sesja wygasa po 100 ms bez użycia, koło ma mniej pozycji niż ticków do wygaśnięcia
+        target = new SessionRegistry(100, 10, 4, expired::add);
+    }
+
+    @AfterEach
+    void tearDown() {
+        target.close();
+    }
+
+    @Test
+    void unusedSessionExpiresAndIsReported() throws InterruptedException {
+        //GIVEN
+        User user = user(1);
+        String token = target.open(user);
+        assertSame(user, target.get(token));
+        //WHEN
+        waitUntil(() -> target.getExpiredSessions() == 1);
+        //THEN
+        assertNull(target.get(token));
+        assertEquals(List.of(user), expired);
+        assertEquals(0, target.getActiveSessions());
+    }
+
+    @Test
+    void usedSessionStaysOpen() throws InterruptedException {
+        //GIVEN
+        String used = target.open(user(1));
+        String idle = target.open(user(2));
+        //WHEN
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(400);
+        while (System.nanoTime() < end) {
+            assertNotNull(target.get(used));
+            Thread.sleep(20);
+        }
+        //THEN
+        assertNotNull(target.get(used));
+        assertNull(target.get(idle));
+        assertEquals(1, target.getExpiredSessions());
+        assertEquals(2, expired.get(0).getId());
+    }
+
+    @Test
+    void closedSessionIsNotExpiredLater() throws InterruptedException {
+        //GIVEN
+        String token = target.open(user(1));
+        //WHEN
+        assertEquals(1, target.remove(token).getId());
+        Thread.sleep(300);
+        //THEN
+        assertNull(target.remove(token));
+        assertEquals(1, target.getClosedSessions());
+        assertEquals(0, target.getExpiredSessions());
+        assertTrue(expired.isEmpty());
+    }
+
+    @Test
+    void sessionsOpenedInParallelHaveUniqueTokensAndAllExpire() throws Exception {
+        //GIVEN
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<String>> opened = new ArrayList<>();
+        //WHEN
+        for (int i = 0; i < 1000; i++) {
+            User user = user(i);
+            opened.add(pool.submit(() -> target.open(user)));
+        }
+        Set<String> tokens = new HashSet<>();
+        for (Future<String> token : opened) tokens.add(token.get(10, TimeUnit.SECONDS));
+        pool.shutdown();
+        //THEN
+        assertEquals(1000, tokens.size());
+        assertEquals(1000, target.getOpenedSessions());
+        waitUntil(() -> target.getExpiredSessions() == 1000);
+        assertEquals(0, target.getActiveSessions());
+        assertEquals(1000, expired.size());
+    }
+
+    @Test
+    void failingExpiryCallbackIsReportedAndSessionRemoved() throws InterruptedException {
+        //GIVEN
+        target.close();
+        IllegalStateException error = new IllegalStateException("Wylogowanie nieudane");
+        target = new SessionRegistry(100, 10, 4, user -> {
+            throw error;
+        });
+        List<Exception> reported = new CopyOnWriteArrayList<>();
+        target.setErrorListener(reported::add);
+        String token = target.open(user(1));
+        //WHEN
+        waitUntil(() -> target.getFailedExpiries() == 1 && !reported.isEmpty());
+        //THEN
+        assertEquals(List.of(error), reported);
+        assertEquals(1, target.getExpiredSessions());
+        assertNull(target.get(token));
+    }
+
+    @Test
+    void unknownTokenHasNoUser() {
+        //THEN
+        assertNull(target.get(null));
+        assertNull(target.get("brak"));
+        assertNull(target.remove("brak"));
+    }
+
+    private static User user(int id) {
+        User user = new User();
+        user.setId(id);
+        user.setName("user" + id);
+        return user;
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < end, "Condition not met in time");
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package biz;
+
+import db.dao.impl.InMemoryDAO;
+import model.Account;
+import model.Role;
+import model.User;
+import model.exceptions.OperationIsNotAllowedException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferImportTest {
+
+    @TempDir
+    Path dir;
+    FailingDAO dao;
+    AccountManager manager;
+    User user;
+    List<String> reports = new ArrayList<>();
+    List<Exception> errors = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        Role role = new Role();
+        role.setId(1);
+        role.setName("Admin");
+        user = new User();
+        user.setId(1);
+        user.setName("admin");
+        user.setRole(role);
+        dao = new FailingDAO();
+        dao.addUser(user, null);
+        for (int id = 1; id <= 3; id++) {
+            Account account = new Account();
+            account.setId(id);
+            account.setOwner(user);
+            account.setAmmount(10000);
+            dao.addAccount(account);
+        }
+        manager = new AccountManager();
+        manager.dao = dao;
+        manager.history = new BankHistory(dao);
+        manager.auth = new AuthenticationManager(dao, manager.history);
+    }
+
+    @Test
+    void everyLineGetsStatusInFileOrder() throws Exception {
+        //GIVEN
+        Path input = file(
+                "type,account,dest,ammount,description",
+                "IN,1,,10.50,Wpłata",
+                "OUT,2,,20,Wypłata",
+                "OUT,2,,500,Za dużo",
+                "TRANSFER,1,3,0.01,Przelew",
+                "TRANSFER,1,9,1,Brak konta",
+                "IN,1,,abc,Zła kwota",
+                "XYZ,1,,1,Zły typ");
+        //WHEN
+        List<String> result = run(input, 2);
+        //THEN
+        assertEquals(List.of("line,status", "2,OK", "3,OK", "4,FAILED", "5,OK",
+                "6,REJECTED:unknown account", "7,INVALID:bad number", "8,INVALID:unknown type"), result);
+        //Kwoty w groszach, bez przeliczania przez double
+        assertEquals(10000 + 1050 - 1, dao.findAccountById(1).getAmmount());
+        assertEquals(10000 - 2000, dao.findAccountById(2).getAmmount());
+        assertEquals(10000 + 1, dao.findAccountById(3).getAmmount());
+        assertTrue(reports.get(reports.size() - 1).startsWith("Import: 7 lines read"));
+    }
+
+    @Test
+    void databaseErrorFailsOnlyItsRecords() throws Exception {
+        //GIVEN
+        dao.failingAccount = 2;
+        Path input = file(
+                "TRANSFER,1,2,1,Przelew",
+                "TRANSFER,1,3,1,Przelew",
+                "IN,2,,5,Wpłata",
+                "IN,3,,5,Wpłata",
+                "TRANSFER,3,1,2,Przelew");
+        //WHEN
+        List<String> result = run(input, 10);
+        //THEN
+        assertEquals(List.of("line,status", "1,FAILED", "2,OK", "3,FAILED", "4,OK", "5,OK"), result);
+        //Błąd przelewu zgłasza import, błąd partii wpłat menedżer kont
+        assertEquals(1, errors.size());
+        assertEquals("Błąd zapisu konta 2", errors.get(0).getMessage());
+        assertEquals(10000 - 100 + 200, dao.findAccountById(1).getAmmount());
+        assertEquals(10000, dao.findAccountById(2).getAmmount());
+        assertEquals(10000 + 100 + 500 - 200, dao.findAccountById(3).getAmmount());
+    }
+
+    @Test
+    void refusedBatchIsRejectedNotFailed() throws Exception {
+        //GIVEN
+        AccountManager refusing = new AccountManager() {
+            @Override
+            public boolean[] paymentOutBatch(User user, List<PaymentOrder> orders) throws OperationIsNotAllowedException {
+                throw new OperationIsNotAllowedException("Unauthorized operation");
+            }
+        };
+        refusing.dao = manager.dao;
+        refusing.history = manager.history;
+        refusing.auth = manager.auth;
+        manager = refusing;
+        Path input = file(
+                "OUT,1,,1,Wypłata",
+                "OUT,2,,1,Wypłata",
+                "IN,3,,1,Wpłata");
+        //WHEN
+        List<String> result = run(input, 10);
+        //THEN
+        assertEquals(List.of("line,status", "1,REJECTED:unauthorized", "2,REJECTED:unauthorized", "3,OK"), result);
+        assertEquals(10000, dao.findAccountById(1).getAmmount());
+        assertTrue(reports.get(reports.size() - 1).contains("1 applied, 0 failed, 2 rejected"));
+    }
+
+    private List<String> run(Path input, int batchSize) throws IOException, SQLException {
+        Path output = dir.resolve("wynik.csv");
+        TransferImport target = new TransferImport(manager, user, batchSize, 2, 2);
+        target.setProgressListener(reports::add);
+        target.setErrorListener(errors::add);
+        target.run(input, output);
+        return Files.readAllLines(output, StandardCharsets.UTF_8);
+    }
+
+    private Path file(String... lines) throws IOException {
+        Path input = dir.resolve("przelewy.csv");
+        Files.write(input, new ArrayList<>(List.of(lines)), StandardCharsets.UTF_8);
+        return input;
+    }
+
+    /**
+     * Database failing every balance change of one account.
+     */
+    static class FailingDAO extends InMemoryDAO {
+        volatile int failingAccount = -1;
+
+        @Override
+        public boolean applyDelta(int accountId, long delta, long minBalance) throws SQLException {
+            if (accountId == failingAccount) throw new SQLException("Błąd zapisu konta " + accountId);
+            return super.applyDelta(accountId, delta, minBalance);
+        }
+    }
+}
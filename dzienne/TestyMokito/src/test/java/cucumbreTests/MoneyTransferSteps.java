@@ -7,6 +7,7 @@ import biz.InterestOperator;
 import db.dao.DAO;
 import io.cucumber.java.Before;
 import model.Account;
+import model.Money;
 import model.User;
 
 import java.lang.reflect.Field;
@@ -21,6 +22,8 @@ import model.exceptions.OperationIsNotAllowedException;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
@@ -91,8 +94,15 @@ public class MoneyTransferSteps {
     public Account setupAccountWithIdandAmount(int accId, double amount) throws SQLException {
         Account acc = new Account();
         acc.setId(accId);
-        acc.setAmmount(amount);
+        acc.setAmmount(Money.fromDouble(amount));
         when(daoMock.findAccountById(accId)).thenReturn(acc);
+        when(daoMock.applyDelta(eq(accId), anyLong(), anyLong())).thenAnswer(invocation -> {
+            long delta = invocation.getArgument(1);
+            long minBalance = invocation.getArgument(2);
+            if (acc.getAmmount() + delta < minBalance) return false;
+            acc.setAmmount(acc.getAmmount() + delta);
+            return true;
+        });
         return acc;
     }
 
@@ -116,7 +126,7 @@ public class MoneyTransferSteps {
     @Then("account:{int} value:{double} pln")
     public void checkAccountAmount(int accId, double value) throws SQLException {
         Account acc = daoMock.findAccountById(accId);
-        assertEquals(acc.getAmmount(),value,0.001);
+        assertEquals(Money.fromDouble(value), acc.getAmmount());
     }
 
 }
\ No newline at end of file
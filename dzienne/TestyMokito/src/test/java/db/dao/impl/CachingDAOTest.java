@@ -0,0 +1,253 @@
+package db.dao.impl;
+
+import db.dao.DAO;
+import model.Account;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CachingDAOTest {
+
+    SlowDAO accounts;
+    CachingDAO target;
+
+    @BeforeEach
+    void setUp() {
+        accounts = new SlowDAO();
+        for (int id = 1; id <= 10; id++) accounts.addAccount(InMemoryDAOTest.account(id, 10000));
+        target = new CachingDAO(accounts, 3, CachingDAO.EvictionPolicy.LRU, 0);
+    }
+
+    @Test
+    void returnedAccountIsACopy() throws SQLException {
+        //GIVEN
+        target.findAccountById(1).setAmmount(1);
+        //WHEN
+        Account account = target.findAccountById(1);
+        //THEN
+        assertEquals(10000, account.getAmmount());
+        assertEquals(1, target.getHits());
+        assertEquals(1, target.getMisses());
+    }
+
+    @Test
+    void lruEvictsLeastRecentlyUsed() throws SQLException {
+        //GIVEN
+        for (int id = 1; id <= 3; id++) target.findAccountById(id);
+        target.findAccountById(1);
+        //WHEN
+        target.findAccountById(4);
+        //THEN
+        assertEquals(1, target.getEvictions());
+        long misses = target.getMisses();
+        target.findAccountById(1);
+        target.findAccountById(3);
+        assertEquals(misses, target.getMisses());
+        target.findAccountById(2);
+        assertEquals(misses + 1, target.getMisses());
+    }
+
+    @Test
+    void lfuEvictsFewestHitsThenOldest() throws SQLException {
+        //GIVEN
+        target = new CachingDAO(accounts, 3, CachingDAO.EvictionPolicy.LFU, 0);
+        for (int id = 1; id <= 3; id++) target.findAccountById(id);
+        target.findAccountById(1);
+        target.findAccountById(1);
+        target.findAccountById(2);
+        //WHEN
+        target.findAccountById(4);
+        target.findAccountById(5);
+        //THEN
+        //Najpierw 3 bez trafień, potem 4, która też nie miała trafień
+        assertEquals(2, target.getEvictions());
+        long misses = target.getMisses();
+        target.findAccountById(1);
+        target.findAccountById(2);
+        target.findAccountById(5);
+        assertEquals(misses, target.getMisses());
+        target.findAccountById(3);
+        assertEquals(misses + 1, target.getMisses());
+    }
+
+    @Test
+    void lfuKeepsSizeUnderRandomUse() throws SQLException {
+        //GIVEN
+        target = new CachingDAO(accounts, 3, CachingDAO.EvictionPolicy.LFU, 0);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        //WHEN
+        for (int i = 0; i < 5000; i++) {
+            int id = 1 + random.nextInt(10);
+            if (random.nextInt(5) == 0) target.invalidate(id);
+            else assertEquals(id, target.findAccountById(id).getId());
+        }
+        //THEN
+        assertTrue(target.size() <= 3);
+        target.invalidateAll();
+        assertEquals(0, target.size());
+        target.findAccountById(1);
+        assertEquals(1, target.size());
+    }
+
+    @Test
+    void loadRacingWithChangeOfItsAccountIsNotCached() throws Exception {
+        //GIVEN
+        accounts.slowAccount = 1;
+        CompletableFuture<Account> load = CompletableFuture.supplyAsync(() -> find(1));
+        assertTrue(accounts.reading.await(10, TimeUnit.SECONDS));
+        //WHEN
+        target.applyDelta(1, 500, DAO.NO_MIN_BALANCE);
+        accounts.release.countDown();
+        //THEN
+        assertEquals(10000, load.get(10, TimeUnit.SECONDS).getAmmount());
+        assertEquals(10500, target.findAccountById(1).getAmmount());
+    }
+
+    @Test
+    void changeOfOtherAccountDoesNotStopCaching() throws Exception {
+        //GIVEN
+        accounts.slowAccount = 1;
+        CompletableFuture<Account> load = CompletableFuture.supplyAsync(() -> find(1));
+        assertTrue(accounts.reading.await(10, TimeUnit.SECONDS));
+        //WHEN
+        target.applyDelta(2, 500, DAO.NO_MIN_BALANCE);
+        accounts.release.countDown();
+        load.get(10, TimeUnit.SECONDS);
+        //THEN
+        long hits = target.getHits();
+        target.findAccountById(1);
+        assertEquals(hits + 1, target.getHits());
+    }
+
+    @Test
+    void singleAccountWritesWriteThrough() throws SQLException {
+        //GIVEN
+        Account account = target.findAccountById(1);
+        account.setAmmount(12000);
+        target.findAccountById(2);
+        target.findAccountById(3);
+        //WHEN
+        assertTrue(target.compareAndSetAccountState(account));
+        assertTrue(target.updateAccountState(InMemoryDAOTest.account(2, 7000)));
+        assertTrue(target.applyDelta(3, -2500, DAO.NO_MIN_BALANCE));
+        //Odrzucona zmiana nie usuwa konta z pamięci
+        assertFalse(target.applyDelta(3, -9000, 0));
+        //THEN
+        long misses = target.getMisses();
+        for (int id = 1; id <= 3; id++) {
+            Account cached = target.findAccountById(id);
+            Account stored = accounts.findAccountById(id);
+            assertEquals(stored.getAmmount(), cached.getAmmount());
+            assertEquals(stored.getVersion(), cached.getVersion());
+        }
+        assertEquals(7500, target.findAccountById(3).getAmmount());
+        assertEquals(misses, target.getMisses());
+    }
+
+    @Test
+    void bulkUpdateAndFailedWriteRemoveAccount() throws SQLException {
+        //GIVEN
+        target.findAccountById(1);
+        target.findAccountById(2);
+        accounts.failingAccount = 2;
+        //WHEN
+        target.updateAccountStates(List.of(InMemoryDAOTest.account(1, 5000)));
+        assertThrows(SQLException.class, () -> target.applyDelta(2, 100, DAO.NO_MIN_BALANCE));
+        //THEN
+        long misses = target.getMisses();
+        assertEquals(5000, target.findAccountById(1).getAmmount());
+        assertEquals(10000, target.findAccountById(2).getAmmount());
+        assertEquals(misses + 2, target.getMisses());
+    }
+
+    @Test
+    void changeInTransactionIsReadAgainAfterCommit() throws SQLException {
+        //GIVEN
+        target.findAccountById(1);
+        target.beginTransaction();
+        target.applyDelta(1, 500, DAO.NO_MIN_BALANCE);
+        assertEquals(10500, target.findAccountById(1).getAmmount());
+        //WHEN
+        target.rollbackTransaction();
+        //THEN
+        assertEquals(10000, target.findAccountById(1).getAmmount());
+    }
+
+    @Test
+    void parallelReadsAndChangesEndWithCurrentBalances() throws Exception {
+        //GIVEN
+        target = new CachingDAO(accounts, 5, CachingDAO.EvictionPolicy.LFU, 0);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> done = new ArrayList<>();
+        //WHEN
+        for (int t = 0; t < 8; t++) {
+            done.add(pool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 2000; i++) {
+                    int id = 1 + random.nextInt(10);
+                    if (random.nextBoolean()) target.applyDelta(id, 1, DAO.NO_MIN_BALANCE);
+                    else target.findAccountById(id);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : done) future.get(30, TimeUnit.SECONDS);
+        pool.shutdown();
+        //THEN
+        for (int id = 1; id <= 10; id++) {
+            assertEquals(accounts.findAccountById(id).getAmmount(), target.findAccountById(id).getAmmount());
+        }
+    }
+
+    private Account find(int accountId) {
+        try {
+            return target.findAccountById(accountId);
+        }
+        catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Zatrzymuje pierwszy odczyt wybranego konta po przeczytaniu salda, zmiana salda konta failingAccount kończy się błędem.
+     */
+    static class SlowDAO extends InMemoryDAO {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile int slowAccount = -1;
+        volatile int failingAccount = -1;
+
+        @Override
+        public boolean applyDelta(int accountId, long delta, long minBalance) throws SQLException {
+            if (accountId == failingAccount) throw new SQLException("Błąd zapisu konta " + accountId);
+            return super.applyDelta(accountId, delta, minBalance);
+        }
+
+        @Override
+        public Account findAccountById(int accountId) {
+            Account account = super.findAccountById(accountId);
+            if (accountId == slowAccount && reading.getCount() > 0) {
+                reading.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return account;
+        }
+    }
+}
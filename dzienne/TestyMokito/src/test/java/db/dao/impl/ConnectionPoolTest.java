@@ -0,0 +1,224 @@
+package db.dao.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConnectionPoolTest {
+
+    @TempDir
+    Path dir;
+
+    String url;
+    ConnectionPool target;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        url = TestDatabases.create(dir, "pool.db", 10);
+        target = new ConnectionPool(url, 2, 200, SQLiteProfile.DURABLE_WAL);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        target.close();
+    }
+
+    @Test
+    void writerIsReentrantForItsThread() throws SQLException {
+        //GIVEN
+        PooledConnection outer = target.acquireWriter();
+        //WHEN
+        PooledConnection inner = target.acquireWriter();
+        PooledConnection read = target.borrowReader();
+        //THEN
+        assertSame(outer, inner);
+        //Odczyt w wątku trzymającym writera widzi jego zmiany
+        assertSame(outer, read);
+        assertSame(outer, target.getWriter());
+        target.release(read);
+        target.releaseWriter();
+        assertTrue(target.isWriterLocked());
+        target.releaseWriter();
+        assertFalse(target.isWriterLocked());
+        assertThrows(IllegalStateException.class, target::getWriter);
+    }
+
+    @Test
+    void writerHeldByOtherThreadTimesOut() throws Exception {
+        //GIVEN
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Void> holder = CompletableFuture.runAsync(() -> {
+            try {
+                target.acquireWriter();
+                held.countDown();
+                release.await(10, TimeUnit.SECONDS);
+                target.releaseWriter();
+            }
+            catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertTrue(held.await(10, TimeUnit.SECONDS));
+        //WHEN
+        assertThrows(SQLTimeoutException.class, target::acquireWriter);
+        release.countDown();
+        holder.get(10, TimeUnit.SECONDS);
+        //THEN
+        assertEquals(1, target.getTimeouts());
+        target.acquireWriter();
+        target.releaseWriter();
+        assertEquals(2, target.getWriterAcquisitions());
+    }
+
+    @Test
+    void readersAreHandedOutOnePerCallerAndTimeOut() throws SQLException {
+        //GIVEN
+        PooledConnection first = target.borrowReader();
+        PooledConnection second = target.borrowReader();
+        //WHEN
+        assertThrows(SQLTimeoutException.class, target::borrowReader);
+        //THEN
+        assertNotSame(first, second);
+        assertTrue(first.isReadOnly());
+        assertEquals(2, target.getReadersInUse());
+        assertEquals(0, target.getIdleReaders());
+        assertEquals(1, target.getTimeouts());
+        target.release(first);
+        assertSame(first, target.borrowReader());
+        target.release(first);
+        target.release(second);
+        assertEquals(0, target.getReadersInUse());
+        assertEquals(2, target.getIdleReaders());
+    }
+
+    @Test
+    void closedReaderIsReplaced() throws SQLException {
+        //GIVEN
+        PooledConnection first = target.borrowReader();
+        PooledConnection second = target.borrowReader();
+        first.getConnection().close();
+        target.release(second);
+        target.release(first);
+        target.borrowReader();
+        //WHEN
+        PooledConnection replaced = target.borrowReader();
+        //THEN
+        assertNotSame(first, replaced);
+        assertFalse(replaced.getConnection().isClosed());
+        assertEquals(1, target.getReplacedConnections());
+        assertEquals(1, count(replaced, "SELECT COUNT(*) FROM Account WHERE id = 1"));
+    }
+
+    @Test
+    void readerCanNotWrite() throws SQLException {
+        //GIVEN
+        PooledConnection reader = target.borrowReader();
+        //WHEN
+        //THEN
+        try (PreparedStatement st = reader.getConnection().prepareStatement("DELETE FROM Account")) {
+            assertThrows(SQLException.class, st::executeUpdate);
+        }
+        finally {
+            target.release(reader);
+        }
+    }
+
+    @Test
+    void parallelBorrowersNeverShareAConnection() throws Exception {
+        //GIVEN
+        target.close();
+        target = new ConnectionPool(url, 3, ConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS, SQLiteProfile.DURABLE_WAL);
+        Set<PooledConnection> inUse = ConcurrentHashMap.newKeySet();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> done = new ArrayList<>();
+        //WHEN
+        for (int t = 0; t < 8; t++) {
+            int thread = t;
+            done.add(pool.submit(() -> {
+                for (int i = 0; i < 50; i++) {
+                    boolean write = (thread + i) % 4 == 0;
+                    PooledConnection conn = write ? target.acquireWriter() : target.borrowReader();
+                    try {
+                        assertTrue(inUse.add(conn), "Connection handed out twice");
+                        if (write) {
+                            try (PreparedStatement st = conn.getConnection().prepareStatement("UPDATE Account SET balance = balance + 1 WHERE id = 1")) {
+                                st.executeUpdate();
+                            }
+                        }
+                        else assertEquals(1, count(conn, "SELECT COUNT(*) FROM Account WHERE id = 1"));
+                        inUse.remove(conn);
+                    }
+                    finally {
+                        target.release(conn);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : done) future.get(60, TimeUnit.SECONDS);
+        pool.shutdown();
+        //THEN
+        assertEquals(0, target.getReadersInUse());
+        assertEquals(3, target.getIdleReaders());
+        assertFalse(target.isWriterLocked());
+        assertEquals(0, target.getTimeouts());
+        assertEquals(400, target.getWriterAcquisitions() + target.getReaderBorrows());
+        assertEquals(10000 + target.getWriterAcquisitions(), count(target.acquireWriter(), "SELECT balance FROM Account WHERE id = 1"));
+        target.releaseWriter();
+    }
+
+    @Test
+    void closedPoolRefusesConnections() throws SQLException {
+        //WHEN
+        target.close();
+        //THEN
+        assertThrows(SQLException.class, target::acquireWriter);
+        assertThrows(SQLException.class, target::borrowReader);
+        assertThrows(SQLException.class, target::openCursorConnection);
+    }
+
+    @Test
+    void singleConnectionServesEveryCall() throws SQLException {
+        //GIVEN
+        Connection connection = target.openCursorConnection();
+        ConnectionPool single = new ConnectionPool(connection);
+        //WHEN
+        PooledConnection read = single.borrowReader();
+        single.release(read);
+        //THEN
+        assertSame(read, single.acquireWriter());
+        single.releaseWriter();
+        assertNull(single.openCursorConnection());
+        assertNull(single.getProfile());
+        single.close();
+    }
+
+    private static long count(PooledConnection conn, String sql) throws SQLException {
+        try (PreparedStatement st = conn.getConnection().prepareStatement(sql);
+             ResultSet rs = st.executeQuery()) {
+            assertTrue(rs.next());
+            return rs.getLong(1);
+        }
+    }
+}
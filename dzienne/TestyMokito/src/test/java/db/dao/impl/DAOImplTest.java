@@ -0,0 +1,257 @@
+package db.dao.impl;
+
+import db.dao.DAO;
+import db.dao.OperationQuery;
+import model.Account;
+import model.Operation;
+import model.User;
+import model.operations.OperationType;
+import model.operations.PaymentIn;
+import model.operations.Withdraw;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DAOImplTest {
+
+    @TempDir
+    Path dir;
+
+    DAO target;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        target = SQLiteDB.createDAO(TestDatabases.create(dir, "bank.db", 2500));
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        target.close();
+    }
+
+    @Test
+    void chunkLargerThanInListIsSplitAtChunkSize() throws SQLException {
+        //GIVEN
+        List<Integer> ids = new ArrayList<>();
+        for (int id = 1; id <= 2500; id++) ids.add(id);
+        List<Integer> sizes = new ArrayList<>();
+        Set<Integer> seen = new HashSet<>();
+        //WHEN
+        //Jedno zapytanie czyta do 900 kont, dwa dają więcej niż mieści porcja
+        target.findAccountsByIds(ids, 1000, chunk -> {
+            sizes.add(chunk.size());
+            for (Account account : chunk) assertTrue(seen.add(account.getId()));
+        });
+        //THEN
+        assertEquals(List.of(1000, 1000, 500), sizes);
+        assertEquals(2500, seen.size());
+    }
+
+    @Test
+    void missingIdsAreSkipped() throws SQLException {
+        //GIVEN
+        List<Integer> ids = List.of(1, 2, 9999, 3, 4, 5, 8888);
+        List<Integer> sizes = new ArrayList<>();
+        //WHEN
+        target.findAccountsByIds(ids, 2, chunk -> sizes.add(chunk.size()));
+        List<Account> all = target.findAccountsByIds(ids);
+        //THEN
+        for (int size : sizes) assertTrue(size <= 2);
+        assertEquals(5, sizes.stream().mapToInt(Integer::intValue).sum());
+        assertEquals(5, all.size());
+    }
+
+    @Test
+    void accountStatesAreUpdatedInOneBatch() throws SQLException {
+        //GIVEN
+        List<Account> accounts = target.findAccountsByIds(List.of(1, 2));
+        for (Account account : accounts) account.setAmmount(account.getAmmount() + 50);
+        Account missing = InMemoryDAOTest.account(9999, 1);
+        accounts.add(missing);
+        //WHEN
+        boolean[] updated = target.updateAccountStates(accounts);
+        //THEN
+        assertArrayEquals(new boolean[]{true, true, false}, updated);
+        assertEquals(10050, target.findAccountById(1).getAmmount());
+        assertEquals(10050, target.findAccountById(2).getAmmount());
+    }
+
+    @Test
+    void streamFiltersOperationsInLogOrder() throws SQLException {
+        //GIVEN
+        for (int i = 0; i < 30; i++) {
+            target.logOperation(i % 3 == 0 ? new Withdraw(adam(), 100, "Wypłata", account(1 + i % 2)) : payment(1 + i % 2, 100), i % 5 != 0);
+        }
+        //WHEN
+        List<Operation> found;
+        try (Stream<Operation> operations = target.streamOperations(new OperationQuery()
+                .forAccount(1).ofType(OperationType.PAYMENT_IN).successful(true).fetchSize(4))) {
+            found = operations.collect(Collectors.toList());
+        }
+        //THEN
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 30; i++) if (i % 2 == 0 && i % 3 != 0 && i % 5 != 0) expected.add(i + 1);
+        assertEquals(expected, found.stream().map(Operation::getId).collect(Collectors.toList()));
+        for (Operation operation : found) {
+            assertEquals(OperationType.PAYMENT_IN, operation.getType());
+            assertEquals(1, ((PaymentIn) operation).getAccount().getId());
+            assertEquals(100, ((PaymentIn) operation).getAmmount());
+        }
+    }
+
+    @Test
+    void streamResumesAfterLastSeenId() throws SQLException {
+        //GIVEN
+        for (int i = 0; i < 10; i++) target.logOperation(payment(1, i), true);
+        //WHEN
+        int last;
+        try (Stream<Operation> operations = target.streamOperations(new OperationQuery().upToId(4))) {
+            last = operations.mapToInt(Operation::getId).max().getAsInt();
+        }
+        List<Integer> rest;
+        try (Stream<Operation> operations = target.streamOperations(new OperationQuery().afterId(last))) {
+            rest = operations.map(Operation::getId).collect(Collectors.toList());
+        }
+        //THEN
+        assertEquals(4, last);
+        assertEquals(List.of(5, 6, 7, 8, 9, 10), rest);
+    }
+
+    @Test
+    void abandonedStreamDoesNotHoldTheDatabase() throws Exception {
+        //GIVEN
+        for (int i = 0; i < 20; i++) target.logOperation(payment(1, 1), true);
+        Stream<Operation> operations = target.streamOperations(new OperationQuery().fetchSize(2));
+        Iterator<Operation> iterator = operations.iterator();
+        assertEquals(1, iterator.next().getId());
+        //WHEN
+        operations.close();
+        //THEN
+        //Otwarty kursor trzymałby blokadę odczytu pliku i zapis czekałby na nią do przekroczenia czasu
+        CompletableFuture<Void> write = CompletableFuture.runAsync(() -> log(payment(2, 1)));
+        write.get(10, TimeUnit.SECONDS);
+        try (Stream<Operation> all = target.streamOperations(new OperationQuery())) {
+            assertEquals(21, all.count());
+        }
+        assertTrue(target.applyDelta(1, 1, DAO.NO_MIN_BALANCE));
+    }
+
+    @Test
+    void walStreamKeepsItsSnapshotWhileOperationsAreLogged() throws Exception {
+        //GIVEN
+        target.close();
+        target = SQLiteDB.createPooledDAO(TestDatabases.create(dir, "wal.db", 2), 2,
+                ConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS, SQLiteProfile.DURABLE_WAL);
+        for (int i = 0; i < 50; i++) target.logOperation(payment(1, 1), true);
+        List<Integer> ids = new ArrayList<>();
+        //WHEN
+        try (Stream<Operation> operations = target.streamOperations(new OperationQuery().fetchSize(5))) {
+            Iterator<Operation> iterator = operations.iterator();
+            ids.add(iterator.next().getId());
+            //Zapis w trakcie czytania nie czeka na kursor
+            CompletableFuture.runAsync(() -> {
+                for (int i = 0; i < 50; i++) log(payment(2, 1));
+            }).get(10, TimeUnit.SECONDS);
+            iterator.forEachRemaining(operation -> ids.add(operation.getId()));
+        }
+        //THEN
+        assertEquals(50, ids.size());
+        for (int i = 0; i < ids.size(); i++) assertEquals(i + 1, (int) ids.get(i));
+        try (Stream<Operation> operations = target.streamOperations(new OperationQuery().forAccount(2))) {
+            assertEquals(50, operations.count());
+        }
+    }
+
+    @Test
+    void pagesGoNewestFirstThroughEqualDates() throws SQLException {
+        //GIVEN
+        long base = 1520164800000L;
+        for (int i = 0; i < 25; i++) {
+            //Po trzy operacje z tą samą datą, co piąta na innym koncie
+            PaymentIn payment = payment(i % 5 == 4 ? 2 : 1, i);
+            payment.setDate(new Date(base + i / 3 * 1000));
+            target.logOperation(payment, true);
+        }
+        //WHEN
+        List<Integer> ids = statement(target, 1, 4);
+        //THEN
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 24; i >= 0; i--) if (i % 5 != 4) expected.add(i + 1);
+        assertEquals(expected, ids);
+        assertTrue(target.findOperationsPage(3, null, 0, 4).isEmpty());
+    }
+
+    @Test
+    void newOperationsDoNotShiftFollowingPages() throws SQLException {
+        //GIVEN
+        for (int i = 0; i < 10; i++) target.logOperation(payment(1, i), true);
+        List<Operation> first = target.findOperationsPage(1, null, 0, 4);
+        //WHEN
+        for (int i = 0; i < 5; i++) target.logOperation(payment(1, 100 + i), true);
+        Operation last = first.get(first.size() - 1);
+        List<Operation> second = target.findOperationsPage(1, last.getDate(), last.getId(), 4);
+        //THEN
+        assertEquals(List.of(10, 9, 8, 7), first.stream().map(Operation::getId).collect(Collectors.toList()));
+        assertEquals(List.of(6, 5, 4, 3), second.stream().map(Operation::getId).collect(Collectors.toList()));
+    }
+
+    /**
+     * Całe zestawienie konta czytane stronami, od ostatniej pozycji poprzedniej strony.
+     */
+    static List<Integer> statement(DAO dao, int accountId, int pageSize) throws SQLException {
+        List<Integer> ids = new ArrayList<>();
+        Date beforeDate = null;
+        int beforeId = 0;
+        List<Operation> page;
+        while (!(page = dao.findOperationsPage(accountId, beforeDate, beforeId, pageSize)).isEmpty()) {
+            assertTrue(page.size() <= pageSize);
+            for (Operation operation : page) ids.add(operation.getId());
+            Operation last = page.get(page.size() - 1);
+            beforeDate = last.getDate();
+            beforeId = last.getId();
+        }
+        return ids;
+    }
+
+    private void log(Operation operation) {
+        try {
+            target.logOperation(operation, true);
+        }
+        catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static User adam() {
+        User adam = new User();
+        adam.setId(1);
+        adam.setName("Adam");
+        return adam;
+    }
+
+    static Account account(int id) {
+        Account account = new Account();
+        account.setId(id);
+        return account;
+    }
+
+    static PaymentIn payment(int accountId, long ammount) {
+        return new PaymentIn(adam(), ammount, "Wpłata", account(accountId));
+    }
+}
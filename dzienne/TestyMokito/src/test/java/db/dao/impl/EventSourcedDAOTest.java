@@ -0,0 +1,235 @@
+package db.dao.impl;
+
+import db.dao.DAO;
+import model.Account;
+import model.Operation;
+import model.User;
+import model.operations.PaymentIn;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventSourcedDAOTest {
+
+    @TempDir
+    Path dir;
+
+    FailingLogDAO base;
+    EventSourcedDAO target;
+    User user;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        user = new User();
+        user.setId(1);
+        user.setName("Adam");
+        base = new FailingLogDAO();
+        base.addUser(user, null);
+        for (int id = 1; id <= 3; id++) base.addAccount(InMemoryDAOTest.account(id, 10000));
+        target = new EventSourcedDAO(base, dir, 1000, 2);
+    }
+
+    @Test
+    void balanceChangeOutsideTransactionIsRefused() throws SQLException {
+        //WHEN
+        //THEN
+        assertTrue(target.isEventSourced());
+        assertThrows(SQLException.class, () -> target.applyDelta(1, 500, DAO.NO_MIN_BALANCE));
+        assertEquals(10000, target.findAccountById(1).getAmmount());
+    }
+
+    @Test
+    void loggedPaymentChangesBalance() throws SQLException {
+        //WHEN
+        pay(1, 500);
+        //THEN
+        assertEquals(10500, target.findAccountById(1).getAmmount());
+        assertEquals(1, target.getAppliedEvents());
+        //Kolumna salda w bazie nie jest już zapisywana
+        assertEquals(10000, base.findAccountById(1).getAmmount());
+    }
+
+    @Test
+    void failedLogUndoesHeldChange() throws SQLException {
+        //GIVEN
+        base.failLog = true;
+        //WHEN
+        assertThrows(SQLException.class, () -> pay(1, 500));
+        //THEN
+        assertFalse(target.isInTransaction());
+        assertEquals(10000, target.findAccountById(1).getAmmount());
+        base.failLog = false;
+        pay(1, 200);
+        assertEquals(10200, target.findAccountById(1).getAmmount());
+    }
+
+    @Test
+    void reopenReplaysOnlyPaymentsAfterSnapshot() throws SQLException {
+        //GIVEN
+        pay(1, 500);
+        pay(2, 300);
+        target.snapshot();
+        pay(1, 100);
+        //WHEN
+        EventSourcedDAO reopened = new EventSourcedDAO(base, dir, 1000, 2);
+        //THEN
+        assertEquals(1, reopened.getReplayedEvents());
+        assertEquals(10600, reopened.findAccountById(1).getAmmount());
+        assertEquals(10300, reopened.findAccountById(2).getAmmount());
+        assertEquals(10000, reopened.findAccountById(3).getAmmount());
+    }
+
+    @Test
+    void damagedNewestSnapshotFallsBackToOlderOne() throws Exception {
+        //GIVEN
+        pay(1, 500);
+        target.snapshot();
+        pay(1, 100);
+        target.snapshot();
+        Path newest = snapshotFiles().get(1);
+        try (FileChannel channel = FileChannel.open(newest, StandardOpenOption.WRITE)) {
+            //Zapis przerwany w połowie rekordu
+            channel.truncate(Files.size(newest) - 10);
+        }
+        //WHEN
+        EventSourcedDAO reopened = new EventSourcedDAO(base, dir, 1000, 2);
+        //THEN
+        assertEquals(1, reopened.getReplayedEvents());
+        assertEquals(10600, reopened.findAccountById(1).getAmmount());
+        assertEquals(1, reopened.getDamagedSnapshots());
+    }
+
+    @Test
+    void failedBackgroundSnapshotIsReported() throws Exception {
+        //GIVEN
+        target = new EventSourcedDAO(base, dir, 2, 2);
+        CompletableFuture<Exception> reported = new CompletableFuture<>();
+        target.setErrorListener(reported::complete);
+        //Katalog w miejscu pliku tymczasowego snapshotu po dwóch wpłatach
+        Files.createDirectory(dir.resolve("snapshot-0000000002.dat.tmp"));
+        //WHEN
+        pay(1, 100);
+        pay(1, 100);
+        //THEN
+        assertTrue(reported.get(10, TimeUnit.SECONDS) instanceof SQLException);
+        assertEquals(1, target.getFailedSnapshots());
+        assertEquals(10200, target.findAccountById(1).getAmmount());
+    }
+
+    @Test
+    void retentionKeepsNewestSnapshots() throws Exception {
+        //WHEN
+        for (int i = 0; i < 5; i++) {
+            pay(1, 100);
+            target.snapshot();
+        }
+        //THEN
+        assertEquals(2, snapshotFiles().size());
+        assertEquals(10500, new EventSourcedDAO(base, dir, 1000, 2).findAccountById(1).getAmmount());
+    }
+
+    @Test
+    void balanceAtDateSubtractsLaterPayments() throws Exception {
+        //GIVEN
+        pay(1, 500);
+        Thread.sleep(5);
+        Date before = new Date();
+        Thread.sleep(5);
+        pay(1, 100);
+        target.snapshot();
+        //WHEN
+        Account account = target.findAccountAt(1, before);
+        //THEN
+        assertEquals(10500, account.getAmmount());
+        assertEquals(10600, target.findAccountAt(1, new Date()).getAmmount());
+    }
+
+    @Test
+    void balanceAtDateIsReadWhileOldSnapshotsAreDeleted() throws Exception {
+        //GIVEN
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        //WHEN
+        Future<Integer> writer = pool.submit(() -> {
+            int payments = 0;
+            while (running.get() && payments < 2000) {
+                pay(1, 1);
+                target.snapshot();
+                payments++;
+            }
+            return payments;
+        });
+        Future<?> reader = pool.submit(() -> {
+            for (int i = 0; i < 2000; i++) {
+                //Wybrany snapshot nie może zniknąć przed odczytem
+                long ammount = target.findAccountAt(1, new Date()).getAmmount();
+                assertTrue(ammount >= 10000);
+            }
+            return null;
+        });
+        try {
+            reader.get(30, TimeUnit.SECONDS);
+        }
+        finally {
+            running.set(false);
+        }
+        int payments = writer.get(30, TimeUnit.SECONDS);
+        pool.shutdown();
+        //THEN
+        assertEquals(10000 + payments, target.findAccountById(1).getAmmount());
+        assertEquals(10000 + payments, target.findAccountAt(1, new Date()).getAmmount());
+    }
+
+    /**
+     * Tak jak AccountManager w tym trybie: zmiana salda i jej wpis w jednej transakcji.
+     */
+    private void pay(int accountId, long ammount) throws SQLException {
+        Account account = new Account();
+        account.setId(accountId);
+        boolean committed = false;
+        target.beginTransaction();
+        try {
+            boolean success = target.applyDelta(accountId, ammount, DAO.NO_MIN_BALANCE);
+            target.logOperation(new PaymentIn(user, ammount, "Wpłata", account), success);
+            target.commitTransaction();
+            committed = true;
+        }
+        finally {
+            if (!committed) target.rollbackTransaction();
+        }
+    }
+
+    private List<Path> snapshotFiles() throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> f.getFileName().toString().endsWith(".dat")).sorted().collect(Collectors.toList());
+        }
+    }
+
+    static class FailingLogDAO extends InMemoryDAO {
+        volatile boolean failLog;
+
+        @Override
+        public void logOperation(Operation operation, boolean success) throws SQLException {
+            if (failLog) throw new SQLException("Log is full");
+            super.logOperation(operation, success);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package db.dao.impl;
+
+import db.dao.DAO;
+import db.dao.OperationQuery;
+import model.Account;
+import model.HistoryEntry;
+import model.Operation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InMemoryDAOTest {
+
+    InMemoryDAO target;
+
+    @BeforeEach
+    void setUp() {
+        target = new InMemoryDAO();
+        for (int id = 1; id <= 3; id++) target.addAccount(account(id, 10000));
+    }
+
+    @Test
+    void nestedRollbackFailsOuterCommitWithItsOwnError() throws SQLException {
+        //GIVEN
+        target.beginTransaction();
+        target.applyDelta(1, 500, DAO.NO_MIN_BALANCE);
+        target.beginTransaction();
+        target.applyDelta(2, 500, DAO.NO_MIN_BALANCE);
+        target.rollbackTransaction();
+        //WHEN
+        boolean committed = false;
+        SQLException error = null;
+        try {
+            target.commitTransaction();
+            committed = true;
+        }
+        catch (SQLException e) {
+            error = e;
+        }
+        finally {
+            //Tak jak w AccountManager, nieudany commit kończy rollback wołającego
+            if (!committed) target.rollbackTransaction();
+        }
+        //THEN
+        assertNotNull(error);
+        assertTrue(error.getMessage().contains("marked for rollback"));
+        assertFalse(target.isInTransaction());
+        assertEquals(10000, target.findAccountById(1).getAmmount());
+        assertEquals(10000, target.findAccountById(2).getAmmount());
+    }
+
+    @Test
+    void uncommittedChangeIsSeenOnlyByItsTransaction() throws Exception {
+        //GIVEN
+        target.beginTransaction();
+        target.applyDelta(1, -2500, 0);
+        //WHEN
+        long own = target.findAccountById(1).getAmmount();
+        long other = CompletableFuture.supplyAsync(() -> target.findAccountById(1).getAmmount()).get(5, TimeUnit.SECONDS);
+        long otherPage = CompletableFuture.supplyAsync(() -> target.findAccountsPage(0, 1).get(0).getAmmount()).get(5, TimeUnit.SECONDS);
+        target.commitTransaction();
+        //THEN
+        assertEquals(7500, own);
+        assertEquals(10000, other);
+        assertEquals(10000, otherPage);
+        assertEquals(7500, target.findAccountById(1).getAmmount());
+    }
+
+    @Test
+    void rollbackDropsChangesAndVersions() throws SQLException {
+        //GIVEN
+        long version = target.findAccountById(1).getVersion();
+        target.beginTransaction();
+        target.applyDelta(1, 100, DAO.NO_MIN_BALANCE);
+        target.updateAccountState(account(2, 1));
+        //WHEN
+        target.rollbackTransaction();
+        //THEN
+        assertEquals(10000, target.findAccountById(1).getAmmount());
+        assertEquals(version, target.findAccountById(1).getVersion());
+        assertEquals(10000, target.findAccountById(2).getAmmount());
+    }
+
+    @Test
+    void compareAndSetSeesOwnTransaction() throws SQLException {
+        //GIVEN
+        target.beginTransaction();
+        Account account = target.findAccountById(1);
+        account.setAmmount(1);
+        assertTrue(target.compareAndSetAccountState(account));
+        Account stale = target.findAccountById(2);
+        target.applyDelta(2, 1, DAO.NO_MIN_BALANCE);
+        stale.setAmmount(5);
+        //WHEN
+        boolean result = target.compareAndSetAccountState(stale);
+        target.commitTransaction();
+        //THEN
+        assertFalse(result);
+        assertEquals(1, target.findAccountById(1).getAmmount());
+        assertEquals(10001, target.findAccountById(2).getAmmount());
+    }
+
+    @Test
+    void pagesFollowIdOrder() {
+        //GIVEN
+        for (int id = 40; id > 3; id--) target.addAccount(account(id, id));
+        //WHEN
+        List<Integer> ids = new ArrayList<>();
+        int afterId = 0;
+        List<Account> page;
+        while (!(page = target.findAccountsPage(afterId, 7)).isEmpty()) {
+            for (Account account : page) ids.add(account.getId());
+            afterId = page.get(page.size() - 1).getId();
+        }
+        //THEN
+        assertEquals(40, ids.size());
+        for (int i = 0; i < ids.size(); i++) assertEquals(i + 1, (int) ids.get(i));
+        assertEquals(40, target.countAccounts());
+    }
+
+    @Test
+    void parallelDeltasAndTransactionsKeepTotal() throws Exception {
+        //GIVEN
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        List<Future<?>> done = new ArrayList<>();
+        //WHEN
+        //Wpłaty bez transakcji równolegle z przelewami w transakcjach
+        for (int t = 0; t < 8; t++) {
+            boolean transfers = t % 2 == 0;
+            done.add(pool.submit(() -> {
+                for (int i = 0; i < 500; i++) {
+                    if (!transfers) {
+                        target.applyDelta(3, 1, DAO.NO_MIN_BALANCE);
+                        continue;
+                    }
+                    boolean committed = false;
+                    target.beginTransaction();
+                    try {
+                        if (target.applyDelta(1, -1, 0)) target.applyDelta(2, 1, DAO.NO_MIN_BALANCE);
+                        target.commitTransaction();
+                        committed = true;
+                    }
+                    finally {
+                        if (!committed) target.rollbackTransaction();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : done) future.get(30, TimeUnit.SECONDS);
+        pool.shutdown();
+        //THEN
+        assertEquals(10000 - 2000, target.findAccountById(1).getAmmount());
+        assertEquals(10000 + 2000, target.findAccountById(2).getAmmount());
+        assertEquals(10000 + 2000, target.findAccountById(3).getAmmount());
+    }
+
+    @Test
+    void streamSkipsRolledBackOperations() throws SQLException {
+        //GIVEN
+        target.logOperation(DAOImplTest.payment(1, 10), true);
+        target.logOperations(List.of(new HistoryEntry(DAOImplTest.payment(2, 20), true)));
+        target.beginTransaction();
+        target.logOperation(DAOImplTest.payment(1, 30), true);
+        target.rollbackTransaction();
+        target.logOperation(DAOImplTest.payment(1, 40), false);
+        //WHEN
+        List<Integer> all;
+        try (Stream<Operation> operations = target.streamOperations(new OperationQuery())) {
+            all = operations.map(Operation::getId).collect(Collectors.toList());
+        }
+        List<Integer> successful;
+        try (Stream<Operation> operations = target.streamOperations(new OperationQuery().forAccount(1).successful(true))) {
+            successful = operations.map(Operation::getId).collect(Collectors.toList());
+        }
+        //THEN
+        //Id wycofanej operacji nie jest używane ponownie
+        assertEquals(List.of(1, 2, 4), all);
+        assertEquals(List.of(1), successful);
+    }
+
+    @Test
+    void readerResumingAfterLastIdMissesNoParallelLog() throws Exception {
+        //GIVEN
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> done = new ArrayList<>();
+        //WHEN
+        for (int t = 0; t < 4; t++) {
+            int accountId = 1 + t % 3;
+            done.add(pool.submit(() -> {
+                for (int i = 0; i < 500; i++) target.logOperation(DAOImplTest.payment(accountId, 1), true);
+                return null;
+            }));
+        }
+        //Czytelnik wznawia odczyt od ostatniego widzianego id, jak przy eksporcie dziennika
+        List<Integer> read = new ArrayList<>();
+        int last = 0;
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (read.size() < 2000 && System.nanoTime() < end) {
+            try (Stream<Operation> operations = target.streamOperations(new OperationQuery().afterId(last))) {
+                for (Operation operation : (Iterable<Operation>) operations::iterator) {
+                    read.add(operation.getId());
+                    last = operation.getId();
+                }
+            }
+        }
+        for (Future<?> future : done) future.get(30, TimeUnit.SECONDS);
+        pool.shutdown();
+        //THEN
+        assertEquals(2000, read.size());
+        for (int i = 0; i < read.size(); i++) assertEquals(i + 1, (int) read.get(i));
+    }
+
+    @Test
+    void pagesGoNewestFirstThroughEqualDates() throws SQLException {
+        //GIVEN
+        Date date = new Date(1520164800000L);
+        for (int i = 0; i < 10; i++) {
+            Operation payment = DAOImplTest.payment(1, i);
+            payment.setDate(date);
+            target.logOperation(payment, true);
+        }
+        //WHEN
+        List<Integer> ids = DAOImplTest.statement(target, 1, 3);
+        //THEN
+        assertEquals(List.of(10, 9, 8, 7, 6, 5, 4, 3, 2, 1), ids);
+    }
+
+    @Test
+    void statementReadWhileOperationsAreLoggedSeesEachOldOperationOnce() throws Exception {
+        //GIVEN
+        long base = System.currentTimeMillis() - 100000;
+        for (int i = 0; i < 300; i++) {
+            Operation payment = DAOImplTest.payment(1 + i % 2, i);
+            payment.setDate(new Date(base + i / 4));
+            target.logOperation(payment, true);
+        }
+        //WHEN
+        //Nowe operacje mają późniejsze daty i nie przesuwają czytanych stron
+        CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 300; i++) {
+                try {
+                    target.logOperation(DAOImplTest.payment(1, 1000 + i), true);
+                }
+                catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        List<Integer> ids = new ArrayList<>();
+        Date beforeDate = new Date(base + 100000);
+        int beforeId = Integer.MAX_VALUE;
+        List<Operation> page;
+        while (!(page = target.findOperationsPage(1, beforeDate, beforeId, 7)).isEmpty()) {
+            for (Operation operation : page) ids.add(operation.getId());
+            Operation last = page.get(page.size() - 1);
+            beforeDate = last.getDate();
+            beforeId = last.getId();
+        }
+        writer.get(30, TimeUnit.SECONDS);
+        //THEN
+        List<Integer> expected = new ArrayList<>();
+        for (int id = 299; id >= 1; id -= 2) expected.add(id);
+        assertEquals(expected, ids);
+    }
+
+    static Account account(int id, long ammount) {
+        Account account = new Account();
+        account.setId(id);
+        account.setAmmount(ammount);
+        return account;
+    }
+}
@@ -0,0 +1,234 @@
+package db.dao.impl;
+
+import db.dao.DAO;
+import db.dao.OperationQuery;
+import model.Account;
+import model.Operation;
+import model.User;
+import model.operations.PaymentIn;
+import model.operations.Withdraw;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedJournalDAOTest {
+
+    @TempDir
+    Path dir;
+    InMemoryDAO accounts;
+    MappedJournalDAO target;
+    User user;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        accounts = new InMemoryDAO();
+        for (int id = 1; id <= 3; id++) accounts.addAccount(InMemoryDAOTest.account(id, 10000));
+        target = new MappedJournalDAO(accounts, dir, 1024, 64 * 1024);
+        user = new User();
+        user.setId(1);
+        user.setName("Adam");
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        target.close();
+    }
+
+    @Test
+    void nestedRollbackFailsOuterCommitWithItsOwnError() throws SQLException {
+        //GIVEN
+        target.beginTransaction();
+        target.applyDelta(1, 500, DAO.NO_MIN_BALANCE);
+        target.beginTransaction();
+        target.applyDelta(2, 500, DAO.NO_MIN_BALANCE);
+        target.rollbackTransaction();
+        //WHEN
+        boolean committed = false;
+        SQLException error = null;
+        try {
+            target.commitTransaction();
+            committed = true;
+        }
+        catch (SQLException e) {
+            error = e;
+        }
+        finally {
+            if (!committed) target.rollbackTransaction();
+        }
+        //THEN
+        assertNotNull(error);
+        assertTrue(error.getMessage().contains("marked for rollback"));
+        assertFalse(target.isInTransaction());
+        assertEquals(10000, target.findAccountById(1).getAmmount());
+        assertEquals(10000, target.findAccountById(2).getAmmount());
+    }
+
+    @Test
+    void uncommittedBalanceIsSeenOnlyByItsTransaction() throws Exception {
+        //GIVEN
+        target.beginTransaction();
+        assertTrue(target.applyDelta(1, 500, DAO.NO_MIN_BALANCE));
+        Account changed = target.findAccountById(1);
+        assertTrue(target.compareAndSetAccountState(changed));
+        //WHEN
+        long other = balanceInOtherThread(1);
+        //THEN
+        assertEquals(10500, target.findAccountById(1).getAmmount());
+        assertEquals(10000, other);
+        target.commitTransaction();
+        assertEquals(10500, balanceInOtherThread(1));
+        assertEquals(changed.getVersion(), target.findAccountById(1).getVersion());
+    }
+
+    @Test
+    void rolledBackBalanceWasNeverVisible() throws Exception {
+        //GIVEN
+        target.beginTransaction();
+        target.applyDelta(1, -3000, DAO.NO_MIN_BALANCE);
+        int version = target.findAccountById(2).getVersion();
+        target.updateAccountState(InMemoryDAOTest.account(2, 1));
+        //WHEN
+        assertEquals(10000, balanceInOtherThread(2));
+        target.rollbackTransaction();
+        //THEN
+        assertEquals(10000, target.findAccountById(1).getAmmount());
+        assertEquals(10000, target.findAccountById(2).getAmmount());
+        assertEquals(version, target.findAccountById(2).getVersion());
+        //Bez transakcji zmiana trafia od razu do pliku
+        assertTrue(target.applyDelta(1, 1, DAO.NO_MIN_BALANCE));
+        assertEquals(10001, balanceInOtherThread(1));
+    }
+
+    @Test
+    void streamReadsJournalLazilyInIdOrder() throws SQLException {
+        //GIVEN
+        for (int i = 0; i < 6; i++) target.logOperation(payment(1 + i % 2, 100 + i, i), true);
+        //WHEN
+        List<Integer> ids = new ArrayList<>();
+        try (Stream<Operation> operations = target.streamOperations(new OperationQuery().forAccount(1))) {
+            Iterator<Operation> it = operations.iterator();
+            ids.add(it.next().getId());
+            //Wpis dodany po otwarciu strumienia też jest czytany
+            target.logOperation(payment(1, 999, 10), true);
+            while (it.hasNext()) ids.add(it.next().getId());
+        }
+        //THEN
+        assertEquals(List.of(1, 3, 5, 7), ids);
+    }
+
+    @Test
+    void pagesGoFromNewestOperationOfAccount() throws SQLException {
+        //GIVEN
+        for (int i = 0; i < 5; i++) target.logOperation(payment(1, 100 + i, i), true);
+        target.logOperation(payment(2, 1, 7), true);
+        //Ten sam czas, kolejność według id
+        target.logOperation(payment(1, 200, 4), true);
+        //WHEN
+        List<Operation> first = target.findOperationsPage(1, null, 0, 2);
+        Operation last = first.get(first.size() - 1);
+        List<Operation> second = target.findOperationsPage(1, last.getDate(), last.getId(), 10);
+        //THEN
+        assertEquals(List.of(7, 5), ids(first));
+        assertEquals(List.of(4, 3, 2, 1), ids(second));
+        assertTrue(target.findOperationsPage(3, null, 0, 10).isEmpty());
+    }
+
+    @Test
+    void rolledBackOperationsAreNotListed() throws SQLException {
+        //GIVEN
+        target.logOperation(payment(1, 100, 0), true);
+        target.beginTransaction();
+        target.logOperation(payment(1, 200, 1), true);
+        //WHEN
+        target.rollbackTransaction();
+        //THEN
+        assertEquals(1, target.findOperationsPage(1, null, 0, 10).size());
+        try (Stream<Operation> operations = target.streamOperations(new OperationQuery())) {
+            assertEquals(1, operations.count());
+        }
+    }
+
+    @Test
+    void tornRecordIsDroppedAndJournalContinuesAfterCrash() throws Exception {
+        //GIVEN
+        for (int i = 0; i < 3; i++) target.logOperation(payment(1, 100 + i, i), true);
+        target.logOperation(new Withdraw(user, 50, "Wypłata", accountWithId(2)), true);
+        target.close();
+        Path segment = dir.resolve("journal").resolve("journal-00000000.seg");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //Długość zapisana, treść przerwana w połowie
+            ByteBuffer torn = ByteBuffer.allocate(12);
+            torn.putInt(40).putInt(12345).putInt(7).flip();
+            channel.write(torn, endOfRecords(channel));
+        }
+        //WHEN
+        target = new MappedJournalDAO(accounts, dir, 1024, 64 * 1024);
+        target.logOperation(payment(1, 300, 9), true);
+        //THEN
+        assertTrue(target.getJournal().getDroppedBytes() > 0);
+        assertEquals(List.of(5, 3, 2, 1), ids(target.findOperationsPage(1, null, 0, 10)));
+        List<Operation> withdrawals = target.findOperationsPage(2, null, 0, 10);
+        assertEquals(1, withdrawals.size());
+        assertTrue(withdrawals.get(0) instanceof Withdraw);
+        assertEquals(50, ((Withdraw) withdrawals.get(0)).getAmmount());
+    }
+
+    /**
+     * Pozycja za ostatnim pełnym rekordem segmentu: długość i CRC, potem treść.
+     */
+    private static long endOfRecords(FileChannel channel) throws Exception {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        long position = 8;
+        while (true) {
+            length.clear();
+            channel.read(length, position);
+            int size = length.getInt(0);
+            if (size == 0) return position;
+            position += 8 + size;
+        }
+    }
+
+    private PaymentIn payment(int accountId, long ammount, long minute) {
+        PaymentIn payment = new PaymentIn(user, ammount, "Wpłata", accountWithId(accountId));
+        payment.setDate(new Date(minute * 60_000));
+        return payment;
+    }
+
+    private static Account accountWithId(int accountId) {
+        Account account = new Account();
+        account.setId(accountId);
+        return account;
+    }
+
+    private static List<Integer> ids(List<Operation> operations) {
+        return operations.stream().map(Operation::getId).collect(Collectors.toList());
+    }
+
+    private long balanceInOtherThread(int accountId) throws Exception {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return target.findAccountById(accountId).getAmmount();
+            }
+            catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }).get(5, TimeUnit.SECONDS);
+    }
+}
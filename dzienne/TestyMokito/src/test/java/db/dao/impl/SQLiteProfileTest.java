@@ -0,0 +1,150 @@
+package db.dao.impl;
+
+import db.dao.DAO;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SQLiteProfileTest {
+
+    @TempDir
+    Path dir;
+
+    String url;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        url = TestDatabases.create(dir, "profile.db", 10);
+    }
+
+    @Test
+    void defaultLeavesDriverSettings() throws SQLException {
+        //GIVEN
+        try (Connection conn = DriverManager.getConnection(url)) {
+            //WHEN
+            SQLiteProfile.DEFAULT.apply(conn);
+            Map<String, String> settings = SQLiteProfile.describe(conn);
+            //THEN
+            assertEquals("delete", settings.get("journal_mode"));
+            assertEquals("5000", settings.get("busy_timeout"));
+            assertEquals("0", settings.get("query_only"));
+        }
+    }
+
+    @Test
+    void durableWalSyncsEveryCommit() throws SQLException {
+        //GIVEN
+        try (Connection conn = DriverManager.getConnection(url)) {
+            //WHEN
+            SQLiteProfile.DURABLE_WAL.apply(conn);
+            Map<String, String> settings = SQLiteProfile.describe(conn);
+            //THEN
+            assertEquals("wal", settings.get("journal_mode"));
+            //FULL
+            assertEquals("2", settings.get("synchronous"));
+            assertEquals("-16000", settings.get("cache_size"));
+            //MEMORY
+            assertEquals("2", settings.get("temp_store"));
+        }
+    }
+
+    @Test
+    void throughputSyncsOnCheckpoints() throws SQLException {
+        //GIVEN
+        try (Connection conn = DriverManager.getConnection(url)) {
+            //WHEN
+            SQLiteProfile.THROUGHPUT.apply(conn);
+            Map<String, String> settings = SQLiteProfile.describe(conn);
+            //THEN
+            assertEquals("wal", settings.get("journal_mode"));
+            //NORMAL
+            assertEquals("1", settings.get("synchronous"));
+            assertEquals("10000", settings.get("busy_timeout"));
+        }
+    }
+
+    @Test
+    void readerIsQueryOnlyWithWriterJournal() throws SQLException {
+        //GIVEN
+        try (Connection writer = DriverManager.getConnection(url);
+             Connection reader = DriverManager.getConnection(url)) {
+            SQLiteProfile.DURABLE_WAL.apply(writer);
+            //WHEN
+            SQLiteProfile.DURABLE_WAL.applyToReader(reader);
+            //THEN
+            Map<String, String> settings = SQLiteProfile.describe(reader);
+            assertEquals("1", settings.get("query_only"));
+            //Tryb dziennika jest zapisany w pliku bazy przez writera
+            assertEquals("wal", settings.get("journal_mode"));
+            try (Statement st = reader.createStatement()) {
+                assertThrows(SQLException.class, () -> st.executeUpdate("DELETE FROM Account"));
+            }
+        }
+    }
+
+    @Test
+    void analyticsDAOReadsButNeverWrites() throws Exception {
+        //GIVEN
+        DAO dao = SQLiteDB.createPooledDAO(url, 2, ConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS, SQLiteProfile.READ_ONLY_ANALYTICS);
+        try {
+            //WHEN
+            //THEN
+            assertEquals(10000, dao.findAccountById(1).getAmmount());
+            assertEquals(10, dao.countAccounts());
+            assertThrows(SQLException.class, () -> dao.applyDelta(1, 100, DAO.NO_MIN_BALANCE));
+            assertEquals(10000, dao.findAccountById(1).getAmmount());
+            ConnectionPool pool = ((DAOImpl) dao).getConnectionPool();
+            assertSame(SQLiteProfile.READ_ONLY_ANALYTICS, pool.getProfile());
+            assertEquals("1", pool.getActiveSettings().get("query_only"));
+        }
+        finally {
+            dao.close();
+        }
+    }
+
+    @Test
+    void walReadersDoNotWaitForWriter() throws Exception {
+        //GIVEN
+        DAO dao = SQLiteDB.createPooledDAO(url, 4, ConnectionPool.DEFAULT_BORROW_TIMEOUT_MILLIS, SQLiteProfile.DURABLE_WAL);
+        ExecutorService pool = Executors.newFixedThreadPool(6);
+        List<Future<?>> done = new ArrayList<>();
+        try {
+            //WHEN
+            for (int t = 0; t < 6; t++) {
+                boolean writer = t < 2;
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < 100; i++) {
+                        if (writer) assertTrue(dao.applyDelta(1 + i % 10, 1, DAO.NO_MIN_BALANCE));
+                        else assertNotNull(dao.findAccountById(1 + i % 10));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : done) future.get(60, TimeUnit.SECONDS);
+            //THEN
+            long total = 0;
+            for (int id = 1; id <= 10; id++) total += dao.findAccountById(id).getAmmount();
+            assertEquals(10 * 10000 + 2 * 100, total);
+            assertEquals(0, ((DAOImpl) dao).getConnectionPool().getTimeouts());
+        }
+        finally {
+            pool.shutdown();
+            dao.close();
+        }
+    }
+}
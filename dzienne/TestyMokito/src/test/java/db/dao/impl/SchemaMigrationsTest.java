@@ -0,0 +1,195 @@
+package db.dao.impl;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SchemaMigrationsTest {
+
+    @TempDir
+    Path dir;
+
+    String url;
+
+    @BeforeEach
+    void setUp() {
+        url = "jdbc:sqlite:" + dir.resolve("schema.db");
+    }
+
+    @Test
+    void emptyDatabaseGetsLatestSchemaOnce() throws SQLException {
+        try (Connection conn = DriverManager.getConnection(url)) {
+            //WHEN
+            int version = SchemaMigrations.migrate(conn);
+            //THEN
+            assertEquals(SchemaMigrations.getLatestVersion(), version);
+            assertEquals(version, SchemaMigrations.getVersion(conn));
+            assertTrue(columns(conn, "Account").contains("balance"));
+            assertTrue(columns(conn, "Operation").contains("ammount_minor"));
+            assertEquals(version, SchemaMigrations.migrate(conn));
+            assertTrue(conn.getAutoCommit());
+        }
+    }
+
+    @Test
+    void realAmountsAreConvertedToMinorUnits() throws SQLException {
+        //GIVEN
+        try (Connection conn = DriverManager.getConnection(url)) {
+            legacyDatabase(conn, 4, true);
+            execute(conn,
+                    "INSERT INTO Account (id, owner_id, ammount) VALUES (1, 1, 123.45)",
+                    "INSERT INTO Account (id, owner_id, ammount) VALUES (2, 1, 0.1 + 0.2)",
+                    "INSERT INTO Account (id, owner_id, ammount) VALUES (3, 1, 19.999)",
+                    "INSERT INTO Account (id, owner_id, ammount) VALUES (4, 1, -0.07)",
+                    "INSERT INTO Account (id, owner_id, ammount) VALUES (5, 1, NULL)",
+                    "INSERT INTO Operation (id, ammount, description, date) VALUES (1, 12.34, 'Wpłata', '2018-03-04 12:00:00.000')",
+                    "INSERT INTO Operation (id, ammount, description, date) VALUES (2, NULL, 'Logowanie', '2018-03-04 12:00:01.000')");
+            //WHEN
+            assertEquals(5, SchemaMigrations.migrate(conn));
+            //THEN
+            assertEquals(12345, number(conn, "SELECT balance FROM Account WHERE id = 1"));
+            assertEquals(30, number(conn, "SELECT balance FROM Account WHERE id = 2"));
+            assertEquals(2000, number(conn, "SELECT balance FROM Account WHERE id = 3"));
+            assertEquals(-7, number(conn, "SELECT balance FROM Account WHERE id = 4"));
+            assertEquals(0, number(conn, "SELECT balance FROM Account WHERE id = 5"));
+            assertEquals("integer", text(conn, "SELECT typeof(balance) FROM Account WHERE id = 2"));
+            assertEquals(1234, number(conn, "SELECT ammount_minor FROM Operation WHERE id = 1"));
+            assertNull(text(conn, "SELECT ammount_minor FROM Operation WHERE id = 2"));
+        }
+    }
+
+    @Test
+    void legacyDatesAreRewrittenOnTheWayToLatest() throws SQLException {
+        //GIVEN
+        try (Connection conn = DriverManager.getConnection(url)) {
+            legacyDatabase(conn, 2, true);
+            execute(conn,
+                    "INSERT INTO Account (id, owner_id, ammount) VALUES (1, 1, 5.5)",
+                    "INSERT INTO Operation (id, ammount, description, date) VALUES (1, 1.5, 'Wpłata', 'Sun Mar 04 12:00:00 UTC 2018')",
+                    "INSERT INTO Operation (id, ammount, description, date) VALUES (2, 2.5, 'Wpłata', '2018-03-05 08:30:00.000')");
+            //WHEN
+            assertEquals(SchemaMigrations.getLatestVersion(), SchemaMigrations.migrate(conn));
+            //THEN
+            assertEquals("2018-03-04 12:00:00.000", text(conn, "SELECT date FROM Operation WHERE id = 1"));
+            assertEquals("2018-03-05 08:30:00.000", text(conn, "SELECT date FROM Operation WHERE id = 2"));
+            assertEquals(0, number(conn, "SELECT version FROM Account WHERE id = 1"));
+            assertEquals(550, number(conn, "SELECT balance FROM Account WHERE id = 1"));
+        }
+    }
+
+    @Test
+    void failedMigrationIsRolledBackAndCanBeRetried() throws SQLException {
+        //GIVEN
+        try (Connection conn = DriverManager.getConnection(url)) {
+            //Brak tabeli Operation, migracja 5 nie powiedzie się po zmianie tabeli Account
+            legacyDatabase(conn, 4, false);
+            execute(conn, "INSERT INTO Account (id, owner_id, ammount) VALUES (1, 1, 1.25)");
+            //WHEN
+            SQLException error = assertThrows(SQLException.class, () -> SchemaMigrations.migrate(conn));
+            //THEN
+            assertTrue(error.getMessage().startsWith("Migration 5"));
+            assertEquals(4, SchemaMigrations.getVersion(conn));
+            assertFalse(columns(conn, "Account").contains("balance"));
+            assertTrue(conn.getAutoCommit());
+            legacyOperations(conn);
+            assertEquals(5, SchemaMigrations.migrate(conn));
+            assertEquals(125, number(conn, "SELECT balance FROM Account WHERE id = 1"));
+        }
+    }
+
+    @Test
+    void connectionsMigratingTogetherApplyEachStepOnce() throws Exception {
+        //GIVEN
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> done = new ArrayList<>();
+        //WHEN
+        for (int t = 0; t < 4; t++) {
+            done.add(pool.submit(() -> {
+                try (Connection conn = DriverManager.getConnection(url)) {
+                    start.await(10, TimeUnit.SECONDS);
+                    return SchemaMigrations.migrate(conn);
+                }
+            }));
+        }
+        start.countDown();
+        //THEN
+        for (Future<Integer> version : done) assertEquals(SchemaMigrations.getLatestVersion(), version.get(60, TimeUnit.SECONDS).intValue());
+        pool.shutdown();
+        try (Connection conn = DriverManager.getConnection(url)) {
+            assertEquals(SchemaMigrations.getLatestVersion(), SchemaMigrations.getVersion(conn));
+        }
+    }
+
+    /**
+     * Tabele Account i Operation w postaci sprzed danej wersji, tylko one są zmieniane przez migracje od 3.
+     */
+    private static void legacyDatabase(Connection conn, int version, boolean operations) throws SQLException {
+        execute(conn, "CREATE TABLE `Account` (" +
+                " `id` INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                " `owner_id` INTEGER, " +
+                " `ammount` REAL" +
+                (version >= 4 ? ", `version` INTEGER NOT NULL DEFAULT 0" : "") +
+                ")");
+        if (operations) legacyOperations(conn);
+        execute(conn, "PRAGMA user_version = " + version);
+    }
+
+    private static void legacyOperations(Connection conn) throws SQLException {
+        execute(conn, "CREATE TABLE `Operation` ( " +
+                " `id` INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                " `ammount` REAL, " +
+                " `description` TEXT NOT NULL, " +
+                " `date` TEXT NOT NULL, " +
+                " `user_id` INTEGER, " +
+                " `account_id` INTEGER, " +
+                " `type` INTEGER)");
+    }
+
+    private static void execute(Connection conn, String... sql) throws SQLException {
+        try (Statement st = conn.createStatement()) {
+            for (String statement : sql) st.executeUpdate(statement);
+        }
+    }
+
+    private static List<String> columns(Connection conn, String table) throws SQLException {
+        List<String> columns = new ArrayList<>();
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) columns.add(rs.getString("name"));
+        }
+        return columns;
+    }
+
+    private static long number(Connection conn, String sql) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery(sql)) {
+            assertTrue(rs.next());
+            return rs.getLong(1);
+        }
+    }
+
+    private static String text(Connection conn, String sql) throws SQLException {
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery(sql)) {
+            assertTrue(rs.next());
+            return rs.getString(1);
+        }
+    }
+}
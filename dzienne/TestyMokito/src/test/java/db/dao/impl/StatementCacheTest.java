@@ -0,0 +1,131 @@
+package db.dao.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StatementCacheTest {
+
+    @TempDir
+    Path dir;
+
+    Connection connection;
+    StatementCache target;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite:" + dir.resolve("cache.db"));
+        target = new StatementCache(connection, 2);
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        target.clear();
+        connection.close();
+    }
+
+    @Test
+    void sameSqlReusesStatementWithClearedParameters() throws SQLException {
+        //GIVEN
+        PreparedStatement first = target.prepare("SELECT ?");
+        first.setInt(1, 5);
+        //WHEN
+        PreparedStatement second = target.prepare("SELECT ?");
+        //THEN
+        assertSame(first, second);
+        assertThrows(SQLException.class, second::executeQuery);
+        second.setInt(1, 7);
+        try (ResultSet rs = second.executeQuery()) {
+            assertTrue(rs.next());
+            assertEquals(7, rs.getInt(1));
+        }
+        assertEquals(1, target.getHits());
+        assertEquals(1, target.getMisses());
+        assertEquals(0.5, target.getHitRate());
+    }
+
+    @Test
+    void leastRecentlyUsedStatementIsClosedWhenFull() throws SQLException {
+        //GIVEN
+        PreparedStatement one = target.prepare("SELECT 1");
+        PreparedStatement two = target.prepare("SELECT 2");
+        target.prepare("SELECT 1");
+        //WHEN
+        target.prepare("SELECT 3");
+        //THEN
+        assertEquals(2, target.size());
+        assertEquals(1, target.getEvictions());
+        assertTrue(two.isClosed());
+        assertFalse(one.isClosed());
+    }
+
+    @Test
+    void statementClosedOutsideIsPreparedAgain() throws SQLException {
+        //GIVEN
+        PreparedStatement first = target.prepare("SELECT 1");
+        first.close();
+        //WHEN
+        PreparedStatement second = target.prepare("SELECT 1");
+        //THEN
+        assertNotSame(first, second);
+        assertFalse(second.isClosed());
+        assertEquals(2, target.getMisses());
+    }
+
+    @Test
+    void clearClosesEveryStatement() throws SQLException {
+        //GIVEN
+        PreparedStatement one = target.prepare("SELECT 1");
+        PreparedStatement two = target.prepare("SELECT 2");
+        //WHEN
+        target.clear();
+        //THEN
+        assertEquals(0, target.size());
+        assertTrue(one.isClosed());
+        assertTrue(two.isClosed());
+    }
+
+    @Test
+    void parallelPreparesCountEveryCall() throws Exception {
+        //GIVEN
+        target = new StatementCache(connection, 4);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<Future<?>> done = new ArrayList<>();
+        //WHEN
+        for (int t = 0; t < 4; t++) {
+            done.add(pool.submit(() -> {
+                for (int i = 0; i < 500; i++) target.prepare("SELECT " + i % 3);
+                return null;
+            }));
+        }
+        for (Future<?> future : done) future.get(30, TimeUnit.SECONDS);
+        pool.shutdown();
+        //THEN
+        assertEquals(3, target.size());
+        assertEquals(3, target.getMisses());
+        assertEquals(4 * 500 - 3, target.getHits());
+        assertEquals(0, target.getEvictions());
+    }
+
+    @Test
+    void capacityMustBePositive() {
+        //THEN
+        assertThrows(IllegalArgumentException.class, () -> new StatementCache(connection, 0));
+    }
+}
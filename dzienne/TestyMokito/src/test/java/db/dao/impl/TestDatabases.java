@@ -0,0 +1,34 @@
+package db.dao.impl;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * SQLite databases in a test directory, with the latest schema, user Adam (id 1)
+ * and accounts 1..n of 100,00 each.
+ */
+class TestDatabases {
+
+    static String create(Path dir, String name, int accounts) throws ClassNotFoundException, SQLException {
+        String url = "jdbc:sqlite:" + dir.resolve(name);
+        SQLiteDB.initializeDB(url);
+        try (Connection conn = DriverManager.getConnection(url);
+             Statement st = conn.createStatement();
+             PreparedStatement insert = conn.prepareStatement("INSERT INTO Account (id, owner_id, balance) VALUES (?, 1, 10000)")) {
+            conn.setAutoCommit(false);
+            st.executeUpdate("INSERT INTO Role (id, name) VALUES (1, 'Admin')");
+            st.executeUpdate("INSERT INTO User (id, name, role_id) VALUES (1, 'Adam', 1)");
+            for (int id = 1; id <= accounts; id++) {
+                insert.setInt(1, id);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            conn.commit();
+        }
+        return url;
+    }
+}
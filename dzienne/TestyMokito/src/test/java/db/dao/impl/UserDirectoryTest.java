@@ -0,0 +1,147 @@
+package db.dao.impl;
+
+import model.Password;
+import model.Role;
+import model.User;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserDirectoryTest {
+
+    SlowPasswordDAO delegate;
+    UserDirectory target;
+
+    @BeforeEach
+    void setUp() {
+        delegate = new SlowPasswordDAO();
+        target = new UserDirectory(delegate, 2);
+    }
+
+    @Test
+    void passwordIsReadOnce() throws SQLException {
+        //GIVEN
+        User user = user(1, "jan", 1);
+        delegate.addUser(user, "stare");
+        //WHEN
+        target.findPasswordForUser(user);
+        Password passwd = target.findPasswordForUser(user);
+        //THEN
+        assertEquals("stare", passwd.getPasswd());
+        assertEquals(1, target.getPasswordMisses());
+        assertEquals(1, target.getPasswordHits());
+    }
+
+    @Test
+    void lookupStartedBeforePasswordChangeDoesNotCacheOldPassword() throws Exception {
+        //GIVEN
+        User user = user(1, "jan", 1);
+        delegate.addUser(user, "stare");
+        delegate.blockNextLookup();
+        //WHEN
+        //Odczyt hasła trwa, w tym czasie hasło jest zmieniane
+        CompletableFuture<Password> lookup = CompletableFuture.supplyAsync(() -> {
+            try {
+                return target.findPasswordForUser(user);
+            }
+            catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(delegate.lookupStarted.await(5, TimeUnit.SECONDS));
+        assertTrue(target.setUserPassword(user, "nowe", "stare"));
+        delegate.release.countDown();
+        //THEN
+        assertEquals("stare", lookup.get(5, TimeUnit.SECONDS).getPasswd());
+        assertEquals("nowe", target.findPasswordForUser(user).getPasswd());
+    }
+
+    @Test
+    void failedPasswordChangeKeepsPassword() throws SQLException {
+        //GIVEN
+        User user = user(1, "jan", 1);
+        delegate.addUser(user, "stare");
+        target.findPasswordForUser(user);
+        //WHEN
+        boolean result = target.setUserPassword(user, "nowe", "złe");
+        //THEN
+        assertFalse(result);
+        assertEquals("stare", target.findPasswordForUser(user).getPasswd());
+    }
+
+    @Test
+    void cachedUsersAreBounded() throws SQLException {
+        //GIVEN
+        for (int i = 1; i <= 5; i++) delegate.addUser(user(i, "user" + i, 1), "haslo" + i);
+        //WHEN
+        for (int i = 1; i <= 5; i++) {
+            User user = target.findUserByName("user" + i);
+            //THEN
+            assertEquals(i, user.getId());
+            assertEquals("haslo" + i, target.findPasswordForUser(user).getPasswd());
+        }
+        assertTrue(target.getCachedUsers() <= 2);
+        assertTrue(target.getCachedPasswords() <= 2);
+    }
+
+    @Test
+    void usersShareRoleInstance() throws SQLException {
+        //GIVEN
+        delegate.addUser(user(1, "jan", 7), "a");
+        delegate.addUser(user(2, "anna", 7), "b");
+        //WHEN
+        User first = target.findUserByName("jan");
+        User second = target.findUserByName("anna");
+        target.updateRole(7, "Kasjer");
+        //THEN
+        assertSame(first.getRole(), second.getRole());
+        assertEquals("Kasjer", second.getRole().getName());
+    }
+
+    private static User user(int id, String name, int roleId) {
+        //Każdy użytkownik dostaje osobny obiekt roli
+        Role role = new Role();
+        role.setId(roleId);
+        role.setName("Rola" + roleId);
+        User user = new User();
+        user.setId(id);
+        user.setName(name);
+        user.setRole(role);
+        return user;
+    }
+
+    /**
+     * Password lookup that can be stopped after it has read the password.
+     */
+    static class SlowPasswordDAO extends InMemoryDAO {
+        final CountDownLatch lookupStarted = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        private volatile boolean blockNext;
+
+        void blockNextLookup() {
+            blockNext = true;
+        }
+
+        @Override
+        public Password findPasswordForUser(User user) {
+            Password passwd = super.findPasswordForUser(user);
+            if (blockNext) {
+                blockNext = false;
+                lookupStarted.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return passwd;
+        }
+    }
+}